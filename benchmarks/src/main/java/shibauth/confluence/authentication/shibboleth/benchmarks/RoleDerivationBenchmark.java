@@ -0,0 +1,107 @@
+/*
+ Copyright (c) 2008-2019, Confluence HTTP Authenticator Team
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice,
+   this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+ * Neither the name of the Confluence HTTP Authenticator Team
+   nor the names of its contributors may be used to endorse or promote
+   products derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package shibauth.confluence.authentication.shibboleth.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import shibauth.confluence.authentication.shibboleth.BoundedCache;
+import shibauth.confluence.authentication.shibboleth.DynamicRoles;
+import shibauth.confluence.authentication.shibboleth.RoleDecision;
+import shibauth.confluence.authentication.shibboleth.ShibAuthConfiguration;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full role derivation from a dynamicroles header: tokenizing, running every mapper and resolving the decision.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoleDerivationBenchmark {
+
+    private final static String HEADER = "SHIB-EP-ENTITLEMENT";
+
+    @Param({"10", "100", "1000", "10000"})
+    public int mapperCount;
+
+    @Param({"20"})
+    public int valueCount;
+
+    private ShibAuthConfiguration config;
+
+    private ShibAuthConfiguration cachedConfig;
+
+    private String[] headerNames;
+
+    private String[] headerValues;
+
+    @Setup
+    public void setUp() {
+        Map mappings = new HashMap();
+        mappings.put(HEADER, SyntheticData.mappers(mapperCount));
+
+        config = new ShibAuthConfiguration();
+        config.setGroupMappings(mappings);
+
+        cachedConfig = new ShibAuthConfiguration();
+        cachedConfig.setGroupMappings(mappings);
+        cachedConfig.setRolesCache(new BoundedCache(1000));
+
+        headerNames = config.getGroupMappingHeaders();
+        headerValues = new String[]{SyntheticData.header(valueCount, mapperCount, ';')};
+    }
+
+    @Benchmark
+    public RoleDecision deriveRoles() {
+        return DynamicRoles.deriveRoles(headerNames, headerValues, config);
+    }
+
+    /**
+     * Repeated logins with the same header values, answered by the dynamicroles cache
+     */
+    @Benchmark
+    public RoleDecision getRolesCached() {
+        return DynamicRoles.getRoles(headerNames, headerValues, cachedConfig);
+    }
+}
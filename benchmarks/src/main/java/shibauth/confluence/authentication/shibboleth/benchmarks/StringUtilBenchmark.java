@@ -0,0 +1,89 @@
+/*
+ Copyright (c) 2008-2019, Confluence HTTP Authenticator Team
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice,
+   this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+ * Neither the name of the Confluence HTTP Authenticator Team
+   nor the names of its contributors may be used to endorse or promote
+   products derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package shibauth.confluence.authentication.shibboleth.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import shibauth.confluence.authentication.shibboleth.StringUtil;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The header tokenizers and the UTF-8 repair of header values.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StringUtilBenchmark {
+
+    /**
+     * Number of values in the header
+     */
+    @Param({"1", "10", "100"})
+    public int valueCount;
+
+    private String header;
+
+    private String name;
+
+    @Setup
+    public void setUp() throws Exception {
+        header = SyntheticData.header(valueCount, 100, ';');
+        name = SyntheticData.misdecodedName(valueCount * 10);
+    }
+
+    @Benchmark
+    public List toListOfNonEmptyStrings() {
+        return StringUtil.toListOfNonEmptyStringsDelimitedByCommaOrSemicolon(header);
+    }
+
+    @Benchmark
+    public List toListOfStrings() {
+        return StringUtil.toListOfStringsDelimitedByCommaOrSemicolon(header);
+    }
+
+    @Benchmark
+    public String convertToUTF8() {
+        return StringUtil.convertToUTF8(name);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ Copyright (c) 2008-2019, Confluence HTTP Authenticator Team
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice,
+   this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+ * Neither the name of the Confluence HTTP Authenticator Team
+   nor the names of its contributors may be used to endorse or promote
+   products derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package shibauth.confluence.authentication.shibboleth.benchmarks;
+
+import shibauth.confluence.authentication.shibboleth.GroupMapper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Reproducible synthetic entitlement headers and mapper sets, shaped like what a university IdP releases in
+ * eduPersonEntitlement and how sites map it: one regex mapper per department for course roles, and literal mappers
+ * for named groups. A fixed seed keeps runs comparable.
+ */
+public class SyntheticData {
+
+    private final static String PREFIX = "urn:mace:example.edu:entitlement:";
+
+    private final static String[] ROLES = {"student", "teacher", "ta"};
+
+    /**
+     * @param count number of mappers
+     * @return every fourth mapper a literal group mapper, the others regex course mappers
+     */
+    public static List mappers(int count) {
+        List mappers = new ArrayList(count);
+        for (int i = 0; i < count; i++) {
+            if (i % 4 == 3) {
+                mappers.add(new GroupMapper("group" + i, PREFIX + "group:g" + i, "group-" + i, true));
+            } else {
+                mappers.add(new GroupMapper("course" + i, PREFIX + "course:DEPT" + i + "(\\d{4}):(student|teacher|ta)",
+                        "course-dept" + i + "-$1-$2", true));
+            }
+        }
+        return mappers;
+    }
+
+    /**
+     * @param count       number of values in the header
+     * @param mapperCount size of the mapper set the values are for. About half of the values match a mapper.
+     * @param separator   separator between the values, ';' as sent by Shibboleth
+     * @return header value
+     */
+    public static String header(int count, int mapperCount, char separator) {
+        Random random = new Random(42);
+        StringBuffer sb = new StringBuffer();
+
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(separator);
+            }
+
+            // out of range departments and groups do not match any mapper
+            int n = random.nextInt(Math.max(1, mapperCount * 2));
+            if (n % 4 == 3) {
+                sb.append(PREFIX).append("group:g").append(n);
+            } else {
+                sb.append(PREFIX).append("course:DEPT").append(n).append(1000 + random.nextInt(9000)).append(':')
+                        .append(ROLES[random.nextInt(ROLES.length)]);
+            }
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * @return full name of about the given length whose UTF-8 bytes were decoded as ISO-8859-1, what
+     * StringUtil.convertToUTF8 repairs
+     */
+    public static String misdecodedName(int length) throws Exception {
+        StringBuffer sb = new StringBuffer();
+        String[] parts = {"J\u00fcrgen", "Fran\u00e7ois", "\u00c5sa", "Ji\u0159\u00ed", "Zo\u00eb"};
+        Random random = new Random(42);
+        while (sb.length() < length) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append(parts[random.nextInt(parts.length)]);
+        }
+        return new String(sb.toString().getBytes("UTF-8"), "ISO-8859-1");
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ Copyright (c) 2008-2019, Confluence HTTP Authenticator Team
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice,
+   this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+ * Neither the name of the Confluence HTTP Authenticator Team
+   nor the names of its contributors may be used to endorse or promote
+   products derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package shibauth.confluence.authentication.shibboleth;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Order in which login() and getUser(request, response) try the sources of an authenticated user, configured with
+ * auth.chain. Sources are tried one at a time and the first one that yields a user wins, so the work of the
+ * remaining sources (e.g. parsing and mapping the remote user header) is skipped.
+ * <ul>
+ * <li>session - user already in the HTTP session (getUser only)</li>
+ * <li>cookie - Remember Me cookie</li>
+ * <li>basic - Basic Auth credentials</li>
+ * <li>header - remote user header set by the SP (e.g. REMOTE_USER)</li>
+ * </ul>
+ * Without auth.chain, login() uses basic, cookie, header and getUser() uses session, cookie, basic, header. If no
+ * source yields a user, login() falls back to local login if supported.
+ * <p/>
+ * Counts of the source that authenticated each request are kept for all configurations of this JVM.
+ */
+public class AuthChain {
+
+    private final static Log log = LogFactory.getLog(AuthChain.class);
+
+    public final static int SESSION = 0;
+
+    public final static int COOKIE = 1;
+
+    public final static int BASIC = 2;
+
+    public final static int HEADER = 3;
+
+    private final static String[] NAMES = {"session", "cookie", "basic", "header"};
+
+    private final static int[] DEFAULT_LOGIN = {BASIC, COOKIE, HEADER};
+
+    private final static int[] DEFAULT_GET_USER = {SESSION, COOKIE, BASIC, HEADER};
+
+    private final static AtomicLong[] hitCounts = new AtomicLong[NAMES.length];
+
+    private final static AtomicLong missCount = new AtomicLong();
+
+    static {
+        for (int i = 0; i < hitCounts.length; i++) {
+            hitCounts[i] = new AtomicLong();
+        }
+    }
+
+    private final int[] loginSources;
+
+    private final int[] getUserSources;
+
+    /**
+     * Default chain.
+     */
+    public AuthChain() {
+        this.loginSources = DEFAULT_LOGIN;
+        this.getUserSources = DEFAULT_GET_USER;
+    }
+
+    /**
+     * @param sources names of the sources in the order to try them. Unknown names are ignored with a warning.
+     */
+    public AuthChain(List sources) {
+        List getUser = new ArrayList();
+
+        for (int i = 0; i < sources.size(); i++) {
+            String name = sources.get(i).toString().trim().toLowerCase();
+            int source = indexOf(name);
+
+            if (source < 0) {
+                log.warn("Unknown authentication source '" + name + "' in " + ShibAuthConstants.AUTH_CHAIN +
+                        ", ignoring it.");
+            } else if (getUser.contains(Integer.valueOf(source))) {
+                log.warn("Authentication source '" + name + "' is listed twice in " + ShibAuthConstants.AUTH_CHAIN +
+                        ", ignoring the second one.");
+            } else {
+                getUser.add(Integer.valueOf(source));
+            }
+        }
+
+        this.getUserSources = toArray(getUser);
+
+        // login() is only called for users not in a session
+        getUser.remove(Integer.valueOf(SESSION));
+        this.loginSources = toArray(getUser);
+    }
+
+    /**
+     * @return sources tried by login(), in order
+     */
+    public int[] getLoginSources() {
+        return loginSources;
+    }
+
+    /**
+     * @return sources tried by getUser(request, response), in order
+     */
+    public int[] getGetUserSources() {
+        return getUserSources;
+    }
+
+    public static String getName(int source) {
+        return NAMES[source];
+    }
+
+    /**
+     * Count a request authenticated by the source.
+     */
+    public static void hit(int source) {
+        hitCounts[source].incrementAndGet();
+    }
+
+    /**
+     * Count a request that no source authenticated.
+     */
+    public static void miss() {
+        missCount.incrementAndGet();
+    }
+
+    public static long getHitCount(int source) {
+        return hitCounts[source].get();
+    }
+
+    public static long getMissCount() {
+        return missCount.get();
+    }
+
+    public String toString() {
+        return "login=" + toString(loginSources) + ", getUser=" + toString(getUserSources);
+    }
+
+    /**
+     * @return the counts of all sources
+     */
+    public static String getStats() {
+        StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < NAMES.length; i++) {
+            sb.append(NAMES[i]).append('=').append(getHitCount(i)).append(", ");
+        }
+        sb.append("none=").append(getMissCount());
+        return sb.toString();
+    }
+
+    private static int indexOf(String name) {
+        for (int i = 0; i < NAMES.length; i++) {
+            if (NAMES[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int[] toArray(List sources) {
+        int[] array = new int[sources.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = ((Integer) sources.get(i)).intValue();
+        }
+        return array;
+    }
+
+    private static String toString(int[] sources) {
+        StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < sources.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(NAMES[sources[i]]);
+        }
+        return sb.toString();
+    }
+}
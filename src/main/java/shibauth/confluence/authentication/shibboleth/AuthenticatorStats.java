@@ -0,0 +1,523 @@
+/*
+ Copyright (c) 2008-2019, Confluence HTTP Authenticator Team
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice,
+   this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+ * Neither the name of the Confluence HTTP Authenticator Team
+   nor the names of its contributors may be used to endorse or promote
+   products derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package shibauth.confluence.authentication.shibboleth;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.servlet.http.HttpServletRequest;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Always-on timings of the stages of a login and counts of its outcomes, published over JMX. Each stage keeps a
+ * {@link LatencyHistogram}, so recording is lock-free and costs little more than the two System.nanoTime() calls
+ * around the stage. Use {@link #start()} and {@link #record(int, long)}:
+ * <pre>
+ * long start = AuthenticatorStats.start();
+ * try {
+ *     ...
+ * } finally {
+ *     stats.record(AuthenticatorStats.MAPPING, start);
+ * }
+ * </pre>
+ */
+public class AuthenticatorStats implements AuthenticatorStatsMBean {
+
+    private final static Log log = LogFactory.getLog(AuthenticatorStats.class);
+
+    public final static String OBJECT_NAME = "shibauth.confluence.authentication.shibboleth:type=AuthenticatorStats";
+
+    /**
+     * login(request, response, username, password, cookie), end to end
+     */
+    public final static int LOGIN = 0;
+
+    /**
+     * getUser(request, response), end to end
+     */
+    public final static int GET_USER = 1;
+
+    /**
+     * Reading and normalizing the remote user header
+     */
+    public final static int HEADER = 2;
+
+    /**
+     * Evaluating the dynamicroles mappers
+     */
+    public final static int MAPPING = 3;
+
+    /**
+     * crowdService.getUser
+     */
+    public final static int CROWD_GET_USER = 4;
+
+    public final static int CREATE_USER = 5;
+
+    public final static int ASSIGN_ROLES = 6;
+
+    public final static int RETRACT_ROLES = 7;
+
+    public final static int PURGE_ROLES = 8;
+
+    private final static String[] STAGE_NAMES = {"login", "getUser", "header", "mapping", "crowdGetUser",
+            "createUser", "assignRoles", "retractRoles", "purgeRoles"};
+
+    private final static AuthenticatorStats instance = new AuthenticatorStats();
+
+    private final LatencyHistogram[] stages = new LatencyHistogram[STAGE_NAMES.length];
+
+    private final LongAdder successCount = new LongAdder();
+
+    /**
+     * Map<loginFailed reason, LongAdder>
+     */
+    private final ConcurrentMap failedCounts = new ConcurrentHashMap();
+
+    /**
+     * Map<"service.method", LongAdder> of the backend operations of all recorded logins
+     */
+    private final ConcurrentMap backendCounts = new ConcurrentHashMap();
+
+    private final LongAdder backendRecords = new LongAdder();
+
+    private final LongAdder backendReads = new LongAdder();
+
+    private final LongAdder backendWrites = new LongAdder();
+
+    private final LongAdder backendTransactions = new LongAdder();
+
+    private final AtomicLong maxBackendReads = new AtomicLong();
+
+    private volatile SlowLoginRecorder slowLogins = new SlowLoginRecorder(50, 0);
+
+    private volatile ShibAuthConfiguration configuration;
+
+    private volatile LastLoginThrottle lastLoginThrottle;
+
+    public AuthenticatorStats() {
+        for (int i = 0; i < stages.length; i++) {
+            stages[i] = new LatencyHistogram();
+        }
+    }
+
+    public static AuthenticatorStats getInstance() {
+        return instance;
+    }
+
+    /**
+     * Register the shared instance with the platform MBean server, replacing an instance registered by a previous
+     * class loader (e.g. before Confluence reloaded the authenticator). Failures are logged, not thrown.
+     */
+    public static void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            try {
+                server.registerMBean(instance, name);
+            } catch (InstanceAlreadyExistsException e) {
+                server.unregisterMBean(name);
+                server.registerMBean(instance, name);
+            }
+        } catch (JMException e) {
+            log.warn("Could not register " + OBJECT_NAME + ", authenticator statistics are not available over JMX", e);
+        } catch (SecurityException e) {
+            log.warn("Could not register " + OBJECT_NAME + ", authenticator statistics are not available over JMX", e);
+        }
+    }
+
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * @param stage one of the stage constants
+     * @param start value returned by {@link #start()} when the stage began
+     */
+    public void record(int stage, long start) {
+        long nanos = System.nanoTime() - start;
+        stages[stage].record(nanos);
+        LoginTrace.stage(stage, nanos);
+    }
+
+    static int getStageCount() {
+        return STAGE_NAMES.length;
+    }
+
+    /**
+     * Start the trace of a login if slow logins are recorded.
+     *
+     * @param kind "login" or "getUser"
+     * @return the trace, null if slow logins are not recorded or a trace is already active on this thread
+     */
+    public LoginTrace beginTrace(String kind) {
+        return slowLogins.isEnabled() ? LoginTrace.begin(kind) : null;
+    }
+
+    /**
+     * End the trace of a login and keep it if the login was slow.
+     *
+     * @param trace value returned by {@link #beginTrace(String)}, may be null
+     * @param calls backend calls of the login, may be null
+     */
+    public void endTrace(LoginTrace trace, HttpServletRequest request, BackendCalls calls) {
+        if (trace != null && slowLogins.offer(LoginTrace.end(trace), request, calls)) {
+            log.info("Slow " + trace);
+        }
+    }
+
+    public void loginSucceeded() {
+        successCount.increment();
+    }
+
+    public void loginFailed(String reason) {
+        counter(failedCounts, reason).increment();
+    }
+
+    /**
+     * Add the backend operations of one login or getUser.
+     *
+     * @param calls record of the login, ignored if null (i.e. the login was part of an enclosing record)
+     */
+    public void recordBackendCalls(BackendCalls calls) {
+        if (calls == null) {
+            return;
+        }
+
+        for (Iterator it = calls.getCounts().entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) it.next();
+            counter(backendCounts, entry.getKey()).add(((Integer) entry.getValue()).intValue());
+        }
+        backendRecords.increment();
+        backendReads.add(calls.getReads());
+        backendWrites.add(calls.getWrites());
+        backendTransactions.add(calls.getTransactions());
+
+        long max = maxBackendReads.get();
+        while (calls.getReads() > max && !maxBackendReads.compareAndSet(max, calls.getReads())) {
+            max = maxBackendReads.get();
+        }
+    }
+
+    private static LongAdder counter(ConcurrentMap counters, Object key) {
+        LongAdder count = (LongAdder) counters.get(key);
+        if (count == null) {
+            LongAdder newCount = new LongAdder();
+            count = (LongAdder) counters.putIfAbsent(key, newCount);
+            if (count == null) {
+                count = newCount;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param configuration configuration whose caches are reported by {@link #getCacheSummaries()}, and whose
+     *                      slowlogin.* and provisioning.summary.interval settings take effect
+     */
+    public void setConfiguration(ShibAuthConfiguration configuration) {
+        this.configuration = configuration;
+        slowLogins = slowLogins.resize(configuration.getSlowLoginBufferSize(), configuration.getSlowLoginThreshold());
+        ProvisioningSummary.getInstance().setInterval(configuration.getProvisioningSummaryInterval());
+    }
+
+    /**
+     * @param lastLoginThrottle throttle of the recorded logins, whose counts are reported
+     */
+    public void setLastLoginThrottle(LastLoginThrottle lastLoginThrottle) {
+        this.lastLoginThrottle = lastLoginThrottle;
+    }
+
+    public long getLastLoginRecordedCount() {
+        LastLoginThrottle throttle = lastLoginThrottle;
+        return throttle == null ? 0 : throttle.getRecordedCount();
+    }
+
+    public long getLastLoginSuppressedCount() {
+        LastLoginThrottle throttle = lastLoginThrottle;
+        return throttle == null ? 0 : throttle.getSuppressedCount();
+    }
+
+    public LatencyHistogram getStage(int stage) {
+        return stages[stage];
+    }
+
+    public String[] getStageNames() {
+        return (String[]) STAGE_NAMES.clone();
+    }
+
+    public String[] getStageSummaries() {
+        String[] summaries = new String[stages.length];
+        for (int i = 0; i < stages.length; i++) {
+            summaries[i] = STAGE_NAMES[i] + ": " + stages[i];
+        }
+        return summaries;
+    }
+
+    public long[] getStageCounts() {
+        long[] values = new long[stages.length];
+        for (int i = 0; i < stages.length; i++) {
+            values[i] = stages[i].getCount();
+        }
+        return values;
+    }
+
+    public long[] getStageMeanMicros() {
+        long[] values = new long[stages.length];
+        for (int i = 0; i < stages.length; i++) {
+            values[i] = stages[i].getMeanMicros();
+        }
+        return values;
+    }
+
+    public long[] getStageP99Micros() {
+        long[] values = new long[stages.length];
+        for (int i = 0; i < stages.length; i++) {
+            values[i] = stages[i].getPercentileMicros(99);
+        }
+        return values;
+    }
+
+    public long[] getStageMaxMicros() {
+        long[] values = new long[stages.length];
+        for (int i = 0; i < stages.length; i++) {
+            values[i] = stages[i].getMaxMicros();
+        }
+        return values;
+    }
+
+    public long[] getStageHistogram(String stage) {
+        for (int i = 0; i < STAGE_NAMES.length; i++) {
+            if (STAGE_NAMES[i].equals(stage)) {
+                return stages[i].getBucketCounts();
+            }
+        }
+        return new long[0];
+    }
+
+    public long getLoginSuccessCount() {
+        return successCount.sum();
+    }
+
+    public long getLoginFailedCount() {
+        long total = 0;
+        for (Iterator it = failedCounts.values().iterator(); it.hasNext(); ) {
+            total += ((LongAdder) it.next()).sum();
+        }
+        return total;
+    }
+
+    public String[] getLoginFailedReasons() {
+        Map sorted = new TreeMap(failedCounts);
+        List reasons = new ArrayList();
+        for (Iterator it = sorted.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) it.next();
+            reasons.add(entry.getKey() + "=" + ((LongAdder) entry.getValue()).sum());
+        }
+        return (String[]) reasons.toArray(new String[reasons.size()]);
+    }
+
+    public long getLoginFailedCount(String reason) {
+        LongAdder count = (LongAdder) failedCounts.get(reason);
+        return count == null ? 0 : count.sum();
+    }
+
+    public String[] getBackendCalls() {
+        long records = backendRecords.sum();
+        Map sorted = new TreeMap(backendCounts);
+        List lines = new ArrayList();
+        for (Iterator it = sorted.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) it.next();
+            long count = ((LongAdder) entry.getValue()).sum();
+            lines.add(entry.getKey() + "=" + count + " (" + perRecord(count, records) + " per call)");
+        }
+        return (String[]) lines.toArray(new String[lines.size()]);
+    }
+
+    public long getBackendCallRecords() {
+        return backendRecords.sum();
+    }
+
+    public double getBackendReadsPerCall() {
+        return perRecord(backendReads.sum(), backendRecords.sum());
+    }
+
+    public double getBackendWritesPerCall() {
+        return perRecord(backendWrites.sum(), backendRecords.sum());
+    }
+
+    public double getBackendTransactionsPerCall() {
+        return perRecord(backendTransactions.sum(), backendRecords.sum());
+    }
+
+    public long getMaxBackendReadsPerCall() {
+        return maxBackendReads.get();
+    }
+
+    private static double perRecord(long count, long records) {
+        return records == 0 ? 0 : Math.round(count * 100.0 / records) / 100.0;
+    }
+
+    public SlowLoginRecorder getSlowLoginRecorder() {
+        return slowLogins;
+    }
+
+    public String[] getSlowLogins() {
+        List traces = slowLogins.getTraces();
+        String[] lines = new String[traces.size()];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = traces.get(i).toString();
+        }
+        return lines;
+    }
+
+    public int dumpSlowLogins() {
+        String[] lines = getSlowLogins();
+        StringBuffer sb = new StringBuffer(lines.length + " slow logins (threshold " +
+                slowLogins.getThresholdMillis() + " ms), most recent first:");
+        for (int i = 0; i < lines.length; i++) {
+            sb.append("\n  ").append(lines[i]);
+        }
+        log.info(sb.toString());
+        return lines.length;
+    }
+
+    public long getSlowLoginThresholdMillis() {
+        return slowLogins.getThresholdMillis();
+    }
+
+    public void setSlowLoginThresholdMillis(long thresholdMillis) {
+        slowLogins.setThresholdMillis(thresholdMillis);
+    }
+
+    public void clearSlowLogins() {
+        slowLogins.clear();
+    }
+
+    public String[] getCacheSummaries() {
+        ShibAuthConfiguration base = configuration;
+        if (base == null) {
+            return new String[0];
+        }
+
+        List summaries = new ArrayList();
+        for (Iterator it = getConfigurations().iterator(); it.hasNext(); ) {
+            ShibAuthConfiguration config = (ShibAuthConfiguration) it.next();
+            String prefix = config == base ? "" : "profile " + getProfileValues(base, config) + " ";
+            summaries.add(prefix + "username: " + config.getUsernameCache());
+            summaries.add(prefix + "dynamicroles: " + config.getRolesCache());
+            summaries.add(prefix + "credential: " + config.getCredentialCache());
+        }
+        summaries.add("authChain: " + AuthChain.getStats());
+        summaries.add("lastLogin: " + (lastLoginThrottle == null ? "n/a" : lastLoginThrottle.toString()));
+        return (String[]) summaries.toArray(new String[summaries.size()]);
+    }
+
+    /**
+     * @return the header.profile values that select the given profile of the base configuration
+     */
+    private static List getProfileValues(ShibAuthConfiguration base, ShibAuthConfiguration profile) {
+        List values = new ArrayList();
+        for (Iterator it = base.getProfiles().entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) it.next();
+            if (entry.getValue() == profile) {
+                values.add(entry.getKey());
+            }
+        }
+        Collections.sort(values);
+        return values;
+    }
+
+    public String[] getMapperProfile() {
+        List report = new ArrayList();
+        for (Iterator it = getConfigurations().iterator(); it.hasNext(); ) {
+            ShibAuthConfiguration config = (ShibAuthConfiguration) it.next();
+            List lines = config.getMapperProfiler().getReport();
+            if (!lines.isEmpty() && config != configuration) {
+                report.add("profile of configuration generation " + config.getGeneration() + ":");
+            }
+            report.addAll(lines);
+        }
+        return (String[]) report.toArray(new String[report.size()]);
+    }
+
+    public void resetMapperProfile() {
+        for (Iterator it = getConfigurations().iterator(); it.hasNext(); ) {
+            ((ShibAuthConfiguration) it.next()).getMapperProfiler().reset();
+        }
+    }
+
+    /**
+     * @return the current configuration followed by its profiles, each once
+     */
+    private List getConfigurations() {
+        ShibAuthConfiguration config = configuration;
+        List configs = new ArrayList();
+        if (config != null) {
+            configs.add(config);
+            for (Iterator it = config.getProfiles().values().iterator(); it.hasNext(); ) {
+                Object profile = it.next();
+                if (!configs.contains(profile)) {
+                    configs.add(profile);
+                }
+            }
+        }
+        return configs;
+    }
+
+    public void reset() {
+        for (int i = 0; i < stages.length; i++) {
+            stages[i].reset();
+        }
+        successCount.reset();
+        failedCounts.clear();
+        backendCounts.clear();
+        backendRecords.reset();
+        backendReads.reset();
+        backendWrites.reset();
+        backendTransactions.reset();
+        maxBackendReads.set(0);
+        slowLogins.clear();
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ Copyright (c) 2008-2019, Confluence HTTP Authenticator Team
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice,
+   this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+ * Neither the name of the Confluence HTTP Authenticator Team
+   nor the names of its contributors may be used to endorse or promote
+   products derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package shibauth.confluence.authentication.shibboleth;
+
+/**
+ * Management interface of {@link AuthenticatorStats}, registered as
+ * shibauth.confluence.authentication.shibboleth:type=AuthenticatorStats.
+ */
+public interface AuthenticatorStatsMBean {
+
+    /**
+     * @return names of the timed stages
+     */
+    String[] getStageNames();
+
+    /**
+     * @return one line per stage with count, mean, p50, p99 and max in microseconds
+     */
+    String[] getStageSummaries();
+
+    long[] getStageCounts();
+
+    long[] getStageMeanMicros();
+
+    long[] getStageP99Micros();
+
+    long[] getStageMaxMicros();
+
+    /**
+     * @param stage name of the stage
+     * @return counts per power-of-two microsecond bucket, empty if the stage is unknown
+     */
+    long[] getStageHistogram(String stage);
+
+    long getLoginSuccessCount();
+
+    long getLoginFailedCount();
+
+    /**
+     * @return one "reason=count" entry per loginFailed reason seen
+     */
+    String[] getLoginFailedReasons();
+
+    /**
+     * @return number of failed logins with the given reason
+     */
+    long getLoginFailedCount(String reason);
+
+    /**
+     * @return "service.method=count (average per call)" for each backend operation made by login and getUser calls
+     */
+    String[] getBackendCalls();
+
+    /**
+     * @return number of login and getUser calls whose backend operations were counted
+     */
+    long getBackendCallRecords();
+
+    /**
+     * @return average user directory reads per login or getUser call
+     */
+    double getBackendReadsPerCall();
+
+    /**
+     * @return average user directory writes per login or getUser call
+     */
+    double getBackendWritesPerCall();
+
+    /**
+     * @return average transactions per login or getUser call
+     */
+    double getBackendTransactionsPerCall();
+
+    /**
+     * @return most user directory reads made by a single login or getUser call
+     */
+    long getMaxBackendReadsPerCall();
+
+    /**
+     * @return traces of the most recent logins that took at least SlowLoginThresholdMillis, most recent first
+     */
+    String[] getSlowLogins();
+
+    /**
+     * Write the slow login traces to the log at INFO.
+     *
+     * @return number of traces written
+     */
+    int dumpSlowLogins();
+
+    /**
+     * @return minimum time of a login to keep its trace, 0 if no traces are kept (slowlogin.threshold)
+     */
+    long getSlowLoginThresholdMillis();
+
+    /**
+     * Change the slow login threshold until the configuration is next loaded.
+     */
+    void setSlowLoginThresholdMillis(long thresholdMillis);
+
+    void clearSlowLogins();
+
+    /**
+     * @return successful logins whose last login date and login event were recorded
+     */
+    long getLastLoginRecordedCount();
+
+    /**
+     * @return successful logins that were not recorded, because of update.last.login.date=false or because the user's
+     * login was already recorded within update.last.login.date.interval
+     */
+    long getLastLoginSuppressedCount();
+
+    /**
+     * @return statistics of the caches of the current configuration
+     */
+    String[] getCacheSummaries();
+
+    /**
+     * @return one line per dynamicroles mapper with its invocations, matches and time, most expensive first. Empty
+     * unless dynamicroles.profile is enabled.
+     */
+    String[] getMapperProfile();
+
+    /**
+     * Clear the counters of the dynamicroles mappers.
+     */
+    void resetMapperProfile();
+
+    /**
+     * Clear all counters and histograms.
+     */
+    void reset();
+}
@@ -0,0 +1,234 @@
+/*
+ Copyright (c) 2008-2019, Confluence HTTP Authenticator Team
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice,
+   this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+ * Neither the name of the Confluence HTTP Authenticator Team
+   nor the names of its contributors may be used to endorse or promote
+   products derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package shibauth.confluence.authentication.shibboleth;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Count of the backend operations (Crowd, UserAccessor and GroupManager calls, user lookups and transactions) made by
+ * one login or getUser on the current thread. RemoteUserAuthenticator begins a record for each call, counts every
+ * operation through {@link #wrap(Class, String, Object)} and {@link #count(String)}, and adds the record to
+ * {@link AuthenticatorStats} when done. Records do not nest: while one is active on the thread, {@link #begin()}
+ * returns null and all operations are counted in the active record, so a test can begin its own record around a
+ * scenario to see every call it makes.
+ */
+public class BackendCalls {
+
+    public final static String TRANSACTION = "transaction";
+
+    /**
+     * Names of the service methods that write to the user directory
+     */
+    private final static Set WRITES = new HashSet(Arrays.asList(new String[]{"addUserToGroup", "removeUserFromGroup",
+            "updateUser", "createUser", "createGroup", "removeUser", "removeGroup", "addUser", "addGroup",
+            "addMembership", "removeMembership", "renameUser", "updateUserCredential", "setUserAttribute",
+            "removeUserAttribute", "deactivateUser", "reactivateUser"}));
+
+    private final static ThreadLocal current = new ThreadLocal();
+
+    /**
+     * Map<"service.method", int[1]>, only touched by the thread that owns the record
+     */
+    private final Map counts = new TreeMap();
+
+    /**
+     * Map<service name, Object[]{target, wrapper}> of the services wrapped while this record was active
+     */
+    private final Map wrapped = new HashMap();
+
+    private int reads;
+
+    private int writes;
+
+    private int transactions;
+
+    /**
+     * Start a record on the current thread.
+     *
+     * @return the new record, or null if a record is already active on this thread
+     */
+    public static BackendCalls begin() {
+        if (current.get() != null) {
+            return null;
+        }
+
+        BackendCalls calls = new BackendCalls();
+        current.set(calls);
+        return calls;
+    }
+
+    /**
+     * End a record started by {@link #begin()}.
+     *
+     * @param calls value returned by begin(), may be null
+     * @return calls
+     */
+    public static BackendCalls end(BackendCalls calls) {
+        if (calls != null && current.get() == calls) {
+            current.remove();
+        }
+        return calls;
+    }
+
+    /**
+     * @return the record active on this thread, or null
+     */
+    public static BackendCalls current() {
+        return (BackendCalls) current.get();
+    }
+
+    /**
+     * Count an operation in the record active on this thread, if any. Operations named "transaction" are counted as
+     * transactions, operations whose method is a directory write as writes, and all others as reads.
+     *
+     * @param operation "service.method", or {@link #TRANSACTION}
+     */
+    public static void count(String operation) {
+        BackendCalls calls = (BackendCalls) current.get();
+        if (calls != null) {
+            calls.add(operation);
+        }
+    }
+
+    /**
+     * Wrap a service so that each of its calls is counted as "service.method" in the record active on the calling
+     * thread. Outside of a record the service is returned as is, so accessors can wrap unconditionally. Within a
+     * record, the same wrapper is returned for the same service until the record ends.
+     *
+     * @param type    interface of the service
+     * @param service name of the service used in the operation names, e.g. "crowdService"
+     * @param target  the service, may be null
+     */
+    public static Object wrap(Class type, String service, Object target) {
+        BackendCalls calls = (BackendCalls) current.get();
+        if (target == null || calls == null) {
+            return target;
+        }
+
+        Object[] entry = (Object[]) calls.wrapped.get(service);
+        if (entry == null || entry[0] != target) {
+            entry = new Object[]{target, newWrapper(type, service, target)};
+            calls.wrapped.put(service, entry);
+        }
+        return entry[1];
+    }
+
+    private static Object newWrapper(Class type, final String service, final Object target) {
+        return Proxy.newProxyInstance(type.getClassLoader(), new Class[]{type}, new InvocationHandler() {
+
+            /**
+             * Map<Method, "service.method">, the wrapper is only used by the thread of its record
+             */
+            private final Map operations = new HashMap();
+
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getDeclaringClass() != Object.class) {
+                    String operation = (String) operations.get(method);
+                    if (operation == null) {
+                        operation = service + "." + method.getName();
+                        operations.put(method, operation);
+                    }
+                    count(operation);
+                } else if ("equals".equals(method.getName())) {
+                    return Boolean.valueOf(proxy == args[0]);
+                }
+
+                try {
+                    return method.invoke(target, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getTargetException();
+                }
+            }
+        });
+    }
+
+    private void add(String operation) {
+        int[] count = (int[]) counts.get(operation);
+        if (count == null) {
+            count = new int[1];
+            counts.put(operation, count);
+        }
+        count[0]++;
+
+        if (TRANSACTION.equals(operation)) {
+            transactions++;
+        } else if (WRITES.contains(operation.substring(operation.lastIndexOf('.') + 1))) {
+            writes++;
+        } else {
+            reads++;
+        }
+    }
+
+    /**
+     * @return calls of the operation, e.g. "crowdService.getUser"
+     */
+    public int getCount(String operation) {
+        int[] count = (int[]) counts.get(operation);
+        return count == null ? 0 : count[0];
+    }
+
+    /**
+     * @return Map<"service.method", Integer> of the operations counted, sorted by name
+     */
+    public Map getCounts() {
+        Map copy = new TreeMap();
+        for (Iterator it = counts.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) it.next();
+            copy.put(entry.getKey(), Integer.valueOf(((int[]) entry.getValue())[0]));
+        }
+        return copy;
+    }
+
+    public int getReads() {
+        return reads;
+    }
+
+    public int getWrites() {
+        return writes;
+    }
+
+    public int getTransactions() {
+        return transactions;
+    }
+
+    public String toString() {
+        return "reads=" + reads + ", writes=" + writes + ", transactions=" + transactions + " " + getCounts();
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ Copyright (c) 2008-2019, Confluence HTTP Authenticator Team
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice,
+   this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+ * Neither the name of the Confluence HTTP Authenticator Team
+   nor the names of its contributors may be used to endorse or promote
+   products derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package shibauth.confluence.authentication.shibboleth;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A concurrent cache holding at most a fixed number of entries, with hit and miss counters.
+ * <p/>
+ * Eviction is deliberately simple: when the cache is full, it is cleared before the next entry is added. The
+ * values cached by the authenticator are cheap to recompute compared to the cost of tracking recency on every
+ * lookup, and a cache that owns a configuration snapshot is thrown away with it on reload anyway.
+ */
+public class BoundedCache {
+
+    private final ConcurrentMap map;
+
+    private final int maxSize;
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * @param maxSize maximum number of entries, 0 or less disables the cache
+     */
+    public BoundedCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.map = new ConcurrentHashMap(Math.max(16, Math.min(maxSize, 1024)));
+    }
+
+    /**
+     * @return the cached value or null if there is none
+     */
+    public Object get(Object key) {
+        if (maxSize <= 0) {
+            return null;
+        }
+
+        Object value = map.get(key);
+        if (value == null) {
+            missCount.incrementAndGet();
+        } else {
+            hitCount.incrementAndGet();
+        }
+
+        return value;
+    }
+
+    /**
+     * Cache a value. Null keys and values are not cached.
+     */
+    public void put(Object key, Object value) {
+        if (maxSize <= 0 || key == null || value == null) {
+            return;
+        }
+
+        if (map.size() >= maxSize) {
+            map.clear();
+        }
+
+        map.put(key, value);
+    }
+
+    public void remove(Object key) {
+        if (key != null) {
+            map.remove(key);
+        }
+    }
+
+    public void clear() {
+        map.clear();
+    }
+
+    public boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @return hits divided by lookups, 0 if there was no lookup yet
+     */
+    public double getHitRatio() {
+        long hits = hitCount.get();
+        long lookups = hits + missCount.get();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    public String toString() {
+        return "size=" + size() + "/" + maxSize + ", hits=" + getHitCount() + ", misses=" + getMissCount() +
+                ", hitRatio=" + getHitRatio();
+    }
+}
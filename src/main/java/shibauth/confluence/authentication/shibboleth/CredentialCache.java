@@ -0,0 +1,185 @@
+/*
+ Copyright (c) 2008-2019, Confluence HTTP Authenticator Team
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice,
+   this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+ * Neither the name of the Confluence HTTP Authenticator Team
+   nor the names of its contributors may be used to endorse or promote
+   products derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package shibauth.confluence.authentication.shibboleth;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Short-lived cache of successful password verifications, so that clients sending Basic Auth on every request
+ * (e.g. REST integrations) are verified against the directory once per time-to-live instead of on every call.
+ * <p/>
+ * Entries are keyed by the username and a SHA-256 hash of a random per-JVM salt, the username and the password;
+ * the password itself is never stored. Only successful verifications are cached. The caller must still check that
+ * the user is active on a hit and call invalidate() if not.
+ */
+public class CredentialCache {
+
+    private final static byte[] salt = new byte[32];
+
+    static {
+        new SecureRandom().nextBytes(salt);
+    }
+
+    private final static char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final long ttl;
+
+    /**
+     * Map of key to Long expiry time
+     */
+    private final BoundedCache cache;
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    private final AtomicLong expiredCount = new AtomicLong();
+
+    private final AtomicLong invalidatedCount = new AtomicLong();
+
+    /**
+     * @param ttl     time in milliseconds a verification stays valid, 0 or less disables the cache
+     * @param maxSize maximum number of entries, 0 or less disables the cache
+     */
+    public CredentialCache(long ttl, int maxSize) {
+        this.ttl = ttl;
+        this.cache = new BoundedCache(ttl > 0 ? maxSize : 0);
+    }
+
+    public boolean isEnabled() {
+        return cache.isEnabled();
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    public int getMaxSize() {
+        return cache.getMaxSize();
+    }
+
+    /**
+     * @return the key for the credentials
+     */
+    public String getKey(String username, String password) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+
+        md.update(salt);
+        try {
+            md.update(username.getBytes("UTF-8"));
+            md.update((byte) 0);
+            md.update(password.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+
+        byte[] bytes = md.digest();
+        StringBuffer sb = new StringBuffer(username.length() + 1 + bytes.length * 2);
+        sb.append(username).append(':');
+        for (int i = 0; i < bytes.length; i++) {
+            sb.append(HEX[(bytes[i] >> 4) & 0xf]).append(HEX[bytes[i] & 0xf]);
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * @param key key from getKey()
+     * @param now current time in milliseconds
+     * @return whether the credentials were verified less than the time-to-live ago
+     */
+    public boolean isVerified(String key, long now) {
+        Long expires = (Long) cache.get(key);
+
+        if (expires == null) {
+            missCount.incrementAndGet();
+            return false;
+        }
+
+        if (expires.longValue() <= now) {
+            cache.remove(key);
+            expiredCount.incrementAndGet();
+            return false;
+        }
+
+        hitCount.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Remember successfully verified credentials.
+     */
+    public void verified(String key, long now) {
+        cache.put(key, Long.valueOf(now + ttl));
+    }
+
+    /**
+     * Forget credentials, e.g. because the user was deactivated.
+     */
+    public void invalidate(String key) {
+        cache.remove(key);
+        invalidatedCount.incrementAndGet();
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getExpiredCount() {
+        return expiredCount.get();
+    }
+
+    public long getInvalidatedCount() {
+        return invalidatedCount.get();
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    public String toString() {
+        return "size=" + size() + "/" + getMaxSize() + ", ttl=" + ttl + ", hits=" + getHitCount() + ", misses=" +
+                getMissCount() + ", expired=" + getExpiredCount() + ", invalidated=" + getInvalidatedCount();
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ Copyright (c) 2008-2019, Confluence HTTP Authenticator Team
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice,
+   this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+ * Neither the name of the Confluence HTTP Authenticator Team
+   nor the names of its contributors may be used to endorse or promote
+   products derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package shibauth.confluence.authentication.shibboleth;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.servlet.http.HttpServletRequest;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Derives the dynamic roles (groups) of a user from the dynamicroles.header.* values using the configured
+ * dynamicroles.mapper.* mappers.
+ * <p/>
+ * Mappers with retract=true or force=true take part as described in RoleDecision, so the outcome is a set of roles
+ * to add and a set of roles to retract.
+ * <p/>
+ * Many users present exactly the same set of values (e.g. all first-year students of one program), so derived
+ * decisions are cached in the configuration snapshot, keyed by a digest of all configured header values. A login
+ * whose values match a cached entry skips tokenizing, UTF-8 conversion and mapping. A reloaded configuration is a
+ * new snapshot with an empty cache. Decisions that are incomplete because a mapper failed are not cached.
+ */
+public class DynamicRoles {
+
+    private final static Log log = LogFactory.getLog(DynamicRoles.class);
+
+    private final static char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Read the values of the given headers from the request. A request attribute takes precedence over the
+     * header; multiple headers with the same name are concatenated.
+     *
+     * @param request     request to read from
+     * @param headerNames names of the dynamicroles headers
+     * @return one value per header name, in the same order, never null
+     */
+    public static String[] getHeaderValues(HttpServletRequest request, String[] headerNames) {
+        String[] headerValues = new String[headerNames.length];
+
+        for (int i = 0; i < headerNames.length; i++) {
+            String headerName = headerNames[i];
+            String headerValuesString = null;
+
+            Object attr = request.getAttribute(headerName);
+            if (attr instanceof String) {
+                headerValuesString = (String) attr;
+            }
+
+            if (headerValuesString == null) {
+                StringBuffer sb = new StringBuffer();
+                for (Enumeration en = request.getHeaders(headerName); en != null && en.hasMoreElements(); ) {
+                    sb.append(en.nextElement().toString());
+                }
+                headerValuesString = sb.toString();
+            }
+
+            headerValues[i] = headerValuesString;
+        }
+
+        return headerValues;
+    }
+
+    /**
+     * Get the roles to add and retract for the given header values, from the cache of the configuration if possible.
+     *
+     * @param headerNames  names of the dynamicroles headers, see ShibAuthConfiguration.getGroupMappingHeaders()
+     * @param headerValues value of each header
+     * @param config       configuration snapshot to use
+     * @return resolved decision
+     */
+    public static RoleDecision getRoles(String[] headerNames, String[] headerValues, ShibAuthConfiguration config) {
+        BoundedCache cache = config.getRolesCache();
+        if (!cache.isEnabled()) {
+            return deriveRoles(headerNames, headerValues, config);
+        }
+
+        String key = digest(headerNames, headerValues);
+        RoleDecision roles = (RoleDecision) cache.get(key);
+
+        if (roles == null) {
+            roles = deriveRoles(headerNames, headerValues, config);
+            if (!roles.isIncomplete()) {
+                cache.put(key, roles);
+            }
+        } else {
+            LoginTrace.rolesCached();
+            if (TargetedTrace.isDebugEnabled(log)) {
+                TargetedTrace.debug(log, "Got cached roles " + roles + " for header values digest " + key + " (" + cache + ")");
+            }
+        }
+
+        return roles;
+    }
+
+    /**
+     * Run the header values through the mappers, in one pass. A mapper that fails on a value is skipped and the
+     * decision is marked incomplete. A mapper merged by dynamicroles.optimize stands for all the mappers it was
+     * merged from, so none of their roles are voted for that value.
+     *
+     * @return resolved decision
+     */
+    public static RoleDecision deriveRoles(String[] headerNames, String[] headerValues, ShibAuthConfiguration config) {
+        RoleDecision decision = new RoleDecision();
+        int mappedValues = 0;
+        int evaluations = 0;
+        int matches = 0;
+
+        //process the headers by looking up only those list of registered headers
+        for (int h = 0; h < headerNames.length; h++) {
+            String headerName = headerNames[h];
+
+            //shib sends values in semicolon separated, so split it up too
+            List values = StringUtil.toListOfNonEmptyStringsDelimitedByCommaOrSemicolon(headerValues[h]);
+            mappedValues += values.size();
+            for (int j = 0; j < values.size(); j++) {
+                String headerValue = (String) values.get(j);
+                if (config.isConvertToUTF8()) {
+                    String tmp = StringUtil.convertToUTF8(headerValue);
+                    if (tmp != null) {
+                        headerValue = tmp;
+                    }
+                }
+
+                if (TargetedTrace.isDebugEnabled(log)) {
+                    TargetedTrace.debug(log, "Processing dynamicroles header=" + headerName + ", value=" + headerValue);
+                }
+
+                Collection mappers = config.getGroupMappings(headerName);
+                boolean found = false;
+
+                for (Iterator mapperIt = mappers.iterator(); mapperIt.hasNext(); ) {
+                    GroupMapper mapper = (GroupMapper) mapperIt.next();
+
+                    // We may get multiple groups returned by a single matched, e.g. matching "XXX" --> "A, B, C".
+                    String[] results;
+                    try {
+                        results = mapper.processToGroups(headerValue);
+                    } catch (RuntimeException e) {
+                        // e.g. a transform referring to a regex group that did not take part in the match
+                        decision.markIncomplete();
+                        if (ProvisioningSummary.getInstance().mapperError()) {
+                            log.error("Mapper " + mapper + " failed on value '" + headerValue + "', skipping it." +
+                                    " Roles are not retracted or purged on logins with a failed mapper.", e);
+                        } else if (TargetedTrace.isDebugEnabled(log)) {
+                            TargetedTrace.debug(log, "Mapper " + mapper + " failed on value '" + headerValue + "'", e);
+                        }
+                        continue;
+                    }
+                    evaluations++;
+                    if (results.length > 0) {
+                        matches++;
+                    }
+
+                    for (int i = 0; i < results.length; i++) {
+                        String result = results[i];
+
+                        if (result.length() != 0) {
+                            if (config.isOutputToLowerCase()) {
+                                result = result.toLowerCase();
+                            }
+
+                            decision.vote(result, mapper);
+
+                            if (TargetedTrace.isDebugEnabled(log)) {
+                                TargetedTrace.debug(log, "Found role mapping from '" + headerValue + "' to '" + result + "'" +
+                                        (mapper.isRetract() ? " (retract)" : "") + (mapper.isForce() ? " (force)" : ""));
+                            }
+                            found = true;
+                        }
+                    }
+                }
+
+                if (TargetedTrace.isDebugEnabled(log) && !found) {
+                    TargetedTrace.debug(log, "No mapper capable of processing role value=" + headerValue);
+                }
+            }
+        }
+
+        LoginTrace.mapped(mappedValues, evaluations, matches);
+        return decision.resolve();
+    }
+
+    /**
+     * SHA-256 over the header names and values, as UTF-16 so that no two different inputs collide by encoding.
+     */
+    static String digest(String[] headerNames, String[] headerValues) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+
+        for (int i = 0; i < headerNames.length; i++) {
+            update(md, headerNames[i]);
+            update(md, headerValues[i]);
+        }
+
+        byte[] bytes = md.digest();
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+
+        return new String(hex);
+    }
+
+    private static void update(MessageDigest md, String s) {
+        String value = s == null ? "" : s;
+        byte[] bytes = new byte[value.length() * 2 + 4];
+
+        // length prefix, so that the boundary between two values is unambiguous
+        bytes[0] = (byte) (value.length() >> 24);
+        bytes[1] = (byte) (value.length() >> 16);
+        bytes[2] = (byte) (value.length() >> 8);
+        bytes[3] = (byte) value.length();
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            bytes[4 + i * 2] = (byte) (c >> 8);
+            bytes[5 + i * 2] = (byte) c;
+        }
+
+        md.update(bytes);
+    }
+}
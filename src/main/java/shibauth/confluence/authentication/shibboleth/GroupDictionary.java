@@ -0,0 +1,180 @@
+/*
+ Copyright (c) 2008-2019, Confluence HTTP Authenticator Team
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice,
+   this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+ * Neither the name of the Confluence HTTP Authenticator Team
+   nor the names of its contributors may be used to endorse or promote
+   products derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package shibauth.confluence.authentication.shibboleth;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Global dictionary of group names, assigning each name a dense int id so that sets of groups can be kept as
+ * BitSets and compared with word-level bit operations instead of string comparisons.
+ * <p/>
+ * Group names in Confluence are case-insensitive, so names are case folded once when they are looked up: names
+ * differing only in case get the same id. The name returned for an id is the first spelling seen.
+ * <p/>
+ * Lookups of known names are lock-free; assigning a new id is synchronized, which only happens the first time a
+ * group name is seen. Ids are never reused, the dictionary grows with the number of distinct group names.
+ */
+public class GroupDictionary {
+
+    private final static GroupDictionary instance = new GroupDictionary();
+
+    /**
+     * Map<folded name, Integer id>
+     */
+    private final Map ids = new ConcurrentHashMap();
+
+    /**
+     * Names by id, replaced by a larger copy when full. Each name is set with a volatile write before its id is put in
+     * the map, and a larger copy already holds every name when it is published, so a reader that has an id always
+     * finds its name.
+     */
+    private volatile AtomicReferenceArray names = new AtomicReferenceArray(256);
+
+    private int size;
+
+    public static GroupDictionary getInstance() {
+        return instance;
+    }
+
+    /**
+     * @param name group name
+     * @return id of the name, assigned if the name was not seen before
+     */
+    public int getId(String name) {
+        String folded = fold(name);
+        Integer id = (Integer) ids.get(folded);
+
+        if (id == null) {
+            synchronized (this) {
+                id = (Integer) ids.get(folded);
+
+                if (id == null) {
+                    if (size == names.length()) {
+                        AtomicReferenceArray larger = new AtomicReferenceArray(size * 2);
+                        for (int i = 0; i < size; i++) {
+                            larger.set(i, names.get(i));
+                        }
+                        names = larger;
+                    }
+
+                    // publish the name before the id, so that getName() of an id from the map never sees null
+                    names.set(size, name);
+                    id = Integer.valueOf(size++);
+                    ids.put(folded, id);
+                }
+            }
+        }
+
+        return id.intValue();
+    }
+
+    /**
+     * Look up a name without assigning an id, for names that only need to be compared with known sets, e.g. all the
+     * groups of a user.
+     *
+     * @param name group name
+     * @return id of the name, -1 if the name was not seen before
+     */
+    public int find(String name) {
+        Integer id = (Integer) ids.get(fold(name));
+        return id == null ? -1 : id.intValue();
+    }
+
+    /**
+     * @param id id returned by getId()
+     * @return the name, as first seen
+     */
+    public String getName(int id) {
+        return (String) names.get(id);
+    }
+
+    /**
+     * @return number of distinct names
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @param names group names
+     * @return set of their ids
+     */
+    public BitSet encode(Collection names) {
+        BitSet set = new BitSet();
+
+        for (Iterator it = names.iterator(); it.hasNext(); ) {
+            String name = it.next().toString().trim();
+            if (name.length() != 0) {
+                set.set(getId(name));
+            }
+        }
+
+        return set;
+    }
+
+    /**
+     * @param set set of ids
+     * @return names of the ids, in id order
+     */
+    public List decode(BitSet set) {
+        List list = new ArrayList(set.cardinality());
+        AtomicReferenceArray names = this.names;
+
+        for (int id = set.nextSetBit(0); id >= 0; id = set.nextSetBit(id + 1)) {
+            list.add(names.get(id));
+        }
+
+        return list;
+    }
+
+    /**
+     * Case fold a name, so that names that are equal ignoring case are equal after folding. This is the same
+     * comparison as String.equalsIgnoreCase.
+     */
+    static String fold(String name) {
+        char[] chars = null;
+
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            char f = Character.toLowerCase(Character.toUpperCase(c));
+
+            if (f != c) {
+                if (chars == null) {
+                    chars = name.toCharArray();
+                }
+                chars[i] = f;
+            }
+        }
+
+        return chars == null ? name : new String(chars);
+    }
+}
@@ -32,6 +32,7 @@ package shibauth.confluence.authentication.shibboleth;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -74,19 +75,50 @@ import java.util.regex.Pattern;
  * </ol>
  * <p/>
  * Two or more mappers that produce the same output (group) and have their "force"
- * attribute specified to be true will have undefined result (1 of these
- * mappers will win, but dont know which one ;)
- * <p/>
- * This mapper, when placed in sorted list, will be placed at the back of the
- * list if its 'force' attribute is set to true.
+ * attribute specified to be true, but disagree on "retract", will add the user
+ * to the group. See RoleDecision.
  */
 public class GroupMapper {
     private String matchRegex;
     private String transform;
     private String name;
     private boolean sensitive = true;
+    private boolean retract;
+    private boolean force;
     private final static Log log = LogFactory.getLog(GroupMapper.class);
 
+    /**
+     * Result of processToGroups() when nothing matched, also stored in the memo
+     */
+    private final static String[] NO_GROUPS = new String[0];
+
+    /**
+     * Compiled match regex, null until first used or after the regex or sensitivity changed
+     */
+    private volatile Pattern pattern;
+
+    /**
+     * The match regex if it is case sensitive and has no regex metacharacters, so that a plain equals() decides
+     * the match, otherwise null
+     */
+    private String literal;
+
+    /**
+     * Literal text every value matching the match regex starts with (ignoring case if not case sensitive), null if
+     * there is none
+     */
+    private String prefix;
+
+    /**
+     * Memo of input value to output groups, disabled unless set
+     */
+    private BoundedCache memo = new BoundedCache(0);
+
+    /**
+     * Counters of the evaluations by processToGroups(), null unless dynamicroles.profile is enabled
+     */
+    private volatile MapperProfile profile;
+
     /**
      * Make a new group mapper processor. Pay attention to the inputs as
      * they carry specific meanings on null or empty strings.
@@ -104,6 +136,7 @@ public class GroupMapper {
         setMatchRegex(match);
         setTransform(transform);
         this.sensitive = sensitive;
+        updateLiteral();
     }
 
     public boolean isCaseSensitive() {
@@ -112,6 +145,78 @@ public class GroupMapper {
 
     public void setCaseSensitive(boolean sensitive) {
         this.sensitive = sensitive;
+        pattern = null;
+        updateLiteral();
+        memo.clear();
+    }
+
+    public boolean isRetract() {
+        return retract;
+    }
+
+    public void setRetract(boolean retract) {
+        this.retract = retract;
+    }
+
+    public boolean isForce() {
+        return force;
+    }
+
+    public void setForce(boolean force) {
+        this.force = force;
+    }
+
+    public BoundedCache getMemo() {
+        return memo;
+    }
+
+    /**
+     * @param memo memo of input value to output groups used by processToGroups(), must not be shared with
+     *             another mapper
+     */
+    public void setMemo(BoundedCache memo) {
+        this.memo = memo;
+    }
+
+    public MapperProfile getProfile() {
+        return profile;
+    }
+
+    /**
+     * @param profile counters to record the evaluations by processToGroups() in, null to stop profiling
+     */
+    public void setProfile(MapperProfile profile) {
+        this.profile = profile;
+    }
+
+    /**
+     * Like process(), but with the output split into groups. Outputs are memoized per input value if a memo is set.
+     *
+     * @param value input value
+     * @return the groups, an empty array if the value did not match. Callers must not modify it.
+     */
+    public String[] processToGroups(String value) {
+        MapperProfile profile = this.profile;
+        if (profile == null) {
+            return toGroups(value);
+        }
+
+        long start = System.nanoTime();
+        String[] groups = toGroups(value);
+        profile.record(System.nanoTime() - start, groups.length > 0, value);
+        return groups;
+    }
+
+    private String[] toGroups(String value) {
+        String[] groups = (String[]) memo.get(value);
+
+        if (groups == null) {
+            List results = StringUtil.toListOfNonEmptyStringsDelimitedByCommaOrSemicolon(process(value));
+            groups = results.isEmpty() ? NO_GROUPS : (String[]) results.toArray(new String[results.size()]);
+            memo.put(value, groups);
+        }
+
+        return groups;
     }
 
     /**
@@ -151,25 +256,31 @@ public class GroupMapper {
             }
         }
 
-        String regex = matchRegex;
-        //accept any input
-        if (matchRegex == null) {
-            regex = ".*";
+        //a literal match regex only matches itself
+        if (literal != null && !literal.equals(value)) {
+            if (TargetedTrace.isDebugEnabled(log)) {
+                TargetedTrace.debug(log, "Regexp '" + literal + "' did not match value='" + value + "'");
+            }
+            return null;
         }
 
-        //perform matches first
-        Pattern p = null;
-        if (isCaseSensitive()) {
-            p = Pattern.compile(regex);
-        } else {
-            p = Pattern.compile(regex, Pattern.CASE_INSENSITIVE);
+        //a value not starting with the literal prefix of the match regex cannot match it
+        if (prefix != null && !value.regionMatches(!sensitive, 0, prefix, 0, prefix.length())) {
+            if (TargetedTrace.isDebugEnabled(log)) {
+                TargetedTrace.debug(log, "Regexp '" + matchRegex + "' did not match value='" + value + "'");
+            }
+            return null;
         }
 
+        //perform matches first
+        Pattern p = getPattern();
+        String regex = p.pattern();
+
         Matcher m = p.matcher(value);
         if (!m.matches()) {
             // this has been helpful for users that are debugging their regexp
-            if (log.isDebugEnabled()) {
-                log.debug("Regexp '" + regex + "' did not match value='" + value + "'");
+            if (TargetedTrace.isDebugEnabled(log)) {
+                TargetedTrace.debug(log, "Regexp '" + regex + "' did not match value='" + value + "'");
             }
             return null;
         }
@@ -182,8 +293,8 @@ public class GroupMapper {
         }
 
         for (int i = m.groupCount(); i > 0; i--) {
-            if (log.isDebugEnabled()) {
-                log.debug("The group identified $" + i + "=" + m.group(i));
+            if (TargetedTrace.isDebugEnabled(log)) {
+                TargetedTrace.debug(log, "The group identified $" + i + "=" + m.group(i));
             }
 
             t = t.replaceAll("\\$" + i, m.group(i));
@@ -192,13 +303,93 @@ public class GroupMapper {
         //in case someone uses $0
         t = t.replaceAll("\\$0", m.group(0));
 
-        if (log.isDebugEnabled()) {
-            log.debug("Converted: value=" + value + " to group=" + t);
+        if (TargetedTrace.isDebugEnabled(log)) {
+            TargetedTrace.debug(log, "Converted: value=" + value + " to group=" + t);
         }
 
         return t;
     }
 
+    /**
+     * @return whether the match regex is a case sensitive literal, i.e. is only matched by an equal value
+     */
+    public boolean isLiteral() {
+        return literal != null;
+    }
+
+    /**
+     * @return literal text every matching value starts with, null if there is none
+     */
+    public String getLiteralPrefix() {
+        return prefix;
+    }
+
+    private void updateLiteral() {
+        String regex = matchRegex;
+        literal = null;
+        prefix = null;
+
+        // alternatives may start differently
+        if (regex == null || regex.indexOf('|') >= 0) {
+            return;
+        }
+
+        StringBuffer sb = new StringBuffer();
+        boolean escaped = false;
+        int i = regex.startsWith("^") ? 1 : 0;
+
+        while (i < regex.length()) {
+            char c = regex.charAt(i);
+
+            if (c == '\\' && i + 1 < regex.length() && !Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                // escaped punctuation, e.g. "\:" or "\."
+                sb.append(regex.charAt(i + 1));
+                escaped = true;
+                i += 2;
+            } else if ("\\[](){}.*+?^$|".indexOf(c) < 0) {
+                sb.append(c);
+                i++;
+            } else {
+                break;
+            }
+        }
+
+        if (i == regex.length()) {
+            if (sensitive && !escaped && !regex.startsWith("^")) {
+                literal = regex;
+            }
+        } else if ("*?{".indexOf(regex.charAt(i)) >= 0 && sb.length() > 0) {
+            // the last character is optional or repeated
+            sb.setLength(sb.length() - 1);
+        }
+
+        if (sb.length() > 0) {
+            prefix = sb.toString();
+        }
+    }
+
+    private Pattern getPattern() {
+        Pattern p = pattern;
+
+        if (p == null) {
+            String regex = matchRegex;
+            //accept any input
+            if (matchRegex == null) {
+                regex = ".*";
+            }
+
+            if (isCaseSensitive()) {
+                p = Pattern.compile(regex);
+            } else {
+                p = Pattern.compile(regex, Pattern.CASE_INSENSITIVE);
+            }
+
+            pattern = p;
+        }
+
+        return p;
+    }
+
     /**
      * Simply return the label/name of this group mapper
      */
@@ -220,6 +411,9 @@ public class GroupMapper {
         }
 
         matchRegex = regex;
+        pattern = null;
+        updateLiteral();
+        memo.clear();
     }
 
     public void setTransform(String transform) {
@@ -228,5 +422,6 @@ public class GroupMapper {
         }
 
         this.transform = transform;
+        memo.clear();
     }
 }
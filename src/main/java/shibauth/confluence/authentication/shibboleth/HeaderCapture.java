@@ -0,0 +1,309 @@
+/*
+ Copyright (c) 2008-2019, Confluence HTTP Authenticator Team
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice,
+   this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+ * Neither the name of the Confluence HTTP Authenticator Team
+   nor the names of its contributors may be used to endorse or promote
+   products derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package shibauth.confluence.authentication.shibboleth;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records the headers of a sample of logins to a rotating file, so that real header sets (e.g. users with very large
+ * entitlement sets) can be replayed against another configuration or build, see capture.file.
+ * <p/>
+ * The remote user is never written as is, it is replaced by a keyed hash (HMAC-SHA256) so the same user can be
+ * recognized within a corpus without being identified. The email and full name headers are not captured. With the
+ * same capture.key, the same user gets the same hash across restarts.
+ * <p/>
+ * Each record is one line: the time in milliseconds, then name=value for each header, separated by tabs. Backslash,
+ * tab, carriage return and newline in values are escaped with a backslash.
+ * <p/>
+ * Records are written and flushed on the login thread while holding the lock of the capture, so that a record is
+ * complete in the file as soon as the login returns. Captured logins therefore wait for each other's disk writes; keep
+ * the sample rate low enough that this does not matter (the default of 1% does not), and only capture every login
+ * for short periods. Once closed, e.g. because the configuration was reloaded, nothing more is captured.
+ */
+public class HeaderCapture {
+
+    private final static Log log = LogFactory.getLog(HeaderCapture.class);
+
+    private final static char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final File file;
+
+    private final double sampleRate;
+
+    private final byte[] key;
+
+    private final long maxSize;
+
+    private final int maxFiles;
+
+    private final AtomicLong capturedCount = new AtomicLong();
+
+    private final AtomicLong failedCount = new AtomicLong();
+
+    private Writer writer;
+
+    private long size;
+
+    private boolean closed;
+
+    /**
+     * Disabled capture.
+     */
+    public HeaderCapture() {
+        this(null, 0, null, 0, 0);
+    }
+
+    /**
+     * @param file       file to write to, rotated to file.1, file.2, ... once larger than maxSize
+     * @param sampleRate fraction of logins to capture, between 0 and 1
+     * @param key        key of the hash of the remote user, random if null
+     * @param maxSize    maximum size of each file in characters (bytes for ASCII headers)
+     * @param maxFiles   number of rotated files to keep besides the current one
+     */
+    public HeaderCapture(File file, double sampleRate, byte[] key, long maxSize, int maxFiles) {
+        this.file = file;
+        this.sampleRate = sampleRate;
+        this.maxSize = maxSize;
+        this.maxFiles = maxFiles;
+
+        if (key == null) {
+            key = new byte[32];
+            new SecureRandom().nextBytes(key);
+        }
+        this.key = key;
+    }
+
+    public boolean isEnabled() {
+        return file != null && sampleRate > 0;
+    }
+
+    /**
+     * @return true if the current login should be captured
+     */
+    public boolean sample() {
+        return isEnabled() && (sampleRate >= 1 || ThreadLocalRandom.current().nextDouble() < sampleRate);
+    }
+
+    /**
+     * Append a record. I/O errors are logged and counted, never thrown.
+     *
+     * @param remoteUserHeader name of the remote user header
+     * @param remoteUser       raw remote user, written as its keyed hash
+     * @param names            names of the other headers to record
+     * @param values           their values, in the same order
+     */
+    public void capture(String remoteUserHeader, String remoteUser, String[] names, String[] values) {
+        StringBuffer sb = new StringBuffer();
+        sb.append(System.currentTimeMillis());
+        sb.append('\t').append(remoteUserHeader).append('=').append(anonymize(remoteUser));
+        for (int i = 0; i < names.length; i++) {
+            sb.append('\t').append(names[i]).append('=');
+            escape(values[i], sb);
+        }
+        sb.append('\n');
+
+        String record = sb.toString();
+        synchronized (this) {
+            if (closed) {
+                // logins that still use the configuration this capture belonged to before a reload
+                return;
+            }
+
+            try {
+                if (writer == null || size + record.length() > maxSize) {
+                    rotate();
+                }
+                writer.write(record);
+                writer.flush();
+                size += record.length();
+                capturedCount.incrementAndGet();
+            } catch (IOException e) {
+                failedCount.incrementAndGet();
+                log.warn("Could not write header capture to " + file, e);
+                closeWriter();
+            }
+        }
+    }
+
+    /**
+     * @return hex of the first 16 bytes of HMAC-SHA256 of the value, or an empty string for null
+     */
+    public String anonymize(String value) {
+        if (value == null) {
+            return "";
+        }
+
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            byte[] hash = mac.doFinal(value.getBytes("UTF-8"));
+
+            char[] hex = new char[32];
+            for (int i = 0; i < 16; i++) {
+                hex[i * 2] = HEX[(hash[i] >> 4) & 0xf];
+                hex[i * 2 + 1] = HEX[hash[i] & 0xf];
+            }
+            return new String(hex);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is not available", e);
+        }
+    }
+
+    private void rotate() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+
+            for (int i = maxFiles; i > 0; i--) {
+                File from = i == 1 ? file : new File(file.getPath() + "." + (i - 1));
+                File to = new File(file.getPath() + "." + i);
+                if (from.exists()) {
+                    to.delete();
+                    from.renameTo(to);
+                }
+            }
+
+            if (maxFiles <= 0) {
+                file.delete();
+            }
+        }
+
+        size = file.length();
+        writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+    }
+
+    /**
+     * Close the file for good, later captures are ignored.
+     */
+    public synchronized void close() {
+        closed = true;
+        closeWriter();
+    }
+
+    /**
+     * Close the file, the next capture opens it again.
+     */
+    private void closeWriter() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                log.warn("Could not close header capture " + file, e);
+            }
+            writer = null;
+        }
+    }
+
+    public long getCapturedCount() {
+        return capturedCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    public String toString() {
+        return "file=" + file + ", sampleRate=" + sampleRate + ", captured=" + capturedCount.get() + ", failed=" +
+                failedCount.get();
+    }
+
+    static void escape(String value, StringBuffer sb) {
+        if (value == null) {
+            return;
+        }
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+    }
+
+    static String unescape(String value) {
+        StringBuffer sb = new StringBuffer(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                sb.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Parse a record written by {@link #capture(String, String, String[], String[])}.
+     *
+     * @return the header names and values, as {name, value} pairs in the order they were written
+     */
+    public static List parse(String record) {
+        List headers = new ArrayList();
+        String[] fields = record.split("\t");
+
+        // fields[0] is the time
+        for (int i = 1; i < fields.length; i++) {
+            int eq = fields[i].indexOf('=');
+            if (eq > 0) {
+                headers.add(new String[]{fields[i].substring(0, eq), unescape(fields[i].substring(eq + 1))});
+            }
+        }
+
+        return headers;
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ Copyright (c) 2008-2019, Confluence HTTP Authenticator Team
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice,
+   this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+ * Neither the name of the Confluence HTTP Authenticator Team
+   nor the names of its contributors may be used to endorse or promote
+   products derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package shibauth.confluence.authentication.shibboleth;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The JFR event classes behind {@link PipelineEvents}. Only loaded once PipelineEvents found jdk.jfr.Event, so the
+ * authenticator still runs on JVMs without JFR.
+ * <p/>
+ * The events are disabled and without stack traces unless a recording's settings enable them, so the default and
+ * profile settings of a continuous recording do not record them.
+ */
+class JfrEvents {
+
+    private final static char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * {userid, hash} of the last userid hashed on this thread, so the events of one login hash the userid once
+     */
+    private final static ThreadLocal lastHash = new ThreadLocal() {
+        protected Object initialValue() {
+            return new String[2];
+        }
+    };
+
+    static Object begin(int stage) {
+        StageEvent event;
+        switch (stage) {
+            case PipelineEvents.HEADER_SNAPSHOT:
+                event = new HeaderSnapshot();
+                break;
+            case PipelineEvents.USERNAME_NORMALIZATION:
+                event = new UsernameNormalization();
+                break;
+            case PipelineEvents.ROLE_DERIVATION:
+                event = new RoleDerivation();
+                break;
+            case PipelineEvents.USER_CREATE:
+                event = new UserCreate();
+                break;
+            case PipelineEvents.USER_UPDATE:
+                event = new UserUpdate();
+                break;
+            case PipelineEvents.MEMBERSHIP_SYNC:
+                event = new MembershipSync();
+                break;
+            default:
+                event = new RolePurge();
+        }
+
+        if (!event.isEnabled()) {
+            return null;
+        }
+
+        event.begin();
+        return event;
+    }
+
+    static void commit(Object o, String userid, int valueCount, String outcome) {
+        StageEvent event = (StageEvent) o;
+        event.end();
+        if (event.shouldCommit()) {
+            event.useridHash = cachedHash(userid);
+            event.valueCount = valueCount;
+            event.outcome = outcome;
+            event.commit();
+        }
+    }
+
+    private static String cachedHash(String userid) {
+        if (userid == null) {
+            return null;
+        }
+
+        String[] last = (String[]) lastHash.get();
+        if (!userid.equals(last[0])) {
+            last[1] = hash(userid);
+            last[0] = userid;
+        }
+        return last[1];
+    }
+
+    /**
+     * @return first 16 hex digits of the SHA-256 of the userid, so recordings can be shared without the userids but
+     * the events of one user can still be told apart
+     */
+    static String hash(String userid) {
+        if (userid == null) {
+            return null;
+        }
+
+        try {
+            byte[] bytes = MessageDigest.getInstance("SHA-256").digest(userid.getBytes("UTF-8"));
+            char[] chars = new char[16];
+            for (int i = 0; i < 8; i++) {
+                chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+                chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+            }
+            return new String(chars);
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256 and UTF-8
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Category({"Confluence", "HTTP Authenticator"})
+    @Enabled(false)
+    @StackTrace(false)
+    abstract static class StageEvent extends Event {
+
+        @Label("Userid Hash")
+        @Description("First 16 hex digits of the SHA-256 of the userid")
+        String useridHash;
+
+        @Label("Value Count")
+        int valueCount;
+
+        @Label("Outcome")
+        String outcome;
+    }
+
+    @Name("shibauth.HeaderSnapshot")
+    @Label("Header Snapshot")
+    @Description("Reading the remote user header. Value count is 1 if the header was present.")
+    static class HeaderSnapshot extends StageEvent {
+    }
+
+    @Name("shibauth.UsernameNormalization")
+    @Label("Username Normalization")
+    @Description("Mapping the remote user to the userid. Outcome is cached, normalized or none.")
+    static class UsernameNormalization extends StageEvent {
+    }
+
+    @Name("shibauth.RoleDerivation")
+    @Label("Role Derivation")
+    @Description("Reading the dynamicroles headers and evaluating the mappers. Value count is the number of roles " +
+            "added and retracted.")
+    static class RoleDerivation extends StageEvent {
+    }
+
+    @Name("shibauth.UserCreate")
+    @Label("User Create")
+    static class UserCreate extends StageEvent {
+    }
+
+    @Name("shibauth.UserUpdate")
+    @Label("User Update")
+    @Description("Updating the full name and email address. Value count is the number of changed fields.")
+    static class UserUpdate extends StageEvent {
+    }
+
+    @Name("shibauth.MembershipSync")
+    @Label("Membership Sync")
+    @Description("Adding the user to its roles and retracting roles. Value count is the number of roles checked.")
+    static class MembershipSync extends StageEvent {
+    }
+
+    @Name("shibauth.RolePurge")
+    @Label("Role Purge")
+    @Description("Removing the user from roles matched by purge.roles. Value count is the number of roles removed.")
+    static class RolePurge extends StageEvent {
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ Copyright (c) 2008-2019, Confluence HTTP Authenticator Team
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice,
+   this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+ * Neither the name of the Confluence HTTP Authenticator Team
+   nor the names of its contributors may be used to endorse or promote
+   products derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package shibauth.confluence.authentication.shibboleth;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether a successful login should be recorded (last login date, login event) or whether it
+ * happened too soon after the previous recorded login of the same user.
+ * <p/>
+ * Session-less traffic (REST clients, feeds) goes through the authenticator on every request, so recording every
+ * one of those logins means a database write per request. With an interval set, each user is recorded at most
+ * once per interval. The map of last recorded logins is bounded: once it holds more than the maximum number of
+ * users, entries older than the interval are dropped, and if that is not enough the map is cleared.
+ */
+public class LastLoginThrottle {
+
+    /**
+     * Map<username, time in millis of the last recorded login>
+     */
+    private final ConcurrentMap lastRecorded = new ConcurrentHashMap();
+
+    private final AtomicLong recordedCount = new AtomicLong();
+
+    private final AtomicLong suppressedCount = new AtomicLong();
+
+    /**
+     * Check whether the login of the given user should be recorded now. Returns true at most once per interval
+     * for any given user, even when called concurrently.
+     *
+     * @param username   user that just logged in
+     * @param interval   minimum time in milliseconds between two recorded logins of the same user. 0 or less
+     *                   records every login.
+     * @param maxTracked maximum number of users to remember
+     * @return true if the login should be recorded
+     */
+    public boolean shouldRecord(String username, long interval, int maxTracked) {
+        return shouldRecord(username, interval, maxTracked, System.currentTimeMillis());
+    }
+
+    /**
+     * @param now current time in milliseconds
+     * @see #shouldRecord(String, long, int)
+     */
+    boolean shouldRecord(String username, long interval, int maxTracked, long now) {
+        if (interval <= 0 || username == null) {
+            recordedCount.incrementAndGet();
+            return true;
+        }
+
+        Long last = (Long) lastRecorded.get(username);
+
+        if (last != null && now - last.longValue() < interval) {
+            suppressedCount.incrementAndGet();
+            return false;
+        }
+
+        // Only the thread that wins the update records the login.
+        boolean won;
+        if (last == null) {
+            won = lastRecorded.putIfAbsent(username, Long.valueOf(now)) == null;
+        } else {
+            won = lastRecorded.replace(username, last, Long.valueOf(now));
+        }
+
+        if (!won) {
+            suppressedCount.incrementAndGet();
+            return false;
+        }
+
+        if (lastRecorded.size() > maxTracked) {
+            prune(now, interval, maxTracked);
+        }
+
+        recordedCount.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Count a login that was not recorded for another reason than the interval (e.g. update.last.login.date=false).
+     */
+    public void suppressed() {
+        suppressedCount.incrementAndGet();
+    }
+
+    private void prune(long now, long interval, int maxTracked) {
+        for (Iterator it = lastRecorded.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) it.next();
+            if (now - ((Long) entry.getValue()).longValue() >= interval) {
+                it.remove();
+            }
+        }
+
+        if (lastRecorded.size() > maxTracked) {
+            lastRecorded.clear();
+        }
+    }
+
+    public long getRecordedCount() {
+        return recordedCount.get();
+    }
+
+    public long getSuppressedCount() {
+        return suppressedCount.get();
+    }
+
+    public int getTrackedUserCount() {
+        return lastRecorded.size();
+    }
+
+    public String toString() {
+        return "recorded=" + getRecordedCount() + ", suppressed=" + getSuppressedCount() + ", tracked users=" +
+                getTrackedUserCount();
+    }
+}
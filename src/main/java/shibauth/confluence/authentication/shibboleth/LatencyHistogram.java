@@ -0,0 +1,148 @@
+/*
+ Copyright (c) 2008-2019, Confluence HTTP Authenticator Team
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice,
+   this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+ * Neither the name of the Confluence HTTP Authenticator Team
+   nor the names of its contributors may be used to endorse or promote
+   products derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package shibauth.confluence.authentication.shibboleth;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations with power-of-two microsecond buckets. Bucket 0 counts durations under 1 us,
+ * bucket i durations from 2^(i-1) to 2^i - 1 us. Recording costs a few uncontended adds, so it can be left on in
+ * production. Percentiles are reported as the upper bound of the bucket they fall in.
+ */
+public class LatencyHistogram {
+
+    private final static int BUCKETS = 40;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+
+    private final LongAdder count = new LongAdder();
+
+    private final LongAdder totalNanos = new LongAdder();
+
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param nanos duration in nanoseconds, negative values are counted as 0
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+
+        buckets[bucketOf(nanos / 1000)].increment();
+        count.increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+    }
+
+    static int bucketOf(long micros) {
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getTotalMicros() {
+        return totalNanos.sum() / 1000;
+    }
+
+    public long getMeanMicros() {
+        long n = count.sum();
+        return n == 0 ? 0 : totalNanos.sum() / n / 1000;
+    }
+
+    public long getMaxMicros() {
+        return maxNanos.get() / 1000;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return upper bound in microseconds of the bucket holding the percentile, 0 if nothing was recorded
+     */
+    public long getPercentileMicros(double percentile) {
+        long[] counts = new long[BUCKETS];
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+            n += counts[i];
+        }
+
+        if (n == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(n * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank && counts[i] > 0) {
+                return (1L << i) - 1;
+            }
+        }
+
+        return getMaxMicros();
+    }
+
+    /**
+     * @return counts per bucket, index i counting durations of at least 2^(i-1) and less than 2^i us
+     */
+    public long[] getBucketCounts() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return counts;
+    }
+
+    /**
+     * Clears the histogram. Durations recorded concurrently may be partially kept.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i].reset();
+        }
+        count.reset();
+        totalNanos.reset();
+        maxNanos.reset();
+    }
+
+    public String toString() {
+        return "count=" + getCount() + ", mean=" + getMeanMicros() + "us, p50<=" + getPercentileMicros(50) +
+                "us, p99<=" + getPercentileMicros(99) + "us, max=" + getMaxMicros() + "us";
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ Copyright (c) 2008-2019, Confluence HTTP Authenticator Team
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice,
+   this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+ * Neither the name of the Confluence HTTP Authenticator Team
+   nor the names of its contributors may be used to endorse or promote
+   products derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package shibauth.confluence.authentication.shibboleth;
+
+import javax.servlet.http.HttpServletRequest;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Enumeration;
+
+/**
+ * Structured trace of one login or getUser: stage timings, mapper evaluations and the backend calls made. A trace is
+ * bound to the current thread between {@link #begin(String)} and {@link #end(LoginTrace)}, so the stages can add to it
+ * without passing it around. Only traces of slow logins are kept, by the {@link SlowLoginRecorder}; the sizes of the
+ * request headers are only read for those.
+ */
+public class LoginTrace {
+
+    private final static ThreadLocal current = new ThreadLocal();
+
+    private final String kind;
+
+    private final long startMillis;
+
+    private final long startNanos;
+
+    private final long[] stageNanos = new long[AuthenticatorStats.getStageCount()];
+
+    private long totalNanos;
+
+    private String username;
+
+    private String outcome;
+
+    private int headerCount;
+
+    private int headerBytes;
+
+    private int mappedValues;
+
+    private int mapperEvaluations;
+
+    private int mapperMatches;
+
+    private boolean rolesCached;
+
+    private BackendCalls backendCalls;
+
+    private LoginTrace(String kind) {
+        this.kind = kind;
+        startMillis = System.currentTimeMillis();
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * Start a trace on the current thread.
+     *
+     * @param kind "login" or "getUser"
+     * @return the new trace, or null if a trace is already active on this thread
+     */
+    public static LoginTrace begin(String kind) {
+        if (current.get() != null) {
+            return null;
+        }
+
+        LoginTrace trace = new LoginTrace(kind);
+        current.set(trace);
+        return trace;
+    }
+
+    /**
+     * End a trace started by {@link #begin(String)} and note its total time.
+     *
+     * @param trace value returned by begin(), may be null
+     * @return trace
+     */
+    public static LoginTrace end(LoginTrace trace) {
+        if (trace != null) {
+            trace.totalNanos = System.nanoTime() - trace.startNanos;
+            if (current.get() == trace) {
+                current.remove();
+            }
+        }
+        return trace;
+    }
+
+    public static LoginTrace current() {
+        return (LoginTrace) current.get();
+    }
+
+    /**
+     * Add the time of a stage to the trace of the current thread, if any.
+     */
+    public static void stage(int stage, long nanos) {
+        LoginTrace trace = (LoginTrace) current.get();
+        if (trace != null) {
+            trace.stageNanos[stage] += nanos;
+        }
+    }
+
+    /**
+     * Note the outcome of the login on the trace of the current thread, if any.
+     *
+     * @param reason null if the login succeeded
+     */
+    public static void outcome(String username, String reason) {
+        LoginTrace trace = (LoginTrace) current.get();
+        if (trace != null) {
+            trace.username = username;
+            trace.outcome = reason == null ? "OK" : reason;
+        }
+    }
+
+    /**
+     * Note a run of the dynamicroles mappers on the trace of the current thread, if any.
+     *
+     * @param values      header values mapped
+     * @param evaluations mapper evaluations
+     * @param matches     evaluations that produced groups
+     */
+    public static void mapped(int values, int evaluations, int matches) {
+        LoginTrace trace = (LoginTrace) current.get();
+        if (trace != null) {
+            trace.mappedValues += values;
+            trace.mapperEvaluations += evaluations;
+            trace.mapperMatches += matches;
+        }
+    }
+
+    /**
+     * Note that the roles of the login came from the dynamic roles cache.
+     */
+    public static void rolesCached() {
+        LoginTrace trace = (LoginTrace) current.get();
+        if (trace != null) {
+            trace.rolesCached = true;
+        }
+    }
+
+    /**
+     * Complete a trace that is going to be kept with the sizes of the request headers and the backend calls.
+     */
+    void complete(HttpServletRequest request, BackendCalls calls) {
+        backendCalls = calls;
+        if (request != null) {
+            for (Enumeration names = request.getHeaderNames(); names != null && names.hasMoreElements(); ) {
+                String name = (String) names.nextElement();
+                headerCount++;
+                headerBytes += name.length();
+                for (Enumeration values = request.getHeaders(name); values != null && values.hasMoreElements(); ) {
+                    Object value = values.nextElement();
+                    headerBytes += value == null ? 0 : value.toString().length();
+                }
+            }
+        }
+    }
+
+    public String getKind() {
+        return kind;
+    }
+
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    public long getStageNanos(int stage) {
+        return stageNanos[stage];
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getOutcome() {
+        return outcome;
+    }
+
+    public int getHeaderCount() {
+        return headerCount;
+    }
+
+    public int getHeaderBytes() {
+        return headerBytes;
+    }
+
+    public int getMapperEvaluations() {
+        return mapperEvaluations;
+    }
+
+    public int getMapperMatches() {
+        return mapperMatches;
+    }
+
+    public BackendCalls getBackendCalls() {
+        return backendCalls;
+    }
+
+    public String toString() {
+        StringBuffer sb = new StringBuffer();
+        sb.append(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(new Date(startMillis)));
+        sb.append(' ').append(kind).append(" of ").append(username == null ? "(unknown)" : username);
+        sb.append(" took ").append(totalNanos / 1000000).append(" ms, outcome=").append(outcome);
+
+        String[] names = AuthenticatorStats.getInstance().getStageNames();
+        sb.append(", stages(ms)={");
+        boolean first = true;
+        for (int i = 0; i < stageNanos.length; i++) {
+            if (stageNanos[i] > 0) {
+                sb.append(first ? "" : ", ").append(names[i]).append('=').append(stageNanos[i] / 1000 / 1000.0);
+                first = false;
+            }
+        }
+        sb.append('}');
+
+        sb.append(", headers=").append(headerCount).append(" (").append(headerBytes).append(" chars)");
+        sb.append(", mapped values=").append(mappedValues).append(", mapper evaluations=").append(mapperEvaluations);
+        sb.append(", matches=").append(mapperMatches).append(rolesCached ? " (roles cached)" : "");
+
+        if (backendCalls != null) {
+            sb.append(", groups added=").append(backendCalls.getCount("crowdService.addUserToGroup"));
+            sb.append(", groups removed=").append(backendCalls.getCount("crowdService.removeUserFromGroup"));
+            sb.append(", transactions=").append(backendCalls.getTransactions());
+            sb.append(", backend ").append(backendCalls);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ Copyright (c) 2008-2019, Confluence HTTP Authenticator Team
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice,
+   this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+ * Neither the name of the Confluence HTTP Authenticator Team
+   nor the names of its contributors may be used to endorse or promote
+   products derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package shibauth.confluence.authentication.shibboleth;
+
+import java.util.*;
+
+/**
+ * Rewrites the dynamicroles mappers of a header into an equivalent, shorter list. Every dynamicroles mapper is
+ * evaluated for every header value and the outputs are collected into a set, so mappers can be merged and removed
+ * without changing the resulting roles:
+ * <ul>
+ * <li>mappers with the same match regex, case sensitivity, retract and force are merged into one mapper whose transform is the
+ * union of their transforms, e.g. "$1" and "$2" become "$1, $2"</li>
+ * <li>exact duplicates (same match, case sensitivity, retract, force and transform) are dropped</li>
+ * </ul>
+ * A mapper without transform passes the value through as is; it is only merged with other mappers without
+ * transform, as rewriting it to "$0" would behave differently for values containing '$' or '\'. Table mappers
+ * are left as they are.
+ */
+public class MapperOptimizer {
+
+    /**
+     * @param mappers list of GroupMapper, not modified
+     * @return optimized list of GroupMapper. Mappers that were not merged are the same instances.
+     */
+    public static List optimize(List mappers) {
+        // Map<merge key, List<GroupMapper>>, in order of first occurrence
+        Map merged = new LinkedHashMap();
+
+        for (Iterator it = mappers.iterator(); it.hasNext(); ) {
+            GroupMapper mapper = (GroupMapper) it.next();
+            // table mappers are never merged
+            String key = mapper instanceof TableGroupMapper ? "#" + merged.size() : getMergeKey(mapper);
+
+            List same = (List) merged.get(key);
+            if (same == null) {
+                same = new ArrayList();
+                merged.put(key, same);
+            }
+
+            same.add(mapper);
+        }
+
+        List optimized = new ArrayList();
+
+        for (Iterator it = merged.values().iterator(); it.hasNext(); ) {
+            List same = (List) it.next();
+            GroupMapper first = (GroupMapper) same.get(0);
+
+            if (same.size() == 1 || first.getTransform() == null) {
+                optimized.add(first);
+                continue;
+            }
+
+            // union of the transforms, without duplicates
+            Set transforms = new LinkedHashSet();
+            StringBuffer name = new StringBuffer();
+
+            for (int i = 0; i < same.size(); i++) {
+                GroupMapper mapper = (GroupMapper) same.get(i);
+                if (transforms.add(mapper.getTransform())) {
+                    if (name.length() != 0) {
+                        name.append('+');
+                    }
+                    name.append(mapper.toString());
+                }
+            }
+
+            if (transforms.size() == 1) {
+                optimized.add(first);
+                continue;
+            }
+
+            StringBuffer transform = new StringBuffer();
+            for (Iterator tIt = transforms.iterator(); tIt.hasNext(); ) {
+                transform.append(tIt.next());
+                if (tIt.hasNext()) {
+                    transform.append(", ");
+                }
+            }
+
+            GroupMapper mapper = new GroupMapper(name.toString(), first.getMatchRegex(), transform.toString(),
+                    first.isCaseSensitive());
+            mapper.setRetract(first.isRetract());
+            mapper.setForce(first.isForce());
+            optimized.add(mapper);
+        }
+
+        return optimized;
+    }
+
+    private static String getMergeKey(GroupMapper mapper) {
+        StringBuffer sb = new StringBuffer();
+        sb.append(mapper.isCaseSensitive() ? 'S' : 'I');
+        sb.append(mapper.getTransform() == null ? 'N' : 'T');
+        sb.append(mapper.isRetract() ? 'R' : 'A');
+        sb.append(mapper.isForce() ? 'F' : 'V');
+        sb.append(mapper.getMatchRegex() == null ? "" : mapper.getMatchRegex());
+        return sb.toString();
+    }
+}
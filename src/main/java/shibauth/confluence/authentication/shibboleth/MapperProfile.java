@@ -0,0 +1,118 @@
+/*
+ Copyright (c) 2008-2019, Confluence HTTP Authenticator Team
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice,
+   this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+ * Neither the name of the Confluence HTTP Authenticator Team
+   nor the names of its contributors may be used to endorse or promote
+   products derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package shibauth.confluence.authentication.shibboleth;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the evaluations of one dynamicroles mapper, see dynamicroles.profile. Recording is lock-free.
+ */
+public class MapperProfile {
+
+    private final String name;
+
+    private final LongAdder invocations = new LongAdder();
+
+    private final LongAdder matches = new LongAdder();
+
+    private final LongAdder totalNanos = new LongAdder();
+
+    private final AtomicLong slowestNanos = new AtomicLong();
+
+    /**
+     * Length of the input of the slowest evaluation. Updated after slowestNanos, so under concurrent updates it may
+     * belong to an evaluation almost as slow.
+     */
+    private volatile int slowestInputLength;
+
+    public MapperProfile(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @param nanos   duration of the evaluation
+     * @param matched whether the value matched, i.e. resulted in at least one group
+     * @param value   input value
+     */
+    public void record(long nanos, boolean matched, String value) {
+        invocations.increment();
+        if (matched) {
+            matches.increment();
+        }
+        totalNanos.add(nanos);
+
+        for (long slowest = slowestNanos.get(); nanos > slowest; slowest = slowestNanos.get()) {
+            if (slowestNanos.compareAndSet(slowest, nanos)) {
+                slowestInputLength = value == null ? 0 : value.length();
+                break;
+            }
+        }
+    }
+
+    public long getInvocations() {
+        return invocations.sum();
+    }
+
+    public long getMatches() {
+        return matches.sum();
+    }
+
+    public long getTotalNanos() {
+        return totalNanos.sum();
+    }
+
+    public long getSlowestNanos() {
+        return slowestNanos.get();
+    }
+
+    public int getSlowestInputLength() {
+        return slowestInputLength;
+    }
+
+    public void reset() {
+        invocations.reset();
+        matches.reset();
+        totalNanos.reset();
+        slowestNanos.set(0);
+        slowestInputLength = 0;
+    }
+
+    public String toString() {
+        long n = getInvocations();
+        return name + ": invocations=" + n + ", matches=" + getMatches() + ", total=" + getTotalNanos() / 1000 +
+                "us, mean=" + (n == 0 ? 0 : getTotalNanos() / n) + "ns, slowest=" + getSlowestNanos() / 1000 +
+                "us (input length " + getSlowestInputLength() + ")" + (n > 0 && getMatches() == 0 ? ", never matched" : "");
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ Copyright (c) 2008-2019, Confluence HTTP Authenticator Team
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice,
+   this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+ * Neither the name of the Confluence HTTP Authenticator Team
+   nor the names of its contributors may be used to endorse or promote
+   products derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package shibauth.confluence.authentication.shibboleth;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Profiles of the dynamicroles mappers of a configuration snapshot, enabled with dynamicroles.profile. The report
+ * lists the mappers by total evaluation time, most expensive first, and flags the mappers that never matched, so the
+ * mapping configuration can be pruned or reordered. It is available over JMX (AuthenticatorStats) and logged at INFO
+ * every dynamicroles.profile.log.interval milliseconds, checked on login.
+ */
+public class MapperProfiler {
+
+    private final static Log log = LogFactory.getLog(MapperProfiler.class);
+
+    private final List profiles = new CopyOnWriteArrayList();
+
+    private final long logInterval;
+
+    private final AtomicLong lastLogged = new AtomicLong(System.currentTimeMillis());
+
+    /**
+     * @param logInterval milliseconds between two reports in the log, 0 or less to never log them
+     */
+    public MapperProfiler(long logInterval) {
+        this.logInterval = logInterval;
+    }
+
+    /**
+     * Start profiling a mapper, unless it is already profiled.
+     */
+    public void add(GroupMapper mapper) {
+        if (mapper.getProfile() == null) {
+            MapperProfile profile = new MapperProfile(mapper.toString());
+            profiles.add(profile);
+            mapper.setProfile(profile);
+        }
+    }
+
+    public List getProfiles() {
+        return profiles;
+    }
+
+    public long getLogInterval() {
+        return logInterval;
+    }
+
+    /**
+     * @return one line per mapper, most expensive first
+     */
+    public List getReport() {
+        List sorted = new ArrayList(profiles);
+        Collections.sort(sorted, new Comparator() {
+            public int compare(Object o1, Object o2) {
+                long t1 = ((MapperProfile) o1).getTotalNanos();
+                long t2 = ((MapperProfile) o2).getTotalNanos();
+                return t1 < t2 ? 1 : t1 > t2 ? -1 : 0;
+            }
+        });
+
+        List report = new ArrayList(sorted.size());
+        for (int i = 0; i < sorted.size(); i++) {
+            report.add(sorted.get(i).toString());
+        }
+        return report;
+    }
+
+    public void reset() {
+        for (int i = 0; i < profiles.size(); i++) {
+            ((MapperProfile) profiles.get(i)).reset();
+        }
+    }
+
+    /**
+     * Log the report if the log interval has passed since it was last logged. Only one caller logs it per interval.
+     *
+     * @param generation generation of the configuration, to tell reports of reloaded configurations apart
+     */
+    public void logIfDue(long now, long generation) {
+        if (logInterval <= 0 || profiles.isEmpty()) {
+            return;
+        }
+
+        long last = lastLogged.get();
+        if (now - last < logInterval || !lastLogged.compareAndSet(last, now)) {
+            return;
+        }
+
+        List report = getReport();
+        StringBuffer sb = new StringBuffer("Dynamic roles mapper profile of configuration generation " + generation +
+                ", most expensive first:");
+        for (int i = 0; i < report.size(); i++) {
+            sb.append("\n  ").append(report.get(i));
+        }
+        log.info(sb.toString());
+    }
+}
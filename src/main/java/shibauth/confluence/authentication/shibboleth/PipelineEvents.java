@@ -0,0 +1,117 @@
+/*
+ Copyright (c) 2008-2019, Confluence HTTP Authenticator Team
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice,
+   this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+ * Neither the name of the Confluence HTTP Authenticator Team
+   nor the names of its contributors may be used to endorse or promote
+   products derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package shibauth.confluence.authentication.shibboleth;
+
+/**
+ * Java Flight Recorder events of the stages of a login, so the work of the authenticator shows up next to GC, lock
+ * and JDBC events in the same recording. The events are named shibauth.HeaderSnapshot, shibauth.UsernameNormalization,
+ * shibauth.RoleDerivation, shibauth.UserCreate, shibauth.UserUpdate, shibauth.MembershipSync and shibauth.RolePurge
+ * and carry a hash of the userid, a count of the values handled and the outcome of the stage.
+ * <p/>
+ * On a JVM without JFR (jdk.jfr) nothing is loaded and {@link #begin(int)} returns null. With JFR, the events are
+ * disabled unless the settings of a recording enable them (they are not in the default or profile settings), and an
+ * event that is not enabled costs one check. The fields of an event are only filled in if it is committed; the userid
+ * is hashed once per login.
+ * <pre>
+ * Object event = PipelineEvents.begin(PipelineEvents.USER_CREATE);
+ * ...
+ * PipelineEvents.commit(event, userid, 1, "created");
+ * </pre>
+ */
+public class PipelineEvents {
+
+    /**
+     * Reading the remote user header
+     */
+    public final static int HEADER_SNAPSHOT = 0;
+
+    /**
+     * Mapping the remote user header value to the userid
+     */
+    public final static int USERNAME_NORMALIZATION = 1;
+
+    /**
+     * Reading the dynamicroles headers and evaluating the mappers
+     */
+    public final static int ROLE_DERIVATION = 2;
+
+    public final static int USER_CREATE = 3;
+
+    /**
+     * Updating the full name and email address of the user
+     */
+    public final static int USER_UPDATE = 4;
+
+    /**
+     * Adding the user to its roles and retracting roles
+     */
+    public final static int MEMBERSHIP_SYNC = 5;
+
+    public final static int PURGE = 6;
+
+    private final static boolean available = isJfrAvailable();
+
+    private static boolean isJfrAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (Throwable t) {
+            return false;
+        }
+    }
+
+    public static boolean isAvailable() {
+        return available;
+    }
+
+    /**
+     * Start the event of a stage.
+     *
+     * @param stage one of the stage constants
+     * @return the event, null if JFR is not available or the event is not enabled
+     */
+    public static Object begin(int stage) {
+        return available ? JfrEvents.begin(stage) : null;
+    }
+
+    /**
+     * End the event of a stage and commit it if the recordings want it.
+     *
+     * @param event      value returned by {@link #begin(int)}, may be null
+     * @param userid     userid the stage was for, may be null; only a hash of it is recorded
+     * @param valueCount number of values handled by the stage (header values, roles, changed fields, ...)
+     * @param outcome    short result of the stage, e.g. "created" or "failed"
+     */
+    public static void commit(Object event, String userid, int valueCount, String outcome) {
+        if (event != null) {
+            JfrEvents.commit(event, userid, valueCount, outcome);
+        }
+    }
+}
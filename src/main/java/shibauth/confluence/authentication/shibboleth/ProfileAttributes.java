@@ -0,0 +1,267 @@
+/*
+ Copyright (c) 2008-2019, Confluence HTTP Authenticator Team
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice,
+   this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+ * Neither the name of the Confluence HTTP Authenticator Team
+   nor the names of its contributors may be used to endorse or promote
+   products derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package shibauth.confluence.authentication.shibboleth;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.*;
+
+/**
+ * Full name and email address of the user logging in. Both are derived from the request the first time they are
+ * asked for, and remembered for the rest of the request.
+ * <p/>
+ * Deriving them means header lookups, splitting of multiple values, fullname.map.* mapping, fullname.replace and
+ * UTF-8 conversion. The authenticator only asks when a user is created or when update.info is true, so returning
+ * users with update.info=false skip all of it.
+ */
+public class ProfileAttributes {
+
+    private final static Log log = LogFactory.getLog(ProfileAttributes.class);
+
+    private final HttpServletRequest request;
+
+    private final String userid;
+
+    private final ShibAuthConfiguration config;
+
+    private String fullName;
+
+    private boolean fullNameDerived;
+
+    private String emailAddress;
+
+    private boolean emailAddressDerived;
+
+    /**
+     * @param request request of the user logging in
+     * @param userid  userid of the user logging in, used as full name when the header provides none
+     * @param config  configuration to derive the values with
+     */
+    public ProfileAttributes(HttpServletRequest request, String userid, ShibAuthConfiguration config) {
+        this.request = request;
+        this.userid = userid;
+        this.config = config;
+    }
+
+    public String getUserid() {
+        return userid;
+    }
+
+    public String getFullName() {
+        if (!fullNameDerived) {
+            fullName = deriveFullName();
+            fullNameDerived = true;
+        }
+
+        return fullName;
+    }
+
+    public String getEmailAddress() {
+        if (!emailAddressDerived) {
+            emailAddress = deriveEmailAddress();
+            emailAddressDerived = true;
+        }
+
+        return emailAddress;
+    }
+
+    private String deriveEmailAddress() {
+        String emailAddress = null;
+
+        if (config.getEmailHeaderName() != null) {
+            String headerValue = getAttribute(request, config.getEmailHeaderName(), config.getEmailHeaderStrategy());
+            // The Shibboleth SP sends multiple values as single value, separated by comma or semicolon.
+            List values = StringUtil.
+                    toListOfNonEmptyStringsDelimitedByCommaOrSemicolon(headerValue);
+
+            if (values != null && values.size() > 0) {
+                // Use the first email in the list.
+                emailAddress = (String) values.get(0);
+
+                if (TargetedTrace.isDebugEnabled(log)) {
+                    TargetedTrace.debug(log, "Got emailAddress '" + emailAddress + "' for header '" + config.getEmailHeaderName() +
+                            "'");
+                }
+
+                if (config.isConvertToUTF8()) {
+                    String tmp = StringUtil.convertToUTF8(emailAddress);
+                    if (tmp != null) {
+                        emailAddress = tmp;
+                        if (TargetedTrace.isDebugEnabled(log)) {
+                            TargetedTrace.debug(log, "emailAddress converted to UTF-8 '" + emailAddress + "' for header '" +
+                                    config.getEmailHeaderName() + "'");
+                        }
+                    }
+                }
+            }
+
+            if ((emailAddress != null) && (emailAddress.length() > 0)) {
+                emailAddress = emailAddress.toLowerCase();
+            }
+        } else {
+            if (TargetedTrace.isDebugEnabled(log)) {
+                TargetedTrace.debug(log, "User email address header name in config was null/not specified.");
+            }
+        }
+
+        return emailAddress;
+    }
+
+    private String deriveFullName() {
+        String fullName = null;
+
+        if (config.getFullNameHeaderName() != null) {
+            // assumes it is first value in list, if header is defined multiple times. Otherwise would need to call getHeaders()
+            String headerValue = getAttribute(request, config.getFullNameHeaderName(),
+                    config.getFullNameHeaderStrategy());
+            // the Shibboleth SP sends multiple values as single value, separated by comma or semicolon
+            List values = StringUtil.toListOfNonEmptyStringsDelimitedByCommaOrSemicolon(headerValue);
+
+            if (values != null && values.size() > 0) {
+                if (TargetedTrace.isDebugEnabled(log)) {
+                    TargetedTrace.debug(log, "Original value of full name header '" + config.getFullNameHeaderName() + "' was '" +
+                            headerValue + "'");
+                }
+
+                if (config.getFullNameMappings() == null || config.getFullNameMappings().size() == 0) {
+                    // Default is to just use the first header value, if no fullname mappings.
+                    fullName = (String) values.get(0);
+                } else {
+                    fullName = createFullNameUsingMapping(headerValue, values);
+                }
+
+                if (TargetedTrace.isDebugEnabled(log)) {
+                    TargetedTrace.debug(log, "Got fullName '" + fullName + "' for header '" + config.getFullNameHeaderName() + "'.");
+                }
+
+                if (config.isConvertToUTF8()) {
+                    String tmp = StringUtil.convertToUTF8(fullName);
+                    if (tmp != null) {
+                        fullName = tmp;
+                        if (TargetedTrace.isDebugEnabled(log)) {
+                            TargetedTrace.debug(log, "fullName converted to UTF-8 '" + fullName + "' for header '" +
+                                    config.getFullNameHeaderName() + "'.");
+                        }
+                    }
+                }
+            } else {
+                if (TargetedTrace.isDebugEnabled(log)) {
+                    TargetedTrace.debug(log, "User full name header name in config was null/not specified.");
+                }
+            }
+        }
+
+        if ((fullName == null) || (fullName.length() == 0)) {
+            if (TargetedTrace.isDebugEnabled(log)) {
+                TargetedTrace.debug(log, "User full name was null or empty. Defaulting full name to user id.");
+            }
+
+            fullName = userid;
+        }
+
+        return fullName;
+    }
+
+    private String createFullNameUsingMapping(String originalFullNameHeaderValue, List values) {
+        // It is possible to have multiple mappers defined, but only one will produce the desired outcome. Results
+        // are kept in the order the mappers were declared in.
+        Set possibleFullNames = new LinkedHashSet();
+        Collection mappers = config.getFullNameMappings();
+
+        for (Iterator mapperIt = mappers.iterator(); mapperIt.hasNext(); ) {
+            GroupMapper mapper = (GroupMapper) mapperIt.next();
+            String[] results = (String[]) StringUtil.
+                    toListOfNonEmptyStringsDelimitedByCommaOrSemicolon(
+                            mapper.process(originalFullNameHeaderValue)).toArray(new String[0]);
+
+            if (results.length != 0) {
+                possibleFullNames.addAll(Arrays.asList(results));
+
+                // The remaining mappers can't change the outcome.
+                if (config.isFullNameFirstMatch()) {
+                    break;
+                }
+            }
+        }
+
+        if (possibleFullNames.isEmpty()) {
+            if (TargetedTrace.isDebugEnabled(log)) {
+                TargetedTrace.debug(log, "Full Name header value returned. Mappers do not match, so will use first value in list.");
+            }
+
+            return (String) values.get(0);
+        }
+
+        if (TargetedTrace.isDebugEnabled(log) && possibleFullNames.size() > 1) {
+            TargetedTrace.debug(log, "Full name has been transformed, but more than one result, so choosing one that seems suitable.");
+        }
+
+        // Use the first output of the first mapper that produced any.
+        String output = possibleFullNames.iterator().next().toString();
+        // If fullname.replace is specified, apply it. It has the format of pair-wise value, occurences of 1st entry
+        // regex are replaced with what is specified in the second entry.
+        return config.getFullNameReplacement().apply(output);
+    }
+
+    /**
+     * Get a value from the request using one of the following strategies. Any strategy other than 1 or 2 is considered
+     * to be 0:
+     * <ul>
+     * <li>0 - Try request.getAttribute then request.getHeader</li>
+     * <li>1 - Use request.getAttribute</li>
+     * <li>2 - Use request.getHeader</li>
+     * </ul>
+     *
+     * @param request
+     * @param attributeName
+     * @param strategy
+     * @return
+     */
+    public static String getAttribute(HttpServletRequest request, String attributeName, int strategy) {
+        String attributeValue = null;
+
+        if (strategy != 2) {
+            Object attr = request.getAttribute(attributeName);
+            if (attr instanceof String) {
+                attributeValue = (String) attr;
+            }
+        }
+
+        if (strategy != 1) {
+            if (attributeValue == null) {
+                attributeValue = request.getHeader(attributeName);
+            }
+        }
+
+        return attributeValue;
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ Copyright (c) 2008-2019, Confluence HTTP Authenticator Team
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice,
+   this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+ * Neither the name of the Confluence HTTP Authenticator Team
+   nor the names of its contributors may be used to endorse or promote
+   products derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package shibauth.confluence.authentication.shibboleth;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts of the provisioning done by the authenticator (users created and updated, groups created, memberships added
+ * and removed, failures by reason and mapper errors), logged as one summary line at INFO every
+ * provisioning.summary.interval milliseconds instead of a line per event. The interval is checked on login, not by a
+ * timer, and only a summary with something in it is logged. The counters are reset with each summary.
+ * <p/>
+ * While summarizing, the per-event lines are logged at DEBUG. Of each kind of failure, the first one after a summary
+ * is still logged in full by the caller (see {@link #failed(String)}), so new problems show up right away. With an
+ * interval of 0 nothing is summarized and every event is logged as it happens.
+ */
+public class ProvisioningSummary {
+
+    private final static Log log = LogFactory.getLog(ProvisioningSummary.class);
+
+    private final static ProvisioningSummary instance = new ProvisioningSummary();
+
+    /**
+     * Failure reason of mapper errors, reported separately in the summary
+     */
+    private final static String MAPPER = "mapper";
+
+    private final LongAdder usersCreated = new LongAdder();
+
+    private final LongAdder usersUpdated = new LongAdder();
+
+    private final LongAdder groupsCreated = new LongAdder();
+
+    private final LongAdder groupsAdded = new LongAdder();
+
+    private final LongAdder groupsRemoved = new LongAdder();
+
+    /**
+     * Map<reason, AtomicLong> of the failures since the last summary
+     */
+    private final ConcurrentMap failures = new ConcurrentHashMap();
+
+    private final AtomicLong lastLogged = new AtomicLong(System.currentTimeMillis());
+
+    private volatile long interval;
+
+    public static ProvisioningSummary getInstance() {
+        return instance;
+    }
+
+    /**
+     * @param interval milliseconds between two summaries, 0 or less to log every event as it happens
+     */
+    public void setInterval(long interval) {
+        this.interval = interval;
+    }
+
+    public long getInterval() {
+        return interval;
+    }
+
+    /**
+     * @return true if events are summarized, i.e. the per-event lines belong at DEBUG
+     */
+    public boolean isSummarizing() {
+        return interval > 0;
+    }
+
+    public void userCreated() {
+        usersCreated.increment();
+    }
+
+    public void userUpdated() {
+        usersUpdated.increment();
+    }
+
+    public void groupCreated() {
+        groupsCreated.increment();
+    }
+
+    public void groupAdded() {
+        groupsAdded.increment();
+    }
+
+    public void groupRemoved() {
+        groupsRemoved.increment();
+    }
+
+    /**
+     * Count a failure.
+     *
+     * @param reason kind of failure, e.g. "addUserToGroup"
+     * @return true if the caller should log the failure in full: it is the first of its kind since the last summary,
+     * or events are not summarized
+     */
+    public boolean failed(String reason) {
+        AtomicLong count = (AtomicLong) failures.get(reason);
+        if (count == null) {
+            AtomicLong newCount = new AtomicLong();
+            count = (AtomicLong) failures.putIfAbsent(reason, newCount);
+            if (count == null) {
+                count = newCount;
+            }
+        }
+        return count.incrementAndGet() == 1 || !isSummarizing();
+    }
+
+    /**
+     * Count a mapper that failed on a value.
+     *
+     * @return true if the caller should log the error in full, see {@link #failed(String)}
+     */
+    public boolean mapperError() {
+        return failed(MAPPER);
+    }
+
+    /**
+     * Log the summary if the interval has passed since the last one. Only one caller logs it per interval.
+     */
+    public void logIfDue(long now) {
+        long interval = this.interval;
+        if (interval <= 0) {
+            return;
+        }
+
+        long last = lastLogged.get();
+        if (now - last < interval || !lastLogged.compareAndSet(last, now)) {
+            return;
+        }
+
+        String summary = summarize(now - last);
+        if (summary != null) {
+            log.info(summary);
+        }
+    }
+
+    /**
+     * Reset the counters and describe what they counted.
+     *
+     * @param elapsed milliseconds covered by the summary
+     * @return the summary, null if nothing happened
+     */
+    String summarize(long elapsed) {
+        long created = usersCreated.sumThenReset();
+        long updated = usersUpdated.sumThenReset();
+        long newGroups = groupsCreated.sumThenReset();
+        long added = groupsAdded.sumThenReset();
+        long removed = groupsRemoved.sumThenReset();
+
+        Map failed = new TreeMap();
+        for (Iterator it = failures.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) it.next();
+            long count = ((AtomicLong) entry.getValue()).getAndSet(0);
+            if (count > 0) {
+                failed.put(entry.getKey(), Long.valueOf(count));
+            }
+        }
+
+        Long mapper = (Long) failed.remove(MAPPER);
+        long errors = mapper == null ? 0 : mapper.longValue();
+
+        if (created + updated + newGroups + added + removed + errors == 0 && failed.isEmpty()) {
+            return null;
+        }
+
+        return "Provisioning summary for the last " + (elapsed / 1000) + " s: users.created=" + created +
+                ", users.updated=" + updated + ", groups.created=" + newGroups + ", memberships.added=" + added +
+                ", memberships.removed=" + removed + ", mapper.errors=" + errors + ", failures=" + failed;
+    }
+}
@@ -54,6 +54,8 @@ import com.atlassian.crowd.embedded.impl.ImmutableUser;
 import com.atlassian.crowd.exception.InvalidUserException;
 import com.atlassian.crowd.exception.OperationNotPermittedException;
 import com.atlassian.crowd.model.user.UserTemplate;
+import com.atlassian.crowd.search.EntityDescriptor;
+import com.atlassian.crowd.search.builder.QueryBuilder;
 import com.atlassian.seraph.auth.AuthenticatorException;
 import com.atlassian.seraph.auth.LoginReason;
 import com.atlassian.seraph.util.RedirectUtils;
@@ -89,9 +91,43 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
     private final static Log log = LogFactory.getLog(RemoteUserAuthenticator.class);
     private static ShibAuthConfiguration config;
 
+    /**
+     * Limits how often a successful login of the same user is recorded, see update.last.login.date.interval
+     */
+    private final static LastLoginThrottle lastLoginThrottle = new LastLoginThrottle();
+
+    /**
+     * Stage timings and login outcomes, published over JMX
+     */
+    private final static AuthenticatorStats stats = AuthenticatorStats.getInstance();
+
+    /**
+     * Counts of users and memberships created, updated and removed, logged once per provisioning.summary.interval
+     */
+    private final static ProvisioningSummary provisioning = ProvisioningSummary.getInstance();
+
     // Initialize properties from property file
     static {
         config = ShibAuthConfigLoader.getShibAuthConfiguration(null);
+        stats.setConfiguration(config);
+        stats.setLastLoginThrottle(lastLoginThrottle);
+        AuthenticatorStats.register();
+    }
+
+    /**
+     * Replace the configuration read from remoteUserAuthenticator.properties, for tools that run the authenticator
+     * outside of Confluence (e.g. the load test harness).
+     */
+    static void setConfiguration(ShibAuthConfiguration newConfig) {
+        config = newConfig;
+        stats.setConfiguration(newConfig);
+    }
+
+    /**
+     * @return the configuration in use, e.g. to restore it after {@link #setConfiguration(ShibAuthConfiguration)}
+     */
+    static ShibAuthConfiguration getConfiguration() {
+        return config;
     }
 
     /**
@@ -108,14 +144,38 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
             long configFileLastModified = new File(config.getConfigFile()).lastModified();
 
             if (configFileLastModified != config.getConfigFileLastModified()) {
-                if (log.isDebugEnabled()) {
-                    log.debug("Config file has been changed, reloading");
+                if (TargetedTrace.isDebugEnabled(log)) {
+                    TargetedTrace.debug(log, "Config file has been changed, reloading");
+                }
+
+                if (config.getUsernameCache().isEnabled()) {
+                    log.info("Discarding username cache of configuration generation " + config.getGeneration() +
+                            ": " + config.getUsernameCache());
+                }
+
+                if (config.getRolesCache().isEnabled()) {
+                    log.info("Discarding dynamic roles cache of configuration generation " + config.getGeneration() +
+                            ": " + config.getRolesCache());
+                }
+
+                if (config.getCredentialCache().isEnabled()) {
+                    log.info("Discarding credential cache of configuration generation " + config.getGeneration() +
+                            ": " + config.getCredentialCache());
                 }
 
+                if (config.getHeaderCapture().isEnabled()) {
+                    log.info("Closing header capture of configuration generation " + config.getGeneration() + ": " +
+                            config.getHeaderCapture());
+                    config.getHeaderCapture().close();
+                }
+
+                log.info("Authentication sources used so far (" + config.getAuthChain() + "): " + AuthChain.getStats());
+
                 config = ShibAuthConfigLoader.getShibAuthConfiguration(config);
+                stats.setConfiguration(config);
             } else {
-                if (log.isDebugEnabled()) {
-                    log.debug("Config file has not been changed, not reloading");
+                if (TargetedTrace.isDebugEnabled(log)) {
+                    TargetedTrace.debug(log, "Config file has not been changed, not reloading");
                 }
 
                 config.setConfigFileLastChecked(System.currentTimeMillis());
@@ -126,23 +186,26 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
     /**
      * Assigns a user to the roles.
      *
-     * @param user the user to assign to the roles.
+     * @param user   the user to assign to the roles.
+     * @param config configuration of the profile of the user.
      */
-    private void assignUserToRoles(User user, Collection roles, User crowdUser) {
+    private void assignUserToRoles(User user, Collection roles, User crowdUser, ShibAuthConfiguration config) {
         if (user == null) {
-            if (log.isDebugEnabled()) {
-                log.debug("User was null, not adding any roles...");
+            if (TargetedTrace.isDebugEnabled(log)) {
+                TargetedTrace.debug(log, "User was null, not adding any roles...");
             }
         } else if (roles.size() == 0) {
-            if (log.isDebugEnabled()) {
-                log.debug("No roles specified, not adding any roles...");
+            if (TargetedTrace.isDebugEnabled(log)) {
+                TargetedTrace.debug(log, "No roles specified, not adding any roles...");
             }
         } else {
-            GroupManager groupManager = getGroupManager();
+            GroupManager groupManager = countedGroupManager();
             if (groupManager == null) {
                 throw new RuntimeException("groupManager was not wired in RemoteUserAuthenticator");
             }
 
+            CrowdService crowdService = countedCrowdService();
+
             for (Iterator it = roles.iterator(); it.hasNext(); ) {
                 String role = it.next().toString().trim();
 
@@ -150,26 +213,27 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
                     continue;
                 }
 
-                if (log.isDebugEnabled()) {
-                    log.debug("Assigning " + user.getName() + " to role " + role);
+                if (TargetedTrace.isDebugEnabled(log)) {
+                    TargetedTrace.debug(log, "Assigning " + user.getName() + " to role " + role);
                 }
 
-                Group group = getCrowdService().getGroup(role);
+                Group group = crowdService.getGroup(role);
                 if (group == null) {
                     if (config.isAutoCreateGroup()) {
                         try {
-                            if (log.isDebugEnabled()) {
-                                log.debug("Creating missing role '" + role + "'.");
+                            if (TargetedTrace.isDebugEnabled(log)) {
+                                TargetedTrace.debug(log, "Creating missing role '" + role + "'.");
                             }
                             groupManager.createGroup(role);
-                            group = getCrowdService().getGroup(role);
+                            provisioning.groupCreated();
+                            group = crowdService.getGroup(role);
                         } catch (Throwable t) {
-                            log.error("Cannot create role '" + role + "'.", t);
+                            provisioningFailed("createGroup", "Cannot create role '" + role + "'.", t);
                             continue;
                         }
                     } else {
-                        if (log.isDebugEnabled()) {
-                            log.debug("Skipping autocreation of role '" + role + "'.");
+                        if (TargetedTrace.isDebugEnabled(log)) {
+                            TargetedTrace.debug(log, "Skipping autocreation of role '" + role + "'.");
                         }
 
                         continue; //no point of attempting to allocate user
@@ -177,51 +241,97 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
                 }
 
                 if (crowdUser == null) {
-                    log.warn("Could not find user '" + user.getName() + "' to add them to role '" + role + "'.");
+                    provisioningSkipped("userNotFound", "Could not find user '" + user.getName() +
+                            "' to add them to role '" + role + "'.");
                 } else if (!crowdUser.isActive()) {
-                    log.warn("User '" + user.getName() + "' was inactive, so did not add them to role '" + role + "'.");
+                    provisioningSkipped("userInactive", "User '" + user.getName() +
+                            "' was inactive, so did not add them to role '" + role + "'.");
                 } else if (group == null) {
-                    if (log.isDebugEnabled()) {
-                        log.debug("Skipping " + user.getName() + " to role " + role + ", because crowdService.getGroup(\"" + role + "\") returned null.");
+                    if (TargetedTrace.isDebugEnabled(log)) {
+                        TargetedTrace.debug(log, "Skipping " + user.getName() + " to role " + role + ", because crowdService.getGroup(\"" + role + "\") returned null.");
                     }
-                } else if (getCrowdService().isUserMemberOfGroup(crowdUser, group)) {
-                    if (log.isDebugEnabled()) {
-                        log.debug("Skipping " + user.getName() + " to role " + role + " - already a member");
+                } else if (crowdService.isUserMemberOfGroup(crowdUser, group)) {
+                    if (TargetedTrace.isDebugEnabled(log)) {
+                        TargetedTrace.debug(log, "Skipping " + user.getName() + " to role " + role + " - already a member");
                     }
 
                 } else {
                     try {
                         addUserToGroup(crowdUser, group);
                     } catch (Throwable t) {
-                        log.error("Failed to add user " + user + " to role " + role + ".", t);
+                        provisioningFailed("addUserToGroup", "Failed to add user " + user + " to role " + role + ".", t);
                     }
                 }
             }
         }
     }
 
+    /**
+     * Remove the user from the roles retracted by the dynamicroles mappers. Only the retracted roles the user is a
+     * member of are passed in, so the cost does not depend on how many groups the user is a member of.
+     *
+     * @param user  the user to remove from the roles.
+     * @param roles roles to remove the user from, default roles already excluded.
+     */
+    private void retractUserRoles(User user, Collection roles) {
+        if (roles.size() == 0) {
+            if (TargetedTrace.isDebugEnabled(log)) {
+                TargetedTrace.debug(log, "No roles retracted, not removing any roles...");
+            }
+        } else {
+            CrowdService crowdService = countedCrowdService();
+            if (crowdService == null) {
+                throw new RuntimeException("crowdService was not wired in RemoteUserAuthenticator");
+            }
+
+            User crowdUser = crowdService.getUser(user.getName());
+
+            for (Iterator it = roles.iterator(); it.hasNext(); ) {
+                String role = it.next().toString();
+
+                try {
+                    Group group = crowdService.getGroup(role);
+                    if (group != null && crowdService.isUserMemberOfGroup(crowdUser, group)) {
+                        if (TargetedTrace.isDebugEnabled(log)) {
+                            TargetedTrace.debug(log, "Retracting role " + role + " from user " + user.getName());
+                        }
+
+                        removeUserFromGroup(crowdService, crowdUser, group);
+                    }
+                } catch (Throwable t) {
+                    provisioningFailed("retractRole", "Error encountered in retracting role " + role + " from user " +
+                            user.getName(), t);
+                }
+            }
+        }
+    }
+
     /**
      * Purge user from roles it no longer should have (based on current Shibboleth attributes).
      * Remove the user from all roles listed in purgeRoles that are not
      * included in the current list of roles the user would get assigned to
      * based on the Shibboleth attributes received.
+     * <p/>
+     * The memberships of the user are read in batches of purge.roles.batch.size and reading stops once
+     * purge.roles.limit evaluations have been made, so users with many groups are not loaded in full. Purge
+     * regexes reject values not starting with their literal prefix before running the regex.
      *
      * @param user        the user to assign to the roles.
-     * @param rolesToKeep keep these roles, otherwise everything else
+     * @param rolesToKeep GroupDictionary ids of the roles to keep, otherwise everything else
      *                    mentioned in the purgeMappings can go.
+     * @param config      configuration of the profile of the user.
+     * @return number of roles the user was removed from
      */
-    private void purgeUserRoles(User user, Collection rolesToKeep) {
+    private int purgeUserRoles(User user, BitSet rolesToKeep, ShibAuthConfiguration config) {
+        int purged = 0;
         if ((config.getPurgeMappings().size() == 0)) {
-            if (log.isDebugEnabled()) {
-                log.debug("No roles to purge specified, not purging any roles...");
+            if (TargetedTrace.isDebugEnabled(log)) {
+                TargetedTrace.debug(log, "No roles to purge specified, not purging any roles...");
             }
         } else {
-            UserAccessor userAccessor = getUserAccessor();
-            if (userAccessor == null) {
-                throw new RuntimeException("userAccessor was not wired in RemoteUserAuthenticator");
-            }
+            GroupDictionary dictionary = GroupDictionary.getInstance();
 
-            CrowdService crowdService = getCrowdService();
+            CrowdService crowdService = countedCrowdService();
             if (crowdService == null) {
                 throw new RuntimeException("crowdService was not wired in RemoteUserAuthenticator");
             }
@@ -234,48 +344,65 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
             int counter = 0;
             // Load the value from the config
             int rolesLimit = config.getPurgeRolesLimit();
-            log.debug("setting roles limit to " + rolesLimit);
-
-            List<String> roles = userAccessor.getGroupNames(userAccessor.getUserByName(user.getName()));
-
-            for (int i = 0; i < roles.size(); i++) {
-                String role = roles.get(i);
-                if (!StringUtil.containsStringIgnoreCase(rolesToKeep, role)) {
-                    //run through the purgeMappers for this role
-                    for (Iterator it2 = purgeMappers.iterator(); it2.hasNext(); ) {
-                        GroupMapper mapper = (GroupMapper) it2.next();
-                        // increment the counter
-                        counter++;
-                        log.debug("the counter is at " + counter);
-                        //max only 1 group output
-                        String output = mapper.process(role);
-                        if (output != null & counter <= rolesLimit) {
-                            try {
-                                Group group = crowdService.getGroup(role);
-                                if (crowdService.isUserMemberOfGroup(crowdUser, group)) {
-                                    if (log.isDebugEnabled()) {
-                                        log.debug("Removing user " + user.getName() + " from role " + role);
-                                    }
-
-                                    removeUserFromGroup(crowdService, crowdUser, group);
-
-                                    // Only remove one group per login. Assuming this is to avoid massive delays in
-                                    // login for a user removed from a lot of groups.
-                                    break;
-                                }
-                            } catch (Throwable t) {
-                                log.error("Error encountered in removing user " + user.getName() + " from role " + role,
-                                        t);
+            TargetedTrace.debug(log, "setting roles limit to " + rolesLimit);
+
+            int batchSize = config.getPurgeRolesBatchSize();
+
+            // Groups are removed after reading all batches, removing while paging would shift the batches.
+            List toRemove = new ArrayList();
+
+            for (int start = 0; counter < rolesLimit; start += batchSize) {
+                List roles = getGroupNames(crowdService, user.getName(), start, batchSize);
+
+                for (int i = 0; i < roles.size() && counter < rolesLimit; i++) {
+                    String role = (String) roles.get(i);
+                    // a group the dictionary has never seen cannot be in rolesToKeep, don't assign it an id
+                    int id = dictionary.find(role);
+                    if (id < 0 || !rolesToKeep.get(id)) {
+                        //run through the purgeMappers for this role
+                        for (Iterator it2 = purgeMappers.iterator(); it2.hasNext() && counter < rolesLimit; ) {
+                            GroupMapper mapper = (GroupMapper) it2.next();
+                            // increment the counter
+                            counter++;
+                            TargetedTrace.debug(log, "the counter is at " + counter);
+                            //max only 1 group output
+                            String output = mapper.process(role);
+                            if (output != null) {
+                                toRemove.add(role);
+                                break;
                             }
                         }
+                    } else {
+                        if (TargetedTrace.isDebugEnabled(log)) {
+                            TargetedTrace.debug(log, "Keeping role " + role + " for user " + user.getName());
+                        }
                     }
-                } else {
-                    if (log.isDebugEnabled()) {
-                        log.debug("Keeping role " + role + " for user " + user.getName());
+                }
+
+                if (roles.size() < batchSize) {
+                    break;
+                }
+            }
+
+            for (int i = 0; i < toRemove.size(); i++) {
+                String role = (String) toRemove.get(i);
+                try {
+                    Group group = crowdService.getGroup(role);
+                    if (crowdService.isUserMemberOfGroup(crowdUser, group)) {
+                        if (TargetedTrace.isDebugEnabled(log)) {
+                            TargetedTrace.debug(log, "Removing user " + user.getName() + " from role " + role);
+                        }
+
+                        removeUserFromGroup(crowdService, crowdUser, group);
+                        purged++;
                     }
+                } catch (Throwable t) {
+                    provisioningFailed("purgeRole", "Error encountered in removing user " + user.getName() +
+                            " from role " + role, t);
                 }
             }
         }
+        return purged;
     }
 
     /**
@@ -293,38 +420,51 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
     }
 
     /**
-     * Creates a new user if the configuration allows it.
+     * Creates a new user if the configuration allows it. Full name and email address are set afterwards by
+     * updateUser.
      *
      * @param username user name for the new user
-     * @return the new user
      */
-    private void createUser(String username, String fullName, String emailAddress) {
-        if (log.isInfoEnabled()) {
+    private void createUser(String username) {
+        if (provisioning.isSummarizing()) {
+            if (TargetedTrace.isDebugEnabled(log)) {
+                TargetedTrace.debug(log, "Creating user account for " + username);
+            }
+        } else if (log.isInfoEnabled()) {
             log.info("Creating user account for " + username);
         }
 
+        long start = AuthenticatorStats.start();
+        Object event = PipelineEvents.begin(PipelineEvents.USER_CREATE);
+        String outcome = "failed";
         try {
-            createUser(getUserAccessor(), username, fullName, emailAddress);
+            createUser(countedUserAccessor(), username);
+            outcome = "created";
         } catch (Throwable t) {
             // Note: just catching EntityException like we used to do didn't
             // seem to cover Confluence massive with Oracle
-            if (log.isDebugEnabled()) {
-                log.debug("Error creating user " + username +
+            if (TargetedTrace.isDebugEnabled(log)) {
+                TargetedTrace.debug(log, "Error creating user " + username +
                         ". Will ignore and try to get the user (maybe it was already created)", t);
             }
+        } finally {
+            stats.record(AuthenticatorStats.CREATE_USER, start);
+            PipelineEvents.commit(event, username, 1, outcome);
         }
     }
 
-    private void updateUser(User user, String fullName, String emailAddress) {
+    private void updateUser(User user, ProfileAttributes profile) {
         // If we have new values for name or email, update the user object
         if (user == null) {
-            if (log.isDebugEnabled()) {
-                log.debug("User is null, so can't update it.");
+            if (TargetedTrace.isDebugEnabled(log)) {
+                TargetedTrace.debug(log, "User is null, so can't update it.");
             }
         } else {
-            boolean updated = false;
+            Object event = PipelineEvents.begin(PipelineEvents.USER_UPDATE);
+            int changed = 0;
+            String outcome = "unchanged";
 
-            CrowdService crowdService = getCrowdService();
+            CrowdService crowdService = countedCrowdService();
             if (crowdService == null) {
                 throw new RuntimeException("crowdService was not wired in RemoteUserAuthenticator");
             }
@@ -337,48 +477,146 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
             userBuilder.emailAddress(crowdUser.getEmailAddress());
             userBuilder.name(crowdUser.getName());
 
+            // Only now derive the values from the headers
+            String fullName = profile.getFullName();
+            String emailAddress = profile.getEmailAddress();
+
             if ((fullName != null) && !fullName.equals(crowdUser.getDisplayName())) {
-                if (log.isDebugEnabled()) {
-                    log.debug("Updating user fullName to '" + fullName + "'");
+                if (TargetedTrace.isDebugEnabled(log)) {
+                    TargetedTrace.debug(log, "Updating user fullName to '" + fullName + "'");
                 }
 
                 userBuilder.displayName(fullName);
-                updated = true;
+                changed++;
             } else {
-                if (log.isDebugEnabled()) {
-                    log.debug("New user fullName is same as old one: '" + fullName + "'");
+                if (TargetedTrace.isDebugEnabled(log)) {
+                    TargetedTrace.debug(log, "New user fullName is same as old one: '" + fullName + "'");
                 }
             }
 
             if ((emailAddress != null) && !emailAddress.equals(crowdUser.getEmailAddress())) {
-                if (log.isDebugEnabled()) {
-                    log.debug("Updating user emailAddress to '" + emailAddress + "'");
+                if (TargetedTrace.isDebugEnabled(log)) {
+                    TargetedTrace.debug(log, "Updating user emailAddress to '" + emailAddress + "'");
                 }
 
                 userBuilder.emailAddress(emailAddress);
-                updated = true;
+                changed++;
             } else {
-                if (log.isDebugEnabled()) {
-                    log.debug("New user emailAddress is same as old one: '" + emailAddress + "'");
+                if (TargetedTrace.isDebugEnabled(log)) {
+                    TargetedTrace.debug(log, "New user emailAddress is same as old one: '" + emailAddress + "'");
                 }
             }
 
-            if (updated) {
+            if (changed > 0) {
                 try {
                     updateUser(crowdService, userBuilder.toUser());
+                    outcome = "updated";
                 } catch (Throwable t) {
-                    log.error("Couldn't update user " + user.getName(), t);
+                    outcome = "failed";
+                    provisioningFailed("updateUser", "Couldn't update user " + user.getName(), t);
+                }
+            }
+
+            PipelineEvents.commit(event, user.getName(), changed, outcome);
+        }
+    }
+
+    /**
+     * Select the configuration for the request: the profile selected by the header.profile header, or the base
+     * configuration if there are no profiles or none matches. This is a single map lookup.
+     */
+    private ShibAuthConfiguration getConfiguration(HttpServletRequest request) {
+        ShibAuthConfiguration config = RemoteUserAuthenticator.config;
+
+        if (config.getProfileHeaderName() == null) {
+            return config;
+        }
+
+        ShibAuthConfiguration profile = config.getProfile(
+                getAttribute(request, config.getProfileHeaderName(), config.getProfileHeaderStrategy()));
+
+        if (TargetedTrace.isDebugEnabled(log) && profile != config) {
+            TargetedTrace.debug(log, "Using profile of configuration generation " + profile.getGeneration() + " for " +
+                    config.getProfileHeaderName() + "='" +
+                    getAttribute(request, config.getProfileHeaderName(), config.getProfileHeaderStrategy()) + "'");
+        }
+
+        return profile;
+    }
+
+    /**
+     * Get the userid of the user from the configured header (e.g. REMOTE_USER): parsed, mapped, with the character
+     * replacements applied and converted to lower case if configured.
+     * <p/>
+     * The same raw header value always results in the same userid for a given configuration, so the result is
+     * cached by raw value in the configuration snapshot. A reloaded configuration starts with an empty cache.
+     */
+    private String getNormalizedUserid(HttpServletRequest request, ShibAuthConfiguration config) {
+        long start = AuthenticatorStats.start();
+        try {
+            return readNormalizedUserid(request, config);
+        } finally {
+            stats.record(AuthenticatorStats.HEADER, start);
+        }
+    }
+
+    private String readNormalizedUserid(HttpServletRequest request, ShibAuthConfiguration config) {
+        Object event = PipelineEvents.begin(PipelineEvents.HEADER_SNAPSHOT);
+        String rawRemoteUser = getRawRemoteUser(request, config);
+        PipelineEvents.commit(event, null, rawRemoteUser == null ? 0 : 1, rawRemoteUser == null ? "missing" : "present");
+
+        event = PipelineEvents.begin(PipelineEvents.USERNAME_NORMALIZATION);
+        String userid;
+        String outcome;
+
+        if (rawRemoteUser == null) {
+            // Mappers without match regex may still produce a userid, nothing worth caching.
+            userid = normalizeUserid(null, config);
+            outcome = "none";
+        } else {
+            BoundedCache cache = config.getUsernameCache();
+            userid = (String) cache.get(rawRemoteUser);
+
+            if (userid == null) {
+                userid = normalizeUserid(rawRemoteUser, config);
+                cache.put(rawRemoteUser, userid);
+                outcome = "normalized";
+            } else {
+                outcome = "cached";
+                if (TargetedTrace.isDebugEnabled(log)) {
+                    TargetedTrace.debug(log, "Got cached userid '" + userid + "' for remote user '" + rawRemoteUser + "' (" + cache +
+                            ")");
                 }
             }
         }
+
+        PipelineEvents.commit(event, userid, userid == null ? 0 : 1, outcome);
+        return userid;
     }
 
-    private String getLoggedInUser(HttpServletRequest request) {
+    private String normalizeUserid(String rawRemoteUser, ShibAuthConfiguration config) {
+        String userid = createSafeUserid(getLoggedInUser(rawRemoteUser, config), config);
+
+        // Convert username to all lowercase because of issues with case, at least in earlier versions of Confluence.
+        if (config.isUsernameConvertCase()) {
+            userid = convertUsername(userid);
+        }
+
+        return userid;
+    }
+
+    private String getRawRemoteUser(HttpServletRequest request, ShibAuthConfiguration config) {
+        if (config.getRemoteUserHeaderName() != null) {
+            return getAttribute(request, config.getRemoteUserHeaderName(), config.getRemoteUserHeaderStrategy());
+        }
+
+        return unwrapRequestIfNeeded(request).getRemoteUser();
+    }
+
+    private String getLoggedInUser(String headerValue, ShibAuthConfiguration config) {
         String remoteUser = null;
 
         if (config.getRemoteUserHeaderName() != null) {
-            String headerValue = getAttribute(request, config.getRemoteUserHeaderName(),
-                    config.getRemoteUserHeaderStrategy());
             // the Shibboleth SP sends multiple values as single value, separated by comma or semicolon
             List values = StringUtil.toListOfNonEmptyStringsDelimitedByCommaOrSemicolon(headerValue);
 
@@ -395,8 +633,8 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
                     }
                 }
 
-                if (log.isDebugEnabled()) {
-                    log.debug("Got remoteUser '" + remoteUser + "' for header '" + config.getRemoteUserHeaderName() +
+                if (TargetedTrace.isDebugEnabled(log)) {
+                    TargetedTrace.debug(log, "Got remoteUser '" + remoteUser + "' for header '" + config.getRemoteUserHeaderName() +
                             "'");
                 }
 
@@ -404,15 +642,15 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
                     String tmp = StringUtil.convertToUTF8(remoteUser);
                     if (tmp != null) {
                         remoteUser = tmp;
-                        if (log.isDebugEnabled()) {
-                            log.debug("remoteUser converted to UTF-8 '" + remoteUser + "' for header '" + config.
+                        if (TargetedTrace.isDebugEnabled(log)) {
+                            TargetedTrace.debug(log, "remoteUser converted to UTF-8 '" + remoteUser + "' for header '" + config.
                                     getRemoteUserHeaderName() + "'");
                         }
                     }
                 }
             }
         } else {
-            remoteUser = unwrapRequestIfNeeded(request).getRemoteUser();
+            remoteUser = headerValue;
         }
 
         return remoteUser;
@@ -427,117 +665,50 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
         return request;
     }
 
-    private String getEmailAddress(HttpServletRequest request) {
-        String emailAddress = null;
-
-        if (config.getEmailHeaderName() != null) {
-            String headerValue = getAttribute(request, config.getEmailHeaderName(), config.getEmailHeaderStrategy());
-            // The Shibboleth SP sends multiple values as single value, separated by comma or semicolon.
-            List values = StringUtil.
-                    toListOfNonEmptyStringsDelimitedByCommaOrSemicolon(headerValue);
-
-            if (values != null && values.size() > 0) {
-                // Use the first email in the list.
-                emailAddress = (String) values.get(0);
-
-                if (log.isDebugEnabled()) {
-                    log.debug("Got emailAddress '" + emailAddress + "' for header '" + config.getEmailHeaderName() +
-                            "'");
-                }
-
-                if (config.isConvertToUTF8()) {
-                    String tmp = StringUtil.convertToUTF8(emailAddress);
-                    if (tmp != null) {
-                        emailAddress = tmp;
-                        if (log.isDebugEnabled()) {
-                            log.debug("emailAddress converted to UTF-8 '" + emailAddress + "' for header '" +
-                                    config.getEmailHeaderName() + "'");
-                        }
-                    }
-                }
-            }
-
-            if ((emailAddress != null) && (emailAddress.length() > 0)) {
-                emailAddress = emailAddress.toLowerCase();
-            }
-        } else {
-            if (log.isDebugEnabled()) {
-                log.debug("User email address header name in config was null/not specified.");
-            }
+    /**
+     * Record the headers of the request if it is sampled by capture.file. The remote user is hashed, the email and
+     * full name headers are left out.
+     *
+     * @param config configuration selected for the request, whose dynamicroles headers are recorded
+     */
+    private void captureHeaders(HttpServletRequest request, ShibAuthConfiguration config) {
+        // The capture belongs to the base configuration, profiles share it.
+        ShibAuthConfiguration base = RemoteUserAuthenticator.config;
+        HeaderCapture capture = base.getHeaderCapture();
+        if (!capture.sample()) {
+            return;
         }
 
-        return emailAddress;
-    }
-
-    private String getFullName(HttpServletRequest request, String userid) {
-        String fullName = null;
-
-        if (config.getFullNameHeaderName() != null) {
-            // assumes it is first value in list, if header is defined multiple times. Otherwise would need to call getHeaders()
-            String headerValue = getAttribute(request, config.getFullNameHeaderName(),
-                    config.getFullNameHeaderStrategy());
-            // the Shibboleth SP sends multiple values as single value, separated by comma or semicolon
-            List values = StringUtil.toListOfNonEmptyStringsDelimitedByCommaOrSemicolon(headerValue);
-
-            if (values != null && values.size() > 0) {
-                if (log.isDebugEnabled()) {
-                    log.debug("Original value of full name header '" + config.getFullNameHeaderName() + "' was '" +
-                            headerValue + "'");
-                }
-
-                if (config.getFullNameMappings() == null || config.getFullNameMappings().size() == 0) {
-                    // Default is to just use the first header value, if no fullname mappings.
-                    fullName = (String) values.get(0);
-                } else {
-                    fullName = createFullNameUsingMapping(headerValue, values);
-                }
-
-                if (log.isDebugEnabled()) {
-                    log.debug("Got fullName '" + fullName + "' for header '" + config.getFullNameHeaderName() + "'.");
-                }
-
-                if (config.isConvertToUTF8()) {
-                    String tmp = StringUtil.convertToUTF8(fullName);
-                    if (tmp != null) {
-                        fullName = tmp;
-                        if (log.isDebugEnabled()) {
-                            log.debug("fullName converted to UTF-8 '" + fullName + "' for header '" +
-                                    config.getFullNameHeaderName() + "'.");
-                        }
-                    }
-                }
-            } else {
-                if (log.isDebugEnabled()) {
-                    log.debug("User full name header name in config was null/not specified.");
-                }
-            }
+        List names = new ArrayList();
+        if (base.getProfileHeaderName() != null) {
+            names.add(base.getProfileHeaderName());
         }
+        names.addAll(Arrays.asList(config.getGroupMappingHeaders()));
 
-        if ((fullName == null) || (fullName.length() == 0)) {
-            if (log.isDebugEnabled()) {
-                log.debug("User full name was null or empty. Defaulting full name to user id.");
-            }
-
-            fullName = userid;
+        String[] headerNames = (String[]) names.toArray(new String[names.size()]);
+        String[] headerValues = DynamicRoles.getHeaderValues(request, headerNames);
+        if (base.getProfileHeaderName() != null) {
+            headerValues[0] = getAttribute(request, base.getProfileHeaderName(), base.getProfileHeaderStrategy());
         }
 
-        return fullName;
+        String remoteUserHeader = config.getRemoteUserHeaderName() == null ? "REMOTE_USER" :
+                config.getRemoteUserHeaderName();
+        capture.capture(remoteUserHeader, getRawRemoteUser(request, config), headerNames, headerValues);
     }
 
     /**
-     * This will populate accumulated (containing all roles discovered).
+     * @return roles to add and retract according to the dynamicroles headers
      */
-    private void getRolesFromHeader(HttpServletRequest request,
-                                    Set accumulatedRoles) {
-        Set attribHeaders = config.getGroupMappingKeys();
+    private RoleDecision getRolesFromHeader(HttpServletRequest request, ShibAuthConfiguration config) {
+        String[] headerNames = config.getGroupMappingHeaders();
 
         // check if we're interested in headers
-        if (attribHeaders.isEmpty()) {
-            return;
+        if (headerNames.length == 0) {
+            return new RoleDecision().resolve();
         }
 
         // log headers (this is helpful to users for debugging what is sent in)
-        if (log.isDebugEnabled()) {
+        if (TargetedTrace.isDebugEnabled(log)) {
             StringBuffer sb = new StringBuffer("HTTP Headers: ");
             boolean concat = false;
             for (Enumeration en = request.getHeaderNames(); en.hasMoreElements(); ) {
@@ -548,77 +719,54 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
                 sb.append("'" + headerName + "' = '" + request.getHeader(headerName) + "'");
                 concat = true;
             }
-            log.debug(sb.toString());
+            TargetedTrace.debug(log, sb.toString());
         }
 
-        //process the headers by looking up only those list of registered headers
-        for (Iterator headerIt = attribHeaders.iterator(); headerIt.hasNext(); ) {
-            String headerName = headerIt.next().toString();
-
-            String headerValuesString = null;
+        long start = AuthenticatorStats.start();
+        try {
+            return DynamicRoles.getRoles(headerNames, DynamicRoles.getHeaderValues(request, headerNames), config);
+        } finally {
+            stats.record(AuthenticatorStats.MAPPING, start);
+            config.getMapperProfiler().logIfDue(System.currentTimeMillis(), config.getGeneration());
+        }
+    }
 
-            Object attr = request.getAttribute(headerName);
-            if (attr instanceof String) {
-                headerValuesString = (String) attr;
-            }
+    /**
+     * Verify the password of a user, used for Basic Auth and local login. If credential.cache.ttl is set, a
+     * successful verification is remembered for that long, so repeated requests with the same credentials (e.g.
+     * REST clients sending Basic Auth on every call) skip the directory. A remembered verification is only used
+     * while the user is not deactivated.
+     */
+    protected boolean authenticate(Principal user, String password) throws AuthenticatorException {
+        CredentialCache cache = config.getCredentialCache();
 
-            if (headerValuesString == null) {
-                headerValuesString = "";
-                for (Enumeration en = request.getHeaders(headerName); en.hasMoreElements(); ) {
-                    headerValuesString += en.nextElement().toString();
-                }
-            }
+        if (user == null || password == null || !cache.isEnabled()) {
+            return super.authenticate(user, password);
+        }
 
-            //shib sends values in semicolon separated, so split it up too
-            List headerValues = StringUtil.toListOfNonEmptyStringsDelimitedByCommaOrSemicolon(headerValuesString);
-            for (int j = 0; j < headerValues.size(); j++) {
-                String headerValue = (String) headerValues.get(j);
-                if (config.isConvertToUTF8()) {
-                    String tmp = StringUtil.convertToUTF8(headerValue);
-                    if (tmp != null) {
-                        headerValue = tmp;
-                    }
-                }
+        String username = user.getName();
+        String key = cache.getKey(username, password);
+        long now = System.currentTimeMillis();
 
-                if (log.isDebugEnabled()) {
-                    log.debug("Processing dynamicroles header=" + headerName + ", value=" + headerValue);
+        if (cache.isVerified(key, now)) {
+            if (!countedUserAccessor().isDeactivated(username)) {
+                if (TargetedTrace.isDebugEnabled(log)) {
+                    TargetedTrace.debug(log, "Using cached password verification of user " + username + " (" + cache + ")");
                 }
 
-                Collection mappers = config.getGroupMappings(headerName);
-                boolean found = false;
-
-                for (Iterator mapperIt = mappers.iterator(); mapperIt.hasNext(); ) {
-                    GroupMapper mapper = (GroupMapper) mapperIt.next();
-
-                    // We may get multiple groups returned by a single matched, e.g. matching "XXX" --> "A, B, C".
-                    String[] results = (String[]) StringUtil.toListOfNonEmptyStringsDelimitedByCommaOrSemicolon(
-                            mapper.process(headerValue)).toArray(new String[0]);
-
-                    for (int i = 0; i < results.length; i++) {
-                        String result = results[i];
+                return true;
+            }
 
-                        if (result.length() != 0) {
-                            if (!accumulatedRoles.contains(result)) {
-                                if (config.isOutputToLowerCase()) {
-                                    result = result.toLowerCase();
-                                }
+            cache.invalidate(key);
+        }
 
-                                accumulatedRoles.add(result);
+        boolean authenticated = super.authenticate(user, password);
 
-                                if (log.isDebugEnabled()) {
-                                    log.debug("Found role mapping from '" + headerValue + "' to '" + result + "'");
-                                }
-                            }
-                            found = true;
-                        }
-                    }
-                }
-
-                if (log.isDebugEnabled() && !found) {
-                    log.debug("No mapper capable of processing role value=" + headerValue);
-                }
-            }
+        if (authenticated) {
+            cache.verified(key, now);
         }
+
+        return authenticated;
     }
 
     private boolean isSecondTimeThroughLoginWithoutReturning(HttpServletRequest request) {
@@ -644,6 +792,27 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
      * Check if user has been authenticated by Shib. Username, password, and cookie are totally ignored.
      */
     public boolean login(HttpServletRequest request, HttpServletResponse response, String username, String password, boolean cookie) throws AuthenticatorException {
+        long start = AuthenticatorStats.start();
+        BackendCalls calls = BackendCalls.begin();
+        LoginTrace trace = stats.beginTrace("login");
+        boolean nested = TargetedTrace.isTraced();
+        if (!nested) {
+            TargetedTrace.beginIfHeaderMatches(config, request);
+        }
+        try {
+            return doLogin(request, response, username, password, cookie);
+        } finally {
+            stats.record(AuthenticatorStats.LOGIN, start);
+            stats.recordBackendCalls(BackendCalls.end(calls));
+            stats.endTrace(trace, request, calls);
+            if (!nested) {
+                TargetedTrace.end();
+            }
+            provisioning.logIfDue(System.currentTimeMillis());
+        }
+    }
+
+    private boolean doLogin(HttpServletRequest request, HttpServletResponse response, String username, String password, boolean cookie) throws AuthenticatorException {
 
         String remoteIP = request.getRemoteAddr();
         String remoteHost = request.getRemoteHost();
@@ -652,8 +821,8 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
         if (isSecondTimeThroughLoginWithoutReturning(request)) {
             loginFailed(request, username, remoteHost, remoteIP, "LocalUserLoginWithNoCredentials");
 
-            if (log.isDebugEnabled()) {
-                log.debug("Authenticator is returning false from second call to public boolean login(HttpServletRequest request, HttpServletResponse response, String username, String password, boolean cookie)");
+            if (TargetedTrace.isDebugEnabled(log)) {
+                TargetedTrace.debug(log, "Authenticator is returning false from second call to public boolean login(HttpServletRequest request, HttpServletResponse response, String username, String password, boolean cookie)");
             }
 
             readyToReturnFromLogin(request);
@@ -662,17 +831,6 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
 
         guardFromInfiniteLoginRecursion(request);
 
-        if (RedirectUtils.isBasicAuthentication(request, getAuthType())) {
-            final Principal basicAuthUser = getUserFromBasicAuthentication(request, response);
-            if (basicAuthUser != null) {
-                if (log.isDebugEnabled()) {
-                    log.debug(String.format("Login for user %s succeeded via Basic Auth", basicAuthUser.getName()));
-                }
-                readyToReturnFromLogin(request);
-                return true;
-            }
-        }
-
         // Converting reliance on getUser(request,response) to use login(...) instead. The logic flow is:
         // 1) Seraph Login filter, which is based on username/password kicks in (declared at web.xml)
         // 2) It bails out altogether and identified user as invalid (without calling any of login(request,response)
@@ -683,127 +841,166 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
         // ShibLoginFilter to make sure login is performed in some versions of Confluence, but it works without it, so
         // that is off by default.
 
-        if (log.isDebugEnabled()) {
-            log.debug("login(...) called. requestURL=" + request.getRequestURL() + ", username=" + username + ", remoteIP=" + remoteIP + ", remoteHost=" + remoteHost);
+        if (TargetedTrace.isDebugEnabled(log)) {
+            TargetedTrace.debug(log, "login(...) called. requestURL=" + request.getRequestURL() + ", username=" + username + ", remoteIP=" + remoteIP + ", remoteHost=" + remoteHost);
         }
 
-        // Since they aren't logged in, get the user name from the configured header (e.g. REMOTE_USER).
-        String userid = createSafeUserid(getLoggedInUser(request));
-
-        // Does the user have a "Remember Me" cookie set?
-        final Principal cookieUser = getUserFromCookie(request, response);
-        if (cookieUser != null) {
-            log.debug(String.format("Login for user %s succeeded via Remember Me cookie", cookieUser.getName()));
-            readyToReturnFromLogin(request);
-            return true;
-        }
+        // Try the sources of an authenticated user in the configured order (auth.chain), stopping at the first one
+        // that has a user, so that later sources cost nothing.
+        int[] sources = config.getAuthChain().getLoginSources();
+        for (int i = 0; i < sources.length; i++) {
+            switch (sources[i]) {
+                case AuthChain.BASIC:
+                    if (RedirectUtils.isBasicAuthentication(request, getAuthType())) {
+                        final Principal basicAuthUser = getUserFromBasicAuthentication(request, response);
+                        if (basicAuthUser != null) {
+                            AuthChain.hit(AuthChain.BASIC);
+                            if (TargetedTrace.isDebugEnabled(log)) {
+                                TargetedTrace.debug(log, String.format("Login for user %s succeeded via Basic Auth", basicAuthUser.getName()));
+                            }
+                            readyToReturnFromLogin(request);
+                            return true;
+                        }
+                    }
+                    break;
+
+                case AuthChain.COOKIE:
+                    // Does the user have a "Remember Me" cookie set?
+                    final Principal cookieUser = getUserFromCookie(request, response);
+                    if (cookieUser != null) {
+                        AuthChain.hit(AuthChain.COOKIE);
+                        TargetedTrace.debug(log, String.format("Login for user %s succeeded via Remember Me cookie", cookieUser.getName()));
+                        readyToReturnFromLogin(request);
+                        return true;
+                    }
+                    break;
+
+                case AuthChain.HEADER:
+                    // Get the user name from the configured header (e.g. REMOTE_USER). The configuration is selected
+                    // once, so the userid and the rest of the login use the same snapshot and profile.
+                    ShibAuthConfiguration loginConfig = getConfiguration(request);
+                    String userid = getNormalizedUserid(request, loginConfig);
+                    if ((userid != null) && (userid.length() > 0)) {
+                        AuthChain.hit(AuthChain.HEADER);
+                        return loginWithRemoteUser(request, response, username, userid, loginConfig, remoteHost,
+                                remoteIP);
+                    }
 
-        if ((userid == null) || (userid.length() <= 0)) {
-            if (log.isDebugEnabled()) {
-                log.debug("Remote user was null or empty.");
+                    if (TargetedTrace.isDebugEnabled(log)) {
+                        TargetedTrace.debug(log, "Remote user was null or empty.");
+                    }
+                    break;
             }
+        }
 
-            // Calling super.login to try local login if username and password are set. Local login won't work if
-            // ShibLoginFilter is used
-            if (config.isLocalLoginSupported() && username != null && password != null) {
-                if (log.isDebugEnabled()) {
-                    log.debug("Trying local login for user " + username);
-                }
-
-                boolean localLoginSuccess = super.login(request, response, username, password, cookie);
-                if (localLoginSuccess) {
-                    User user = getCrowdUser(username, request, remoteHost, remoteIP);
-                    loginSuccessful(request, response, username, user, remoteHost, remoteIP);
-                } else {
-                    loginFailed(request, username, remoteHost, remoteIP, "LocalUserLoginFailed");
-                }
+        AuthChain.miss();
 
-                if (log.isDebugEnabled()) {
-                    log.debug("Authenticator is returning " + localLoginSuccess + " from call to public boolean login(HttpServletRequest request, HttpServletResponse response, String username, String password, boolean cookie)");
-                }
+        // Calling super.login to try local login if username and password are set. Local login won't work if
+        // ShibLoginFilter is used
+        if (config.isLocalLoginSupported() && username != null && password != null) {
+            if (TargetedTrace.isDebugEnabled(log)) {
+                TargetedTrace.debug(log, "Trying local login for user " + username);
+            }
 
-                return localLoginSuccess;
+            boolean localLoginSuccess = super.login(request, response, username, password, cookie);
+            if (localLoginSuccess) {
+                User user = getCrowdUser(username, request, remoteHost, remoteIP);
+                loginSuccessful(request, response, username, user, remoteHost, remoteIP);
             } else {
-                if (config.isLocalLoginSupported() && log.isDebugEnabled()) {
-                    log.debug("Cannot perform local login because username or password was not provided.");
-                }
+                loginFailed(request, username, remoteHost, remoteIP, "LocalUserLoginFailed");
+            }
 
-                loginFailed(request, username, remoteHost, remoteIP, "LocalUserLoginWithNoCredentials");
+            if (TargetedTrace.isDebugEnabled(log)) {
+                TargetedTrace.debug(log, "Authenticator is returning " + localLoginSuccess + " from call to public boolean login(HttpServletRequest request, HttpServletResponse response, String username, String password, boolean cookie)");
+            }
 
-                if (log.isDebugEnabled()) {
-                    log.debug("Authenticator is returning false from call to public boolean login(HttpServletRequest request, HttpServletResponse response, String username, String password, boolean cookie)");
-                }
+            return localLoginSuccess;
+        } else {
+            if (config.isLocalLoginSupported() && TargetedTrace.isDebugEnabled(log)) {
+                TargetedTrace.debug(log, "Cannot perform local login because username or password was not provided.");
+            }
 
-                readyToReturnFromLogin(request);
-                return false;
+            loginFailed(request, username, remoteHost, remoteIP, "LocalUserLoginWithNoCredentials");
+
+            if (TargetedTrace.isDebugEnabled(log)) {
+                TargetedTrace.debug(log, "Authenticator is returning false from call to public boolean login(HttpServletRequest request, HttpServletResponse response, String username, String password, boolean cookie)");
             }
+
+            readyToReturnFromLogin(request);
+            return false;
         }
+    }
 
+    /**
+     * Log in the user identified by the remote user header, creating and updating the user as configured.
+     *
+     * @param username username passed to login(), used in log messages and events
+     * @param userid      normalized userid from the remote user header
+     * @param loginConfig configuration the userid was read with, used for the whole login even if it is reloaded
+     */
+    private boolean loginWithRemoteUser(HttpServletRequest request, HttpServletResponse response, String username,
+                                        String userid, ShibAuthConfiguration loginConfig, String remoteHost,
+                                        String remoteIP) {
         // Now that we know we will be trying to log the user in,
         // let's see if we should reload the config file first
         checkReloadConfig();
-
-        // Convert username to all lowercase because of issues with case, at least in earlier versions of Confluence.
-        if (config.isUsernameConvertCase()) {
-            userid = convertUsername(userid);
-        }
-
+        captureHeaders(request, loginConfig);
+        TargetedTrace.beginIfUserMatches(loginConfig, userid);
         User crowdUser = getCrowdUser(userid, request, remoteHost, remoteIP);
 
-        // Pull name and address from headers
-        String fullName = getFullName(request, userid);
-        String emailAddress = getEmailAddress(request);
+        // Name and address are pulled from headers only if the user is created or updated
+        ProfileAttributes profile = new ProfileAttributes(request, userid, loginConfig);
 
         // Try to get the user's account based on the user name
-        Principal user = getUser(userid);
+        Principal user = lookupUser(userid);
         boolean newUser = false;
 
         // User didn't exist or was problem getting it. we'll try to create it if we can, otherwise will try to get it
         // again.
         if (user == null) {
-            if (config.isCreateUsers()) {
-                createUser(userid, fullName, emailAddress);
+            if (loginConfig.isCreateUsers()) {
+                createUser(userid);
                 newUser = true;
             } else {
-                if (log.isDebugEnabled()) {
-                    log.debug("Configuration does NOT allow creation of new user accounts, authentication will fail for " +
+                if (TargetedTrace.isDebugEnabled(log)) {
+                    TargetedTrace.debug(log, "Configuration does NOT allow creation of new user accounts, authentication will fail for " +
                             username);
                 }
 
                 loginFailed(request, username, remoteHost, remoteIP, "CreateUserDisabled");
 
-                if (log.isDebugEnabled()) {
-                    log.debug("Authenticator is returning false from call to public boolean login(HttpServletRequest request, HttpServletResponse response, String username, String password, boolean cookie)");
+                if (TargetedTrace.isDebugEnabled(log)) {
+                    TargetedTrace.debug(log, "Authenticator is returning false from call to public boolean login(HttpServletRequest request, HttpServletResponse response, String username, String password, boolean cookie)");
                 }
                 readyToReturnFromLogin(request);
                 return false;
             }
 
-            user = getUser(userid);
+            user = lookupUser(userid);
             if (user != null) {
                 // update the first time even if update not set, because we need to set full name and email
-                updateUser(crowdUser, fullName, emailAddress);
+                updateUser(crowdUser, profile);
             } else {
                 // this could be a warning rather than debug, but in certain environments it might happen more often.
-                if (log.isDebugEnabled()) {
-                    log.debug("Got null user after creating user " + username + " so could not update it to set its fullname or email.");
+                if (TargetedTrace.isDebugEnabled(log)) {
+                    TargetedTrace.debug(log, "Got null user after creating user " + username + " so could not update it to set its fullname or email.");
                 }
             }
         } else {
-            if (config.isUpdateInfo()) {
-                updateUser(crowdUser, fullName, emailAddress);
+            if (loginConfig.isUpdateInfo()) {
+                updateUser(crowdUser, profile);
             }
         }
 
-        if (config.isUpdateRoles() || newUser) {
-            updateGroupMemberships(request, crowdUser);
+        if (loginConfig.isUpdateRoles() || newUser) {
+            updateGroupMemberships(request, crowdUser, loginConfig);
         }
 
         // kick off login related methods
         loginSuccessful(request, response, userid, crowdUser, remoteHost, remoteIP);
 
-        if (log.isDebugEnabled()) {
-            log.debug("Authenticator is returning true from call to public boolean login(HttpServletRequest request, HttpServletResponse response, String username, String password, boolean cookie)");
+        if (TargetedTrace.isDebugEnabled(log)) {
+            TargetedTrace.debug(log, "Authenticator is returning true from call to public boolean login(HttpServletRequest request, HttpServletResponse response, String username, String password, boolean cookie)");
         }
 
         readyToReturnFromLogin(request);
@@ -813,8 +1010,8 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
     private void loginSuccessful(HttpServletRequest request,
                                  HttpServletResponse response, String username, User user,
                                  String remoteHost, String remoteIP) {
-        if (log.isDebugEnabled()) {
-            log.debug("Logging in user "
+        if (TargetedTrace.isDebugEnabled(log)) {
+            TargetedTrace.debug(log, "Logging in user "
                     + ((user != null) ? user.getName() : username)
                     + ". request=" + request + ", response=" + response
                     + ", username=" + username + ", user=" + user
@@ -829,14 +1026,28 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
             // versions.
             putPrincipalInSessionContext(request, user);
         }
-        // TODO: Joe Clark uses getElevatedSecurityGuard() vs.
-        // getLoginManager(). Which should we use?
-        // see:
-        // https://bitbucket.org/jaysee00/example-confluence-sso-authenticator/src/381eb95ebc08/src/main/java/com/atlassian/confluence/seraph/example/ExampleSSOAuthenticator.java
-        getLoginManager().onSuccessfulLoginAttempt(username, request);
-        getEventPublisher().publish(
-                new LoginEvent(this, username, request.getSession().getId(),
-                        remoteHost, remoteIP, LoginEvent.UNKNOWN));
+        if (!config.isUpdateLastLogin()) {
+            lastLoginThrottle.suppressed();
+        } else if (lastLoginThrottle.shouldRecord(username, config.getUpdateLastLoginInterval(),
+                config.getUpdateLastLoginMaxTracked())) {
+            // TODO: Joe Clark uses getElevatedSecurityGuard() vs.
+            // getLoginManager(). Which should we use?
+            // see:
+            // https://bitbucket.org/jaysee00/example-confluence-sso-authenticator/src/381eb95ebc08/src/main/java/com/atlassian/confluence/seraph/example/ExampleSSOAuthenticator.java
+            getLoginManager().onSuccessfulLoginAttempt(username, request);
+            getEventPublisher().publish(
+                    new LoginEvent(this, username, request.getSession().getId(),
+                            remoteHost, remoteIP, LoginEvent.UNKNOWN));
+        } else {
+            if (TargetedTrace.isDebugEnabled(log)) {
+                TargetedTrace.debug(log, "Not recording login of " + username + ", it was already recorded within the last " +
+                        config.getUpdateLastLoginInterval() + " ms. Suppressed so far: " +
+                        lastLoginThrottle.getSuppressedCount() + ", recorded: " + lastLoginThrottle.getRecordedCount());
+            }
+        }
+
+        stats.loginSucceeded();
+        LoginTrace.outcome(username, null);
         LoginReason.OK.stampRequestResponse(request, response);
     }
 
@@ -845,54 +1056,109 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
         if (username == null) {
             username = "(none)";
         }
-        if (log.isDebugEnabled()) {
-            log.debug("Login failed for user " + username + ". request=" + request + ", username=" + username + ", remoteHost=" + remoteHost + ", remoteIP=" + remoteIP + ", reason=" + reason);
+        if (TargetedTrace.isDebugEnabled(log)) {
+            TargetedTrace.debug(log, "Login failed for user " + username + ". request=" + request + ", username=" + username + ", remoteHost=" + remoteHost + ", remoteIP=" + remoteIP + ", reason=" + reason);
         }
 
+        stats.loginFailed(reason);
+        LoginTrace.outcome(username, reason);
         getLoginManager().onFailedLoginAttempt(username, request);
         getEventPublisher().publish(new LoginFailedEvent(this, reason, request.getSession().getId(),
                 remoteHost, remoteIP));
     }
 
-    private void updateGroupMemberships(HttpServletRequest request, User user) {
+    private void updateGroupMemberships(HttpServletRequest request, User user, ShibAuthConfiguration config) {
         if (user == null) {
-            if (log.isDebugEnabled()) {
-                log.debug("User is null, so can't update group memberships.");
+            if (TargetedTrace.isDebugEnabled(log)) {
+                TargetedTrace.debug(log, "User is null, so can't update group memberships.");
             }
         } else {
-            Set roles = new HashSet();
+            Object event = PipelineEvents.begin(PipelineEvents.ROLE_DERIVATION);
+            RoleDecision decision = getRolesFromHeader(request, config);
+            PipelineEvents.commit(event, user.getName(),
+                    decision.getAddedIds().cardinality() + decision.getRetractedIds().cardinality(), "OK");
+
+            // Roles are combined as sets of GroupDictionary ids. Only the memberships of these roles are checked, the
+            // cost does not depend on how many groups the user is a member of.
+            GroupDictionary dictionary = GroupDictionary.getInstance();
+            BitSet defaults = dictionary.encode(config.getDefaultRoles());
 
             // Add user to groups.
-            getRolesFromHeader(request, roles);
-            assignUserToRoles(user, config.getDefaultRoles(), user);
-            assignUserToRoles(user, roles, user);
+            BitSet toAdd = (BitSet) defaults.clone();
+            toAdd.or(decision.getAddedIds());
+            event = PipelineEvents.begin(PipelineEvents.MEMBERSHIP_SYNC);
+            long start = AuthenticatorStats.start();
+            assignUserToRoles(user, dictionary.decode(toAdd), user, config);
+            stats.record(AuthenticatorStats.ASSIGN_ROLES, start);
+
+            // A failed mapper may have missed roles the user should keep, so leave the memberships alone
+            if (decision.isIncomplete()) {
+                PipelineEvents.commit(event, user.getName(), toAdd.cardinality(), "incomplete");
+                if (TargetedTrace.isDebugEnabled(log)) {
+                    TargetedTrace.debug(log, "Not retracting or purging roles of " + user.getName() +
+                            ", because a dynamicroles mapper failed.");
+                }
+                return;
+            }
+
+            // Remove user from groups of mappers with retract=true, never from default roles
+            BitSet toRetract = (BitSet) decision.getRetractedIds().clone();
+            toRetract.andNot(defaults);
+            start = AuthenticatorStats.start();
+            retractUserRoles(user, dictionary.decode(toRetract));
+            stats.record(AuthenticatorStats.RETRACT_ROLES, start);
+            PipelineEvents.commit(event, user.getName(), toAdd.cardinality() + toRetract.cardinality(), "OK");
 
             // Make sure we don't purge default roles either
-            roles.addAll(config.getDefaultRoles());
-            purgeUserRoles(user, roles);
+            event = PipelineEvents.begin(PipelineEvents.PURGE);
+            start = AuthenticatorStats.start();
+            int purged = purgeUserRoles(user, toAdd, config);
+            stats.record(AuthenticatorStats.PURGE_ROLES, start);
+            PipelineEvents.commit(event, user.getName(), purged, "OK");
+        }
+    }
+
+    /**
+     * @return names of up to max groups the user is a member of, starting at the given index
+     */
+    private List getGroupNames(CrowdService crowdService, String username, int start, int max) {
+        Iterable names = crowdService.search(QueryBuilder.queryFor(String.class, EntityDescriptor.group())
+                .parentsOf(EntityDescriptor.user()).withName(username).startingAt(start).returningAtMost(max));
+
+        List list = new ArrayList();
+        for (Iterator it = names.iterator(); it.hasNext(); ) {
+            list.add(it.next());
         }
+
+        return list;
     }
 
     private User getCrowdUser(String userid, HttpServletRequest request, String remoteHost, String remoteIP) {
-        CrowdService crowdService = getCrowdService();
+        CrowdService crowdService = countedCrowdService();
         if (crowdService == null) {
             loginFailed(request, userid, remoteHost, remoteIP, "AuthenticatorConfigFailure");
-            if (log.isDebugEnabled()) {
-                log.debug("Authenticator is throwing RuntimeException from call to public boolean login(HttpServletRequest request, HttpServletResponse response, String username, String password, boolean cookie)");
+            if (TargetedTrace.isDebugEnabled(log)) {
+                TargetedTrace.debug(log, "Authenticator is throwing RuntimeException from call to public boolean login(HttpServletRequest request, HttpServletResponse response, String username, String password, boolean cookie)");
             }
 
             throw new RuntimeException("crowdService was not wired in RemoteUserAuthenticator");
         }
 
         // ensure user is active
-        User crowdUser = crowdService.getUser(userid);
+        long start = AuthenticatorStats.start();
+        User crowdUser;
+        try {
+            crowdUser = crowdService.getUser(userid);
+        } finally {
+            stats.record(AuthenticatorStats.CROWD_GET_USER, start);
+        }
         if (crowdUser != null && !crowdUser.isActive()) {
             log.info("Login failed for user '" + userid + "', because user is set as inactive. remoteIP=" + remoteIP + " remoteHost=" + remoteHost);
 
             loginFailed(request, userid, remoteHost, remoteIP, "UserInactive");
 
-            if (log.isDebugEnabled()) {
-                log.debug("Authenticator is returning null from call to public Principal getUser(HttpServletRequest request, HttpServletResponse response)");
+            if (TargetedTrace.isDebugEnabled(log)) {
+                TargetedTrace.debug(log, "Authenticator is returning null from call to public Principal getUser(HttpServletRequest request, HttpServletResponse response)");
             }
             return null;
         }
@@ -901,96 +1167,144 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
     }
 
     public Principal getUser(HttpServletRequest request, HttpServletResponse response) {
+        long start = AuthenticatorStats.start();
+        BackendCalls calls = BackendCalls.begin();
+        LoginTrace trace = stats.beginTrace("getUser");
+        boolean nested = TargetedTrace.isTraced();
+        if (!nested) {
+            TargetedTrace.beginIfHeaderMatches(config, request);
+        }
+        try {
+            return doGetUser(request, response);
+        } finally {
+            stats.record(AuthenticatorStats.GET_USER, start);
+            stats.recordBackendCalls(BackendCalls.end(calls));
+            stats.endTrace(trace, request, calls);
+            if (!nested) {
+                TargetedTrace.end();
+            }
+            provisioning.logIfDue(System.currentTimeMillis());
+        }
+    }
+
+    private Principal doGetUser(HttpServletRequest request, HttpServletResponse response) {
 
         String remoteIP = request.getRemoteAddr();
         String remoteHost = request.getRemoteHost();
 
-        if (log.isDebugEnabled()) {
-            log.debug("getUser(...) called. requestURL=" + request.getRequestURL() + ", remoteIP=" + remoteIP + ", remoteHost=" + remoteHost);
+        if (TargetedTrace.isDebugEnabled(log)) {
+            TargetedTrace.debug(log, "getUser(...) called. requestURL=" + request.getRequestURL() + ", remoteIP=" + remoteIP + ", remoteHost=" + remoteHost);
         }
 
-        final Principal localUser = super.getUser(request, response);
-        if (localUser != null) {
-            if (log.isDebugEnabled()) {
-                log.debug(String.format("Login for user %s succeeded via local login", localUser.getName()));
+        // Try the sources of an authenticated user in the configured order (auth.chain), stopping at the first one
+        // that has a user, so that later sources cost nothing.
+        int[] sources = config.getAuthChain().getGetUserSources();
+        for (int i = 0; i < sources.length; i++) {
+            switch (sources[i]) {
+                case AuthChain.SESSION:
+                    final Principal localUser = super.getUser(request, response);
+                    if (localUser != null) {
+                        AuthChain.hit(AuthChain.SESSION);
+                        if (TargetedTrace.isDebugEnabled(log)) {
+                            TargetedTrace.debug(log, String.format("Login for user %s succeeded via local login", localUser.getName()));
+                        }
+                        return localUser;
+                    }
+                    break;
+
+                case AuthChain.COOKIE:
+                    // Does the user have a "Remember Me" cookie set?
+                    final Principal cookieUser = getUserFromCookie(request, response);
+                    if (cookieUser != null) {
+                        AuthChain.hit(AuthChain.COOKIE);
+                        TargetedTrace.debug(log, String.format("Login for user %s succeeded via Remember Me cookie", cookieUser.getName()));
+                        return cookieUser;
+                    }
+                    break;
+
+                case AuthChain.BASIC:
+                    // Is the incoming request flagged with Basic Auth credentials?
+                    if (RedirectUtils.isBasicAuthentication(request, getAuthType())) {
+                        final Principal basicAuthUser = getUserFromBasicAuthentication(request, response);
+                        if (basicAuthUser != null) {
+                            AuthChain.hit(AuthChain.BASIC);
+                            if (TargetedTrace.isDebugEnabled(log)) {
+                                TargetedTrace.debug(log, String.format("Login for user %s succeeded via Basic Auth", basicAuthUser.getName()));
+                            }
+                            return basicAuthUser;
+                        }
+                    }
+                    break;
+
+                case AuthChain.HEADER:
+                    // Get the user name from the REMOTE_USER header, see login()
+                    ShibAuthConfiguration loginConfig = getConfiguration(request);
+                    String userid = getNormalizedUserid(request, loginConfig);
+                    if ((userid != null) && (userid.length() > 0)) {
+                        AuthChain.hit(AuthChain.HEADER);
+                        return getUserWithRemoteUser(request, response, userid, loginConfig, remoteHost, remoteIP);
+                    }
+                    break;
             }
-            return localUser;
         }
 
-        // Does the user have a "Remember Me" cookie set?
-        final Principal cookieUser = getUserFromCookie(request, response);
-        if (cookieUser != null) {
-            log.debug(String.format("Login for user %s succeeded via Remember Me cookie", cookieUser.getName()));
-            return cookieUser;
-        }
+        AuthChain.miss();
 
-        // Is the incoming request flagged with Basic Auth credentials?
-        if (RedirectUtils.isBasicAuthentication(request, getAuthType())) {
-            final Principal basicAuthUser = getUserFromBasicAuthentication(request, response);
-            if (basicAuthUser != null) {
-                if (log.isDebugEnabled()) {
-                    log.debug(String.format("Login for user %s succeeded via Basic Auth", basicAuthUser.getName()));
-                }
-                return basicAuthUser;
-            }
+        if (TargetedTrace.isDebugEnabled(log)) {
+            TargetedTrace.debug(log, "Remote user was null or empty, can not perform authentication.");
         }
 
-        // Since they aren't logged in, get the user name from
-        // the REMOTE_USER header
-        String userid = createSafeUserid(getLoggedInUser(request));
-
-        if ((userid == null) || (userid.length() <= 0)) {
-            if (log.isDebugEnabled()) {
-                log.debug("Remote user was null or empty, can not perform authentication.");
-            }
-
-            loginFailed(request, userid, remoteHost, remoteIP, "NoUsername");
+        loginFailed(request, null, remoteHost, remoteIP, "NoUsername");
 
-            if (log.isDebugEnabled()) {
-                log.debug("Authenticator is returning null from call to public Principal getUser(HttpServletRequest request, HttpServletResponse response)");
-            }
-            return null;
+        if (TargetedTrace.isDebugEnabled(log)) {
+            TargetedTrace.debug(log, "Authenticator is returning null from call to public Principal getUser(HttpServletRequest request, HttpServletResponse response)");
         }
+        return null;
+    }
 
+    /**
+     * Get the user identified by the remote user header, creating and updating the user as configured.
+     *
+     * @param userid      normalized userid from the remote user header
+     * @param loginConfig configuration the userid was read with, used for the whole call even if it is reloaded
+     */
+    private Principal getUserWithRemoteUser(HttpServletRequest request, HttpServletResponse response, String userid,
+                                            ShibAuthConfiguration loginConfig, String remoteHost, String remoteIP) {
         // Now that we know we will be trying to log the user in,
         // let's see if we should reload the config file first
         checkReloadConfig();
+        captureHeaders(request, loginConfig);
+        TargetedTrace.beginIfUserMatches(loginConfig, userid);
 
-        // Convert username to all lowercase
-        if (config.isUsernameConvertCase()) {
-            userid = convertUsername(userid);
-        }
-
-        // Pull name and address from headers
-        String fullName = getFullName(request, userid);
-        String emailAddress = getEmailAddress(request);
+        // Name and address are pulled from headers only if the user is created or updated
+        ProfileAttributes profile = new ProfileAttributes(request, userid, loginConfig);
 
         // Try to get the user's account based on the user name
-        Principal user = getUser(userid);
+        Principal user = lookupUser(userid);
 
         boolean newUser = false;
 
         // User didn't exist or was problem getting it. we'll try to create it
         // if we can, otherwise will try to get it again.
         if (user == null) {
-            if (config.isCreateUsers()) {
-                createUser(userid, fullName, emailAddress);
+            if (loginConfig.isCreateUsers()) {
+                createUser(userid);
                 newUser = true;
             } else {
-                if (log.isDebugEnabled()) {
-                    log.debug("Configuration does NOT allow creation of new user accounts, authentication will fail for " +
+                if (TargetedTrace.isDebugEnabled(log)) {
+                    TargetedTrace.debug(log, "Configuration does NOT allow creation of new user accounts, authentication will fail for " +
                             userid + ". Login attempt by '" + userid + "' failed.");
                 }
 
                 loginFailed(request, userid, remoteHost, remoteIP, "CreateUserDisabled");
 
-                if (log.isDebugEnabled()) {
-                    log.debug("Authenticator is returning null from call to public Principal getUser(HttpServletRequest request, HttpServletResponse response)");
+                if (TargetedTrace.isDebugEnabled(log)) {
+                    TargetedTrace.debug(log, "Authenticator is returning null from call to public Principal getUser(HttpServletRequest request, HttpServletResponse response)");
                 }
                 return null;
             }
 
-            user = getUser(userid);
+            user = lookupUser(userid);
             User crowdUser = getCrowdUser(userid, request, remoteHost, remoteIP);
             if (crowdUser == null) {
                 return null;
@@ -998,20 +1312,20 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
 
             if (user != null) {
                 // update the first time even if update not set, because we need to set full name and email
-                updateUser(crowdUser, fullName, emailAddress);
+                updateUser(crowdUser, profile);
             } else {
                 // If user is still null, probably we're using an
                 // external user database like LDAP. Either REMOTE_USER
                 // isn't present there or is being filtered out, e.g.
                 // by userSearchFilter
-                if (log.isDebugEnabled()) {
-                    log.debug("User does not exist and cannot create it. Login attempt by '" + userid + "' failed.");
+                if (TargetedTrace.isDebugEnabled(log)) {
+                    TargetedTrace.debug(log, "User does not exist and cannot create it. Login attempt by '" + userid + "' failed.");
                 }
 
                 loginFailed(request, userid, remoteHost, remoteIP, "CannotCreateUser");
 
-                if (log.isDebugEnabled()) {
-                    log.debug("Authenticator is returning null from call to public Principal getUser(HttpServletRequest request, HttpServletResponse response)");
+                if (TargetedTrace.isDebugEnabled(log)) {
+                    TargetedTrace.debug(log, "Authenticator is returning null from call to public Principal getUser(HttpServletRequest request, HttpServletResponse response)");
                 }
                 return null;
             }
@@ -1020,28 +1334,29 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
             if (crowdUser == null) {
                 return null;
             }
-            if (config.isUpdateInfo()) {
-                updateUser(crowdUser, fullName, emailAddress);
+            if (loginConfig.isUpdateInfo()) {
+                updateUser(crowdUser, profile);
             }
         }
 
         User crowdUser = getCrowdUser(userid, request, remoteHost, remoteIP);
-        if (config.isUpdateRoles() || newUser) {
-            updateGroupMemberships(request, crowdUser);
+        if (loginConfig.isUpdateRoles() || newUser) {
+            updateGroupMemberships(request, crowdUser, loginConfig);
         }
 
         loginSuccessful(request, response, user.getName(), crowdUser, remoteHost, remoteIP);
 
-        if (log.isDebugEnabled()) {
-            log.debug("Authenticator is returning " + user + " from call to public Principal getUser(HttpServletRequest request, HttpServletResponse response)");
+        if (TargetedTrace.isDebugEnabled(log)) {
+            TargetedTrace.debug(log, "Authenticator is returning " + user + " from call to public Principal getUser(HttpServletRequest request, HttpServletResponse response)");
         }
 
         return user;
     }
 
-    private String createSafeUserid(String originalRemoteuser) {
-        // Possible to have multiple mappers defined, but only 1 will produce the desired outcome.
-        Set possibleRemoteUsers = new HashSet();
+    private String createSafeUserid(String originalRemoteuser, ShibAuthConfiguration config) {
+        // Possible to have multiple mappers defined, but only 1 will produce the desired outcome. Results are kept
+        // in the order the mappers were declared in.
+        Set possibleRemoteUsers = new LinkedHashSet();
         Collection mappers = config.getRemoteUserMappings();
 
         for (Iterator mapperIt = mappers.iterator(); mapperIt.hasNext(); ) {
@@ -1052,146 +1367,31 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
 
             if (results.length != 0) {
                 possibleRemoteUsers.addAll(Arrays.asList(results));
+
+                // The remaining mappers can't change the outcome.
+                if (config.isRemoteUserFirstMatch()) {
+                    break;
+                }
             }
         }
 
         if (possibleRemoteUsers.isEmpty()) {
-            if (log.isDebugEnabled()) {
-                log.debug("Remote user is returned as is, mappers do not matched.");
+            if (TargetedTrace.isDebugEnabled(log)) {
+                TargetedTrace.debug(log, "Remote user is returned as is, mappers do not matched.");
             }
 
             return originalRemoteuser;
         }
 
-        if (log.isDebugEnabled() && possibleRemoteUsers.size() > 1) {
-            log.debug("Remote user has been transformed, but there are too many results, choosing one that seems suitable");
+        if (TargetedTrace.isDebugEnabled(log) && possibleRemoteUsers.size() > 1) {
+            TargetedTrace.debug(log, "Remote user has been transformed, but there are too many results, choosing one that seems suitable");
         }
 
-        // Try the next one.
-        // TODO: Is this adequate?
+        // Use the first output of the first mapper that produced any.
         String output = possibleRemoteUsers.iterator().next().toString();
-        return remoteUserCharsReplacement(output);
-    }
-
-    private String remoteUserCharsReplacement(String remoteUser) {
-        // If remoteuser.replace is specified, process it. It has the format of pair-wise value, occurences of 1st entry
-        // regex is replaced with what specified on the second entry. The list is comma or semi-colon separated (which
-        // means it is pretty obvious a comma or semi-colon can't be used in the content replacement.
-        Iterator it = config.getRemoteUserReplacementChars();
-
-        while (it.hasNext()) {
-            String replaceFromRegex = it.next().toString();
-
-            // Someone didn't fill up pair-wise entry, ignore this regex.
-            if (!it.hasNext()) {
-                if (replaceFromRegex.length() != 0) {
-                    if (log.isDebugEnabled()) {
-                        log.debug("Character replacements specified for Remote User regex is incomplete, make sure the entries are pair-wise, skipping...");
-                    }
-                }
-                break;
-            }
-
-            String replacement = it.next().toString();
-
-            // We are not going to replace empty string, so skip it.
-            if (replaceFromRegex.length() == 0) {
-                if (log.isDebugEnabled()) {
-                    log.debug("Empty string is found in Remote User replaceFrom regex, skipping...");
-                }
-
-                continue;
-            }
-
-            try {
-                remoteUser = remoteUser.replaceAll(replaceFromRegex, replacement);
-            } catch (Throwable t) {
-                log.warn("Failed to replace certain character entries in \"Remote User\" matching regex=\"" + replaceFromRegex + "\", ignoring...");
-
-                if (log.isDebugEnabled()) {
-                    log.debug("Failed to replace certain character entries in Remote User", t);
-                }
-            }
-        }
-        return remoteUser;
-    }
-
-    private String createFullNameUsingMapping(String originalFullNameHeaderValue, List values) {
-        // It is possible to have multiple mappers defined, but only one will produce the desired outcome.
-        Set possibleFullNames = new HashSet();
-        Collection mappers = config.getFullNameMappings();
-
-        for (Iterator mapperIt = mappers.iterator(); mapperIt.hasNext(); ) {
-            GroupMapper mapper = (GroupMapper) mapperIt.next();
-            String[] results = (String[]) StringUtil.
-                    toListOfNonEmptyStringsDelimitedByCommaOrSemicolon(
-                            mapper.process(originalFullNameHeaderValue)).toArray(new String[0]);
-
-            if (results.length != 0) {
-                possibleFullNames.addAll(Arrays.asList(results));
-            }
-        }
-
-        if (possibleFullNames.isEmpty()) {
-            if (log.isDebugEnabled()) {
-                log.debug("Full Name header value returned. Mappers do not match, so will use first value in list.");
-            }
-
-            return (String) values.get(0);
-        }
-
-        if (log.isDebugEnabled() && possibleFullNames.size() > 1) {
-            log.debug("Full name has been transformed, but more than one result, so choosing one that seems suitable.");
-        }
-
-        //just get a random one
-        String output = possibleFullNames.iterator().next().toString();
-        return fullNameCharsReplacement(output);
-    }
-
-    private String fullNameCharsReplacement(String fullName) {
-        // If fullname.replace is specified, process it. It has the format of pair-wise value, occurences of 1st entry
-        // regex is replaced with what specified on the second entry. The list is comma or semi-colon separated (which
-        // means it is pretty obvious a comma or semi-colon can't be used in the content replacement.
-        Iterator it = config.getFullNameReplacementChars();
-
-        while (it.hasNext()) {
-            String replaceFromRegex = it.next().toString();
-
-            // Someone didn't fill up pair-wise entry, ignore this regex (which must be the last one).
-            if (!it.hasNext()) {
-                if (replaceFromRegex.length() != 0) {
-                    if (log.isDebugEnabled()) {
-                        log.debug("Character replacements specified for Full Name regex is incomplete, make sure the entries are pair-wise, skipping...");
-                    }
-                }
-
-                break;
-            }
-
-            String replacement = it.next().toString();
-
-            // We are not going to replace empty string, so skip it.
-            if (replaceFromRegex.length() == 0) {
-                if (log.isDebugEnabled()) {
-                    log.debug("Empty string is found in Full Name replaceFrom regex, skipping...");
-                }
-
-                continue;
-            }
-
-            try {
-                fullName = fullName.replaceAll(replaceFromRegex, replacement);
-            } catch (Exception e) {
-                log.warn("Fail to replace certain character entries in username matching regex=\"" + replaceFromRegex +
-                        "\".");
-                if (log.isDebugEnabled()) {
-                    log.debug("Failed to replace certain character entries in Remote User", e);
-                }
-            }
-        }
-
-        return fullName;
+        // If remoteuser.replace is specified, apply it. It has the format of pair-wise value, occurences of 1st entry
+        // regex are replaced with what is specified in the second entry.
+        return config.getRemoteUserReplacement().apply(output);
     }
 
     // avoid "Write operations are not allowed in read-only mode" per Joseph Clark of Atlassian in
@@ -1203,12 +1403,15 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
         } else if (group == null) {
             log.warn("Cannot add user to null group!");
         } else {
+            BackendCalls.count(BackendCalls.TRANSACTION);
             new TransactionTemplate(getTransactionManager(), new DefaultTransactionAttribute(TransactionDefinition.PROPAGATION_REQUIRED)).execute(new TransactionCallback() {
                 public Object doInTransaction(TransactionStatus status) {
                     try {
-                        getCrowdService().addUserToGroup(crowdUser, group);
+                        countedCrowdService().addUserToGroup(crowdUser, group);
+                        provisioning.groupAdded();
                     } catch (Throwable t) {
-                        log.error("Failed to add user " + crowdUser.getName() + " to group '" + group.getName() + "'!", t);
+                        provisioningFailed("addUserToGroup", "Failed to add user " + crowdUser.getName() +
+                                " to group '" + group.getName() + "'!", t);
                     }
                     return null;
                 }
@@ -1225,12 +1428,15 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
         } else if (group == null) {
             log.warn("Cannot remove user from null group!");
         } else {
+            BackendCalls.count(BackendCalls.TRANSACTION);
             new TransactionTemplate(getTransactionManager(), new DefaultTransactionAttribute(TransactionDefinition.PROPAGATION_REQUIRED)).execute(new TransactionCallback() {
                 public Object doInTransaction(TransactionStatus status) {
                     try {
                         crowdService.removeUserFromGroup(crowdUser, group);
+                        provisioning.groupRemoved();
                     } catch (Throwable t) {
-                        log.error("Failed to remove user " + crowdUser.getName() + " from group '" + group.getName() + "'!", t);
+                        provisioningFailed("removeUserFromGroup", "Failed to remove user " + crowdUser.getName() +
+                                " from group '" + group.getName() + "'!", t);
                     }
                     return null;
                 }
@@ -1241,19 +1447,21 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
     // avoid "Write operations are not allowed in read-only mode" per Joseph Clark of Atlassian in
     // https://answers.atlassian.com/questions/25160/crowdservice-updateuser-causes-write-operations-are-not-allowed-in-read-only-mode
     // https://developer.atlassian.com/display/CONFDEV/Hibernate+Sessions+and+Transaction+Management+Guidelines
-    private void createUser(final UserAccessor userAccessor, final String username, final String fullName, final String emailAddress) {
+    private void createUser(final UserAccessor userAccessor, final String username) {
         if (username != null) {
+            BackendCalls.count(BackendCalls.TRANSACTION);
             new TransactionTemplate(getTransactionManager(), new DefaultTransactionAttribute(TransactionDefinition.PROPAGATION_REQUIRED)).execute(new TransactionCallback() {
                 public Object doInTransaction(TransactionStatus status) {
                     try {
                         userAccessor.createUser(new DefaultUser(username, null, null), Credential.NONE);
+                        provisioning.userCreated();
                     } catch (LicensingException le) {
                         log.error("Cannot create user '" + username + "'!", le);
                         // if you're having licensing issues, this needs to bubble up.
                         // see: https://github.com/chauth/confluence_http_authenticator/issues/33
                         throw le;
                     } catch (Throwable t) {
-                        log.error("Failed to create user '" + username + "'!", t);
+                        provisioningFailed("createUser", "Failed to create user '" + username + "'!", t);
                     }
                     return null;
                 }
@@ -1268,12 +1476,14 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
     // https://developer.atlassian.com/display/CONFDEV/Hibernate+Sessions+and+Transaction+Management+Guidelines
     private void updateUser(final CrowdService crowdService, final User crowdUser) {
         if (crowdUser != null) {
+            BackendCalls.count(BackendCalls.TRANSACTION);
             new TransactionTemplate(getTransactionManager(), new DefaultTransactionAttribute(TransactionDefinition.PROPAGATION_REQUIRED)).execute(new TransactionCallback() {
                 public Object doInTransaction(TransactionStatus status) {
                     try {
                         crowdService.updateUser(crowdUser);
+                        provisioning.userUpdated();
                     } catch (Throwable t) {
-                        log.error("Failed to update user '" + crowdUser.getName() + "'!", t);
+                        provisioningFailed("updateUser", "Failed to update user '" + crowdUser.getName() + "'!", t);
                     }
                     return null;
                 }
@@ -1283,6 +1493,31 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
         }
     }
 
+    /**
+     * Log a provisioning failure at ERROR if it is the first of its kind since the last provisioning summary, at DEBUG
+     * otherwise. All are counted in the summary.
+     */
+    private static void provisioningFailed(String reason, String message, Throwable t) {
+        if (provisioning.failed(reason)) {
+            log.error(message + (provisioning.isSummarizing() ?
+                    " Further failures of this kind until the next provisioning summary are logged at DEBUG." : ""), t);
+        } else if (TargetedTrace.isDebugEnabled(log)) {
+            TargetedTrace.debug(log, message, t);
+        }
+    }
+
+    /**
+     * Like provisioningFailed, for memberships that were skipped, logged at WARN.
+     */
+    private static void provisioningSkipped(String reason, String message) {
+        if (provisioning.failed(reason)) {
+            log.warn(message + (provisioning.isSummarizing() ?
+                    " Further warnings of this kind until the next provisioning summary are logged at DEBUG." : ""));
+        } else if (TargetedTrace.isDebugEnabled(log)) {
+            TargetedTrace.debug(log, message);
+        }
+    }
+
     /**
      * Get a value from the request using one of the following strategies. Any strategy other than 1 or 2 is considered
      * to be 0:
@@ -1298,22 +1533,26 @@ public class RemoteUserAuthenticator extends ConfluenceAuthenticator {
      * @return
      */
     public String getAttribute(HttpServletRequest request, String attributeName, int strategy) {
-        String attributeValue = null;
+        return ProfileAttributes.getAttribute(request, attributeName, strategy);
+    }
 
-        if (strategy != 2) {
-            Object attr = request.getAttribute(attributeName);
-            if (attr instanceof String) {
-                attributeValue = (String) attr;
-            }
-        }
+    // The counted accessors wrap the services so that each call is counted in the BackendCalls record of the login. The
+    // wrappers are created once per record.
+    private CrowdService countedCrowdService() {
+        return (CrowdService) BackendCalls.wrap(CrowdService.class, "crowdService", getCrowdService());
+    }
 
-        if (strategy != 1) {
-            if (attributeValue == null) {
-                attributeValue = request.getHeader(attributeName);
-            }
-        }
+    private UserAccessor countedUserAccessor() {
+        return (UserAccessor) BackendCalls.wrap(UserAccessor.class, "userAccessor", getUserAccessor());
+    }
+
+    private GroupManager countedGroupManager() {
+        return (GroupManager) BackendCalls.wrap(GroupManager.class, "groupManager", getGroupManager());
+    }
 
-        return attributeValue;
+    private Principal lookupUser(String userid) {
+        BackendCalls.count("authenticator.getUser");
+        return getUser(userid);
     }
 
     public CrowdService getCrowdService() {
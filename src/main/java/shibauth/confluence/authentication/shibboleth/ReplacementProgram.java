@@ -0,0 +1,335 @@
+/*
+ Copyright (c) 2008-2019, Confluence HTTP Authenticator Team
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice,
+   this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+ * Neither the name of the Confluence HTTP Authenticator Team
+   nor the names of its contributors may be used to endorse or promote
+   products derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package shibauth.confluence.authentication.shibboleth;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compiled form of a pair-wise replacement list such as remoteuser.replace or fullname.replace.
+ * <p/>
+ * Applying the program gives the same result as calling String.replaceAll for each (regex, replacement) pair in
+ * turn, but the work is done once at configuration load:
+ * <ul>
+ * <li>consecutive pairs that replace a single literal character by a single character (or by nothing) are
+ * collapsed into one translation table, applied in a single pass over the input</li>
+ * <li>all other pairs keep a precompiled Pattern, and each thread reuses its own Matcher</li>
+ * </ul>
+ * Pairs that can never apply (empty regex, incomplete last pair, invalid regex) are dropped at compile time.
+ */
+public class ReplacementProgram {
+
+    private final static Log log = LogFactory.getLog(ReplacementProgram.class);
+
+    /**
+     * Characters with a special meaning in a regex, a single one of them is not a literal.
+     */
+    private final static String REGEX_METACHARS = "\\^$.|?*+()[]{}";
+
+    /**
+     * Marks a character to be deleted in a translation table.
+     */
+    private final static int DELETE = -1;
+
+    /**
+     * Marks a character to be kept as is in a translation table.
+     */
+    private final static int KEEP = -2;
+
+    private final Step[] steps;
+
+    private ReplacementProgram(Step[] steps) {
+        this.steps = steps;
+    }
+
+    /**
+     * Compile a pair-wise replacement list.
+     *
+     * @param replacements list of regex, replacement, regex, replacement, ... An empty replacement deletes
+     *                     what the regex matched.
+     * @param label        describes what the replacements apply to, for logging
+     * @return the compiled program
+     */
+    public static ReplacementProgram compile(List replacements, String label) {
+        List steps = new ArrayList();
+        List pendingChars = new ArrayList();
+
+        for (Iterator it = replacements.iterator(); it.hasNext(); ) {
+            String replaceFromRegex = it.next().toString();
+
+            // Someone didn't fill up pair-wise entry, ignore this regex (which must be the last one).
+            if (!it.hasNext()) {
+                if (replaceFromRegex.length() != 0) {
+                    if (log.isDebugEnabled()) {
+                        log.debug("Character replacements specified for " + label + " regex is incomplete, make sure the entries are pair-wise, skipping...");
+                    }
+                }
+
+                break;
+            }
+
+            String replacement = it.next().toString();
+
+            // We are not going to replace empty string, so skip it.
+            if (replaceFromRegex.length() == 0) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Empty string is found in " + label + " replaceFrom regex, skipping...");
+                }
+
+                continue;
+            }
+
+            int from = toLiteralChar(replaceFromRegex);
+            int to = toReplacementChar(replacement);
+
+            if (from != KEEP && to != KEEP) {
+                pendingChars.add(new int[]{from, to});
+                continue;
+            }
+
+            Pattern pattern;
+            try {
+                pattern = Pattern.compile(replaceFromRegex);
+            } catch (Throwable t) {
+                log.warn("Failed to compile regex=\"" + replaceFromRegex + "\" of the \"" + label + "\" character replacements, ignoring...");
+
+                if (log.isDebugEnabled()) {
+                    log.debug("Failed to compile character replacement regex for " + label, t);
+                }
+
+                continue;
+            }
+
+            if (!pendingChars.isEmpty()) {
+                steps.add(new TranslationStep(pendingChars));
+                pendingChars.clear();
+            }
+
+            steps.add(new RegexStep(pattern, replacement, label));
+        }
+
+        if (!pendingChars.isEmpty()) {
+            steps.add(new TranslationStep(pendingChars));
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Compiled " + label + " character replacements into " + steps.size() + " step(s): " + steps);
+        }
+
+        return new ReplacementProgram((Step[]) steps.toArray(new Step[steps.size()]));
+    }
+
+    /**
+     * @param s value to apply the replacements to, may be null
+     * @return the value after all replacements, null if s was null
+     */
+    public String apply(String s) {
+        if (s == null) {
+            return null;
+        }
+
+        for (int i = 0; i < steps.length; i++) {
+            s = steps[i].apply(s);
+        }
+
+        return s;
+    }
+
+    public boolean isEmpty() {
+        return steps.length == 0;
+    }
+
+    public String toString() {
+        return Arrays.asList(steps).toString();
+    }
+
+    /**
+     * @return the character a regex matches if it matches exactly one literal character, otherwise KEEP
+     */
+    private static int toLiteralChar(String regex) {
+        char c;
+        if (regex.length() == 1) {
+            c = regex.charAt(0);
+            if (REGEX_METACHARS.indexOf(c) >= 0) {
+                return KEEP;
+            }
+        } else if (regex.length() == 2 && regex.charAt(0) == '\\') {
+            // a backslash before a non-alphanumeric character quotes it
+            c = regex.charAt(1);
+            if (Character.isLetterOrDigit(c)) {
+                return KEEP;
+            }
+        } else {
+            return KEEP;
+        }
+
+        return Character.isSurrogate(c) ? KEEP : c;
+    }
+
+    /**
+     * @return the character a replacement string stands for, DELETE if empty, KEEP if it is not a plain
+     *         single character (group references and escapes are left to the regex engine)
+     */
+    private static int toReplacementChar(String replacement) {
+        if (replacement.length() == 0) {
+            return DELETE;
+        }
+
+        char c = replacement.charAt(0);
+        if (replacement.length() != 1 || c == '$' || c == '\\' || Character.isSurrogate(c)) {
+            return KEEP;
+        }
+
+        return c;
+    }
+
+    private interface Step {
+        String apply(String s);
+    }
+
+    /**
+     * A run of single character replacements. The table holds, for each character, what it ends up as after the
+     * whole run was applied in order (e.g. "%,c,c,n" turns '%' into 'n'), so one pass over the input is enough.
+     */
+    private static class TranslationStep implements Step {
+
+        private final int[] table;
+
+        private final String description;
+
+        TranslationStep(List pairs) {
+            int max = 0;
+            for (int i = 0; i < pairs.size(); i++) {
+                max = Math.max(max, ((int[]) pairs.get(i))[0]);
+            }
+
+            table = new int[max + 1];
+            Arrays.fill(table, KEEP);
+
+            for (int i = 0; i < pairs.size(); i++) {
+                int c = ((int[]) pairs.get(i))[0];
+
+                // follow the character through the whole run
+                int current = c;
+                for (int j = 0; j < pairs.size() && current != DELETE; j++) {
+                    int[] pair = (int[]) pairs.get(j);
+                    if (pair[0] == current) {
+                        current = pair[1];
+                    }
+                }
+
+                table[c] = current == c ? KEEP : current;
+            }
+
+            StringBuffer sb = new StringBuffer("chars[");
+            for (int i = 0; i < pairs.size(); i++) {
+                int[] pair = (int[]) pairs.get(i);
+                sb.append(i == 0 ? "" : ", ").append((char) pair[0]).append("->");
+                sb.append(pair[1] == DELETE ? "" : String.valueOf((char) pair[1]));
+            }
+            description = sb.append("]").toString();
+        }
+
+        public String apply(String s) {
+            StringBuilder sb = null;
+
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                int to = c < table.length ? table[c] : KEEP;
+
+                if (to == KEEP) {
+                    if (sb != null) {
+                        sb.append(c);
+                    }
+                    continue;
+                }
+
+                if (sb == null) {
+                    sb = new StringBuilder(s.length());
+                    sb.append(s, 0, i);
+                }
+
+                if (to != DELETE) {
+                    sb.append((char) to);
+                }
+            }
+
+            return sb == null ? s : sb.toString();
+        }
+
+        public String toString() {
+            return description;
+        }
+    }
+
+    private static class RegexStep implements Step {
+
+        private final Pattern pattern;
+
+        private final String replacement;
+
+        private final String label;
+
+        private final ThreadLocal matchers = new ThreadLocal() {
+            protected Object initialValue() {
+                return pattern.matcher("");
+            }
+        };
+
+        RegexStep(Pattern pattern, String replacement, String label) {
+            this.pattern = pattern;
+            this.replacement = replacement;
+            this.label = label;
+        }
+
+        public String apply(String s) {
+            try {
+                Matcher m = (Matcher) matchers.get();
+                return m.reset(s).replaceAll(replacement);
+            } catch (Throwable t) {
+                log.warn("Failed to replace certain character entries in \"" + label + "\" matching regex=\"" + pattern.pattern() + "\", ignoring...");
+
+                if (log.isDebugEnabled()) {
+                    log.debug("Failed to replace certain character entries in " + label, t);
+                }
+
+                return s;
+            }
+        }
+
+        public String toString() {
+            return "regex[" + pattern.pattern() + "->" + replacement + "]";
+        }
+    }
+}
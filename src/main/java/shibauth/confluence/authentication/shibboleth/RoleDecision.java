@@ -0,0 +1,174 @@
+/*
+ Copyright (c) 2008-2019, Confluence HTTP Authenticator Team
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice,
+   this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+ * Neither the name of the Confluence HTTP Authenticator Team
+   nor the names of its contributors may be used to endorse or promote
+   products derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package shibauth.confluence.authentication.shibboleth;
+
+import java.util.*;
+
+/**
+ * Outcome of the dynamicroles mappers for one set of header values: the roles the user is added to and the roles
+ * the user is removed from. Votes of the mappers are collected with vote() in a single pass over the header values
+ * and resolved once with resolve():
+ * <ol>
+ * <li>if any mapper with force=true produced the role, the forced mappers decide; if they disagree the role is
+ * added</li>
+ * <li>otherwise the role is added if any mapper without retract produced it (allow-override), and removed only if
+ * all mappers that produced it have retract=true</li>
+ * </ol>
+ * The result depends only on the votes, not on the order of mappers or values. Roles are kept as ids of the
+ * GroupDictionary, so a cached decision takes a few words per role set; roles differing only in case are one role.
+ * <p/>
+ * A decision is incomplete if a mapper failed while it was derived. The roles it lacks may be roles the user should
+ * keep, so an incomplete decision is not cached and only adds roles, it never retracts or purges any.
+ */
+public class RoleDecision {
+
+    private final static int ADD = 1;
+
+    private final static int RETRACT = 2;
+
+    private final static int FORCED_ADD = 4;
+
+    private final static int FORCED_RETRACT = 8;
+
+    /**
+     * Map<role, int[1] of vote flags>, null once resolved
+     */
+    private Map votes = new HashMap();
+
+    private BitSet addedIds = new BitSet();
+
+    private BitSet retractedIds = new BitSet();
+
+    private boolean incomplete;
+
+    /**
+     * Record that the mapper produced the role.
+     *
+     * @param role   output of the mapper
+     * @param mapper mapper whose retract and force attributes decide the vote
+     */
+    public void vote(String role, GroupMapper mapper) {
+        int[] flags = (int[]) votes.get(role);
+        if (flags == null) {
+            flags = new int[1];
+            votes.put(role, flags);
+        }
+
+        if (mapper.isForce()) {
+            flags[0] |= mapper.isRetract() ? FORCED_RETRACT : FORCED_ADD;
+        } else {
+            flags[0] |= mapper.isRetract() ? RETRACT : ADD;
+        }
+    }
+
+    /**
+     * Record that a mapper failed, so the votes are missing the roles that mapper would have produced.
+     */
+    public void markIncomplete() {
+        incomplete = true;
+    }
+
+    /**
+     * @return true if a mapper failed while the decision was derived
+     */
+    public boolean isIncomplete() {
+        return incomplete;
+    }
+
+    /**
+     * Turn the votes into the added and retracted roles. No votes may be added afterwards.
+     *
+     * @return this
+     */
+    public RoleDecision resolve() {
+        GroupDictionary dictionary = GroupDictionary.getInstance();
+        BitSet added = new BitSet();
+        BitSet retracted = new BitSet();
+
+        for (Iterator it = votes.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) it.next();
+            int flags = ((int[]) entry.getValue())[0];
+
+            boolean add;
+            if ((flags & (FORCED_ADD | FORCED_RETRACT)) != 0) {
+                add = (flags & FORCED_ADD) != 0;
+            } else {
+                add = (flags & ADD) != 0;
+            }
+
+            int id = dictionary.getId((String) entry.getKey());
+            if (add) {
+                added.set(id);
+            } else {
+                retracted.set(id);
+            }
+        }
+
+        // the same role in another case may have been voted both ways, adding wins
+        retracted.andNot(added);
+
+        votes = null;
+        addedIds = added;
+        retractedIds = retracted;
+        return this;
+    }
+
+    /**
+     * @return ids of the roles to add the user to, must not be modified
+     */
+    public BitSet getAddedIds() {
+        return addedIds;
+    }
+
+    /**
+     * @return ids of the roles to remove the user from, must not be modified
+     */
+    public BitSet getRetractedIds() {
+        return retractedIds;
+    }
+
+    /**
+     * @return unmodifiable set of roles to add the user to
+     */
+    public Set getAddedRoles() {
+        return Collections.unmodifiableSet(new HashSet(GroupDictionary.getInstance().decode(addedIds)));
+    }
+
+    /**
+     * @return unmodifiable set of roles to remove the user from
+     */
+    public Set getRetractedRoles() {
+        return Collections.unmodifiableSet(new HashSet(GroupDictionary.getInstance().decode(retractedIds)));
+    }
+
+    public String toString() {
+        return "added=" + getAddedRoles() + ", retracted=" + getRetractedRoles() + (incomplete ? " (incomplete)" : "");
+    }
+}
@@ -36,6 +36,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
 import java.net.URL;
 import java.util.*;
 
@@ -70,204 +71,401 @@ public class ShibAuthConfigLoader {
             Properties configProps = new Properties();
             configProps.load(propsIn);
 
-            // Load local.login.supported property.
-            config.setLocalLoginSupported(
-                    Boolean.valueOf(configProps.getProperty(ShibAuthConstants.LOCAL_LOGIN_SUPPORTED, "true")).booleanValue());
+            config = loadConfiguration(configProps);
 
-            if (log.isDebugEnabled()) {
-                log.debug("Setting local login supported to " + config.isLocalLoginSupported());
-            }
+            // Set the name of the config file for automatic reloading
+            if (config.isReloadConfig()) {
 
-            // Load create.users property.
-            config.setCreateUsers(
-                    Boolean.valueOf(configProps.getProperty(ShibAuthConstants.CREATE_USERS, "true")).booleanValue());
+                URL configURL = RemoteUserAuthenticator.class.getResource(ShibAuthConstants.PROPERTIES_FILE);
 
-            if (log.isDebugEnabled()) {
-                log.debug("Setting create new users to " + config.isCreateUsers());
-            }
+                if ((configURL == null) || !configURL.getProtocol().equals("file")) {
+                    log.warn("Configuration file is not a file URL, cannot setup automatic reloading from: " +
+                            configURL);
+                } else {
+                    String configFile = configURL.getFile();
+                    long configFileLastModified = new File(configFile).lastModified();
 
-            // Load update.info property.
-            config.setUpdateInfo(Boolean.valueOf(configProps.getProperty(ShibAuthConstants.UPDATE_INFO, "true")).
-                    booleanValue());
+                    config.setConfigFile(configFile);
+                    config.setConfigFileLastModified(configFileLastModified);
+                    config.setConfigFileLastChecked(System.currentTimeMillis());
 
-            if (log.isDebugEnabled()) {
-                log.debug("Setting update user information to " + config.isUpdateInfo());
+                    log.info("Setting config file name to " + configFile + " with a lastModified stamp of " +
+                            configFileLastModified + " and a last checked stamp of " +
+                            config.getConfigFileLastChecked());
+                }
             }
 
-            // Load update.lastLoginDate property.
-            config.setUpdateLastLogin(
-                    Boolean.valueOf(configProps.getProperty(ShibAuthConstants.UPDATE_LAST_LOGIN_DATE, "true")).booleanValue()
-            );
+            loadHeaderCapture(config, configProps);
+            loadProfiles(config, configProps);
+        } catch (IOException e) {
+            log.warn("Unable to read properties file, using default properties", e);
+        }
 
-            if (log.isDebugEnabled()) {
-                log.debug("Setting update user's last login date and previous login date information to " +
-                        config.isUpdateLastLogin());
-            }
+        return config;
+    }
 
-            // Load update.roles property.
-            config.setUpdateRoles(
-                    Boolean.valueOf(configProps.getProperty(ShibAuthConstants.UPDATE_ROLES, "true")).booleanValue());
+    /**
+     * Set up the capture of the headers of sampled logins, shared by all profiles.
+     */
+    private static void loadHeaderCapture(ShibAuthConfiguration config, Properties configProps)
+            throws UnsupportedEncodingException {
+        String file = configProps.getProperty(ShibAuthConstants.CAPTURE_FILE);
+        if (file == null || file.trim().length() == 0) {
+            return;
+        }
 
-            if (log.isDebugEnabled()) {
-                log.debug("Setting update user roles to " + config.isUpdateRoles());
-            }
+        String key = configProps.getProperty(ShibAuthConstants.CAPTURE_KEY);
+        if (key == null) {
+            log.warn(ShibAuthConstants.CAPTURE_KEY + " is not set, captured remote users are hashed with a random key " +
+                    "and cannot be matched across restarts.");
+        }
 
-            // Load reload.config property.
-            config.setReloadConfig(
-                    Boolean.valueOf(configProps.getProperty(ShibAuthConstants.RELOAD_CONFIG, "false")).booleanValue());
+        config.setHeaderCapture(new HeaderCapture(new File(file.trim()),
+                Double.parseDouble(configProps.getProperty(ShibAuthConstants.CAPTURE_SAMPLE_RATE, "0.01")),
+                key == null ? null : key.getBytes("UTF-8"),
+                Long.parseLong(configProps.getProperty(ShibAuthConstants.CAPTURE_MAX_SIZE, "10485760")),
+                Integer.parseInt(configProps.getProperty(ShibAuthConstants.CAPTURE_MAX_FILES, "5"))));
 
-            if (log.isDebugEnabled()) {
-                log.debug("Setting reload config to " + config.isReloadConfig());
-            }
+        log.info("Capturing headers of sampled logins: " + config.getHeaderCapture());
+    }
 
-            // Load reload.config.check.interval property.
-            String reloadConfigCheckIntervalS = configProps.getProperty(ShibAuthConstants.RELOAD_CONFIG_CHECK_INTERVAL, "5000");
-            if (reloadConfigCheckIntervalS != null) {
-                config.setReloadConfigCheckInterval(Long.valueOf(reloadConfigCheckIntervalS).longValue());
+    /**
+     * Build a configuration from the properties, everything except the config file and the profiles.
+     */
+    private static ShibAuthConfiguration loadConfiguration(Properties configProps) {
+        ShibAuthConfiguration config = new ShibAuthConfiguration();
 
-                if (log.isDebugEnabled()) {
-                    log.debug("Setting reload config check interval to " + config.getReloadConfigCheckInterval());
-                }
-            }
+        // Load local.login.supported property.
+        config.setLocalLoginSupported(
+                Boolean.valueOf(configProps.getProperty(ShibAuthConstants.LOCAL_LOGIN_SUPPORTED, "true")).booleanValue());
 
-            // Load convert.to.utf8 property.
-            config.setConvertToUTF8(
-                    Boolean.valueOf(configProps.getProperty(ShibAuthConstants.CONVERT_TO_UTF8, "false")).booleanValue());
+        if (log.isDebugEnabled()) {
+            log.debug("Setting local login supported to " + config.isLocalLoginSupported());
+        }
 
-            if (log.isDebugEnabled()) {
-                log.debug("Setting convert header values to UTF-8 to " + config.isConvertToUTF8());
-            }
+        // Load create.users property.
+        config.setCreateUsers(
+                Boolean.valueOf(configProps.getProperty(ShibAuthConstants.CREATE_USERS, "true")).booleanValue());
 
-            // Load purge.roles.limit property
-            String purgeRolesLimit = configProps.getProperty(
-                    ShibAuthConstants.PURGE_ROLES_LIMIT);
-            if (purgeRolesLimit != null) {
-                config.setPurgeRolesLimit(Integer.valueOf(
-                        purgeRolesLimit).intValue());
+        if (log.isDebugEnabled()) {
+            log.debug("Setting create new users to " + config.isCreateUsers());
+        }
 
-                if (log.isDebugEnabled()) {
-                    log.debug("Setting purge roles limit value to " +
-                            config.getPurgeRolesLimit());
-                }
-            }
+        // Load update.info property.
+        config.setUpdateInfo(Boolean.valueOf(configProps.getProperty(ShibAuthConstants.UPDATE_INFO, "true")).
+                booleanValue());
 
-            // Load dynamicheaders.output.tolowercase property
-            // default is true when not existing
-            config.setOutputToLowerCase(Boolean.valueOf(
-                    configProps.getProperty(ShibAuthConstants.ROLES_OUTPUT_TOLOWER, "true")).booleanValue());
+        if (log.isDebugEnabled()) {
+            log.debug("Setting update user information to " + config.isUpdateInfo());
+        }
 
-            if (log.isDebugEnabled()) {
-                log.debug("Setting convert group output values to lowercase = " + config.isOutputToLowerCase());
-            }
+        // Load update.lastLoginDate property.
+        config.setUpdateLastLogin(
+                Boolean.valueOf(configProps.getProperty(ShibAuthConstants.UPDATE_LAST_LOGIN_DATE, "true")).booleanValue()
+        );
 
-            // Load default roles.
-            List defaultRoles = new ArrayList();
+        if (log.isDebugEnabled()) {
+            log.debug("Setting update user's last login date and previous login date information to " +
+                    config.isUpdateLastLogin());
+        }
 
-            String roles = configProps.getProperty(ShibAuthConstants.DEFAULT_ROLES);
+        // Load update.last.login.date.interval property.
+        config.setUpdateLastLoginInterval(Long.valueOf(
+                configProps.getProperty(ShibAuthConstants.UPDATE_LAST_LOGIN_DATE_INTERVAL, "0")).longValue());
 
-            if (roles != null) {
-                defaultRoles.addAll(StringUtil.toListOfNonEmptyStringsDelimitedByCommaOrSemicolon(roles));
+        if (log.isDebugEnabled()) {
+            log.debug("Setting minimum interval between recorded logins of a user to " +
+                    config.getUpdateLastLoginInterval());
+        }
 
-                if (log.isDebugEnabled()) {
-                    for (Iterator it = defaultRoles.iterator(); it.hasNext(); ) {
-                        log.debug("Adding role " + it.next().toString() + " to list of default user roles");
-                    }
-                }
-            }
+        // Load update.last.login.date.max.tracked property.
+        config.setUpdateLastLoginMaxTracked(Integer.parseInt(
+                configProps.getProperty(ShibAuthConstants.UPDATE_LAST_LOGIN_DATE_MAX_TRACKED, "10000")));
 
-            config.setDefaultRoles(defaultRoles);
-            config.setRemoteUserHeaderName(configProps.getProperty(ShibAuthConstants.REMOTE_USER_HEADER_NAME_PROPERTY, "REMOTE_USER"));
+        if (log.isDebugEnabled()) {
+            log.debug("Setting maximum number of users tracked for the recorded login interval to " +
+                    config.getUpdateLastLoginMaxTracked());
+        }
 
-            if (log.isDebugEnabled()) {
-                log.debug("HTTP Header/attribute that may contain user's username set to: " + config.getRemoteUserHeaderName());
-            }
+        // Load slowlogin.* properties.
+        config.setSlowLoginThreshold(Long.parseLong(
+                configProps.getProperty(ShibAuthConstants.SLOW_LOGIN_THRESHOLD, "10000")));
+        config.setSlowLoginBufferSize(Integer.parseInt(
+                configProps.getProperty(ShibAuthConstants.SLOW_LOGIN_BUFFER_SIZE, "50")));
 
-            config.setRemoteUserHeaderStrategy(Integer.parseInt(configProps.getProperty(ShibAuthConstants.REMOTE_USER_HEADER_STRATEGY_PROPERTY, "0")));
+        if (log.isDebugEnabled()) {
+            log.debug("Setting slow login threshold to " + config.getSlowLoginThreshold() + " ms, keeping " +
+                    config.getSlowLoginBufferSize() + " traces");
+        }
 
-            if (log.isDebugEnabled()) {
-                log.debug("Username header strategy set to: " + config.getRemoteUserHeaderStrategy());
-            }
+        // Load provisioning.summary.interval property.
+        config.setProvisioningSummaryInterval(Long.parseLong(
+                configProps.getProperty(ShibAuthConstants.PROVISIONING_SUMMARY_INTERVAL, "300000")));
 
-            config.setFullNameHeaderName(configProps.getProperty(ShibAuthConstants.FULLNAME_HEADER_NAME_PROPERTY, "CONF_FULL_NAME"));
+        if (log.isDebugEnabled()) {
+            log.debug("Setting provisioning summary interval to " + config.getProvisioningSummaryInterval() + " ms");
+        }
 
-            if (log.isDebugEnabled()) {
-                log.debug("HTTP Header/attribute that may contain user's full name set to: " + config.getFullNameHeaderName());
-            }
+        // Load trace.* properties.
+        String traceUsers = configProps.getProperty(ShibAuthConstants.TRACE_USERS);
+        if (traceUsers != null) {
+            config.setTraceUsers(new HashSet(StringUtil.toListOfNonEmptyStringsDelimitedByCommaOrSemicolon(
+                    traceUsers.toLowerCase())));
+        }
 
-            config.setUsernameFilterStrategy(Integer.parseInt(configProps.getProperty(ShibAuthConstants.USERNAME_FILTER_STRATEGY_PROPERTY, "0")));
+        String traceHeader = configProps.getProperty(ShibAuthConstants.TRACE_HEADER);
+        if (traceHeader != null && traceHeader.trim().length() > 0) {
+            config.setTraceHeaderName(traceHeader.trim());
+            config.setTraceHeaderValues(new HashSet(StringUtil.toListOfNonEmptyStringsDelimitedByCommaOrSemicolon(
+                    configProps.getProperty(ShibAuthConstants.TRACE_HEADER_VALUES))));
+        }
 
-            if (log.isDebugEnabled()) {
-                log.debug("Username filter strategy set to: " + config.getUsernameFilterStrategy());
-            }
+        if (!config.getTraceUsers().isEmpty() || config.getTraceHeaderName() != null) {
+            log.info("Tracing logins of users " + config.getTraceUsers() + (config.getTraceHeaderName() == null ? "" :
+                    " and with " + config.getTraceHeaderName() + " in " + config.getTraceHeaderValues()));
+        }
 
-            config.setUsernameRegexFilter(configProps.getProperty(ShibAuthConstants.USERNAME_FILTER_REGEX_PROPERTY, "^CN=(.*)"));
+        // Load update.roles property.
+        config.setUpdateRoles(
+                Boolean.valueOf(configProps.getProperty(ShibAuthConstants.UPDATE_ROLES, "true")).booleanValue());
 
-            if (log.isDebugEnabled()) {
-                log.debug("Regex attribute to extract user id from header is set to: " + config.getUsernameRegexFilter());
-            }
+        if (log.isDebugEnabled()) {
+            log.debug("Setting update user roles to " + config.isUpdateRoles());
+        }
 
-            config.setFullNameHeaderStrategy(Integer.parseInt(configProps.getProperty(ShibAuthConstants.FULLNAME_HEADER_STRATEGY_PROPERTY, "0")));
+        // Load reload.config property.
+        config.setReloadConfig(
+                Boolean.valueOf(configProps.getProperty(ShibAuthConstants.RELOAD_CONFIG, "false")).booleanValue());
+
+        if (log.isDebugEnabled()) {
+            log.debug("Setting reload config to " + config.isReloadConfig());
+        }
+
+        // Load reload.config.check.interval property.
+        String reloadConfigCheckIntervalS = configProps.getProperty(ShibAuthConstants.RELOAD_CONFIG_CHECK_INTERVAL, "5000");
+        if (reloadConfigCheckIntervalS != null) {
+            config.setReloadConfigCheckInterval(Long.valueOf(reloadConfigCheckIntervalS).longValue());
 
             if (log.isDebugEnabled()) {
-                log.debug("Full name header strategy set to: " + config.getFullNameHeaderStrategy());
+                log.debug("Setting reload config check interval to " + config.getReloadConfigCheckInterval());
             }
+        }
+
+        // Load convert.to.utf8 property.
+        config.setConvertToUTF8(
+                Boolean.valueOf(configProps.getProperty(ShibAuthConstants.CONVERT_TO_UTF8, "false")).booleanValue());
+
+        if (log.isDebugEnabled()) {
+            log.debug("Setting convert header values to UTF-8 to " + config.isConvertToUTF8());
+        }
 
-            config.setEmailHeaderName(configProps.getProperty(ShibAuthConstants.EMAIL_HEADER_NAME_PROPERTY, "CONF_EMAIL"));
+        // Load purge.roles.limit property
+        String purgeRolesLimit = configProps.getProperty(
+                ShibAuthConstants.PURGE_ROLES_LIMIT);
+        if (purgeRolesLimit != null) {
+            config.setPurgeRolesLimit(Integer.valueOf(
+                    purgeRolesLimit).intValue());
 
             if (log.isDebugEnabled()) {
-                log.debug("HTTP Header/attribute that may contain user's email address set to: " + config.getEmailHeaderName());
+                log.debug("Setting purge roles limit value to " +
+                        config.getPurgeRolesLimit());
             }
+        }
+
+        config.setPurgeRolesBatchSize(Math.max(1, Integer.parseInt(
+                configProps.getProperty(ShibAuthConstants.PURGE_ROLES_BATCH_SIZE, "100"))));
 
-            config.setEmailHeaderStrategy(Integer.parseInt(configProps.getProperty(ShibAuthConstants.EMAIL_HEADER_STRATEGY_PROPERTY, "0")));
+        if (log.isDebugEnabled()) {
+            log.debug("Setting purge roles batch size to " + config.getPurgeRolesBatchSize());
+        }
+
+        // Load dynamicheaders.output.tolowercase property
+        // default is true when not existing
+        config.setOutputToLowerCase(Boolean.valueOf(
+                configProps.getProperty(ShibAuthConstants.ROLES_OUTPUT_TOLOWER, "true")).booleanValue());
+
+        if (log.isDebugEnabled()) {
+            log.debug("Setting convert group output values to lowercase = " + config.isOutputToLowerCase());
+        }
+
+        // Load default roles.
+        List defaultRoles = new ArrayList();
+
+        String roles = configProps.getProperty(ShibAuthConstants.DEFAULT_ROLES);
+
+        if (roles != null) {
+            defaultRoles.addAll(StringUtil.toListOfNonEmptyStringsDelimitedByCommaOrSemicolon(roles));
 
             if (log.isDebugEnabled()) {
-                log.debug("Email header strategy set to: " + config.getEmailHeaderStrategy());
+                for (Iterator it = defaultRoles.iterator(); it.hasNext(); ) {
+                    log.debug("Adding role " + it.next().toString() + " to list of default user roles");
+                }
             }
+        }
 
-            config.setUsernameConvertCase(Boolean.valueOf(
-                    configProps.getProperty(ShibAuthConstants.USERNAME_CASE_CONVERT_PROPERTY, "true")).
-                    booleanValue());
+        config.setDefaultRoles(defaultRoles);
+        config.setRemoteUserHeaderName(configProps.getProperty(ShibAuthConstants.REMOTE_USER_HEADER_NAME_PROPERTY, "REMOTE_USER"));
 
-            if (log.isDebugEnabled()) {
-                log.debug("Setting usernameConvertCase to " + config.isUsernameConvertCase());
+        if (log.isDebugEnabled()) {
+            log.debug("HTTP Header/attribute that may contain user's username set to: " + config.getRemoteUserHeaderName());
+        }
+
+        config.setRemoteUserHeaderStrategy(Integer.parseInt(configProps.getProperty(ShibAuthConstants.REMOTE_USER_HEADER_STRATEGY_PROPERTY, "0")));
+
+        if (log.isDebugEnabled()) {
+            log.debug("Username header strategy set to: " + config.getRemoteUserHeaderStrategy());
+        }
+
+        config.setFullNameHeaderName(configProps.getProperty(ShibAuthConstants.FULLNAME_HEADER_NAME_PROPERTY, "CONF_FULL_NAME"));
+
+        if (log.isDebugEnabled()) {
+            log.debug("HTTP Header/attribute that may contain user's full name set to: " + config.getFullNameHeaderName());
+        }
+
+        config.setUsernameFilterStrategy(Integer.parseInt(configProps.getProperty(ShibAuthConstants.USERNAME_FILTER_STRATEGY_PROPERTY, "0")));
+
+        if (log.isDebugEnabled()) {
+            log.debug("Username filter strategy set to: " + config.getUsernameFilterStrategy());
+        }
+
+        config.setUsernameRegexFilter(configProps.getProperty(ShibAuthConstants.USERNAME_FILTER_REGEX_PROPERTY, "^CN=(.*)"));
+
+        if (log.isDebugEnabled()) {
+            log.debug("Regex attribute to extract user id from header is set to: " + config.getUsernameRegexFilter());
+        }
+
+        config.setFullNameHeaderStrategy(Integer.parseInt(configProps.getProperty(ShibAuthConstants.FULLNAME_HEADER_STRATEGY_PROPERTY, "0")));
+
+        if (log.isDebugEnabled()) {
+            log.debug("Full name header strategy set to: " + config.getFullNameHeaderStrategy());
+        }
+
+        config.setEmailHeaderName(configProps.getProperty(ShibAuthConstants.EMAIL_HEADER_NAME_PROPERTY, "CONF_EMAIL"));
+
+        if (log.isDebugEnabled()) {
+            log.debug("HTTP Header/attribute that may contain user's email address set to: " + config.getEmailHeaderName());
+        }
+
+        config.setEmailHeaderStrategy(Integer.parseInt(configProps.getProperty(ShibAuthConstants.EMAIL_HEADER_STRATEGY_PROPERTY, "0")));
+
+        if (log.isDebugEnabled()) {
+            log.debug("Email header strategy set to: " + config.getEmailHeaderStrategy());
+        }
+
+        config.setUsernameConvertCase(Boolean.valueOf(
+                configProps.getProperty(ShibAuthConstants.USERNAME_CASE_CONVERT_PROPERTY, "true")).
+                booleanValue());
+
+        if (log.isDebugEnabled()) {
+            log.debug("Setting usernameConvertCase to " + config.isUsernameConvertCase());
+        }
+
+        config.setUsernameCache(new BoundedCache(Integer.parseInt(
+                configProps.getProperty(ShibAuthConstants.USERNAME_CACHE_SIZE, "10000"))));
+
+        if (log.isDebugEnabled()) {
+            log.debug("Setting username cache size to " + config.getUsernameCache().getMaxSize());
+        }
+
+        String authChain = configProps.getProperty(ShibAuthConstants.AUTH_CHAIN);
+        if (authChain != null) {
+            config.setAuthChain(new AuthChain(StringUtil.toListOfNonEmptyStringsDelimitedByCommaOrSemicolon(authChain)));
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Setting authentication chain to " + config.getAuthChain());
+        }
+
+        config.setCredentialCache(new CredentialCache(
+                Long.parseLong(configProps.getProperty(ShibAuthConstants.CREDENTIAL_CACHE_TTL, "0")),
+                Integer.parseInt(configProps.getProperty(ShibAuthConstants.CREDENTIAL_CACHE_SIZE, "1000"))));
+
+        if (log.isDebugEnabled()) {
+            log.debug("Setting credential cache to " + config.getCredentialCache());
+        }
+
+        // warn about property no longer supported
+        if (Boolean.valueOf(configProps.getProperty(ShibAuthConstants.USING_SHIB_LOGIN_FILTER, "false")).booleanValue()) {
+            log.warn("Note: using.shib.login.filter=true is no longer supported by Confluence HTTP Authenticator. Please remove using.shib.login.filter from remoteUserAuthenticator.properties.");
+        }
+
+        loadGroupMapping(config, configProps);
+        loadPurgeGroupMapping(config, configProps);
+        loadRemoteUserMapping(config, configProps);
+        loadFullNameMapping(config, configProps);
+
+        return config;
+    }
+
+    /**
+     * Load the per-IdP profiles. A profile is a complete configuration built from the base properties overlaid with
+     * the properties prefixed with "profile.&lt;name&gt;.", selected when the header.profile header has one of the
+     * values listed in profile.&lt;name&gt;.idp.
+     */
+    private static void loadProfiles(ShibAuthConfiguration config, Properties configProps) {
+        config.setProfileHeaderName(configProps.getProperty(ShibAuthConstants.PROFILE_HEADER_NAME_PROPERTY));
+
+        if (config.getProfileHeaderName() == null) {
+            return;
+        }
+
+        config.setProfileHeaderStrategy(Integer.parseInt(
+                configProps.getProperty(ShibAuthConstants.PROFILE_HEADER_STRATEGY_PROPERTY, "0")));
+
+        if (log.isDebugEnabled()) {
+            log.debug("HTTP Header/attribute that selects the profile set to: " + config.getProfileHeaderName() +
+                    ", strategy " + config.getProfileHeaderStrategy());
+        }
+
+        String[] keys = (String[]) configProps.keySet().toArray(new String[0]);
+
+        // base properties, without any profile.* keys
+        Properties baseProps = new Properties();
+        for (int i = 0; i < keys.length; i++) {
+            if (!keys[i].startsWith(ShibAuthConstants.PROFILE_PREFIX)) {
+                baseProps.setProperty(keys[i], configProps.getProperty(keys[i]));
             }
+        }
 
-            // warn about property no longer supported
-            if (Boolean.valueOf(configProps.getProperty(ShibAuthConstants.USING_SHIB_LOGIN_FILTER, "false")).booleanValue()) {
-                log.warn("Note: using.shib.login.filter=true is no longer supported by Confluence HTTP Authenticator. Please remove using.shib.login.filter from remoteUserAuthenticator.properties.");
+        // Map<header value, ShibAuthConfiguration>
+        Map profiles = new HashMap();
+        List names = config.listPostfixes(keys, ShibAuthConstants.PROFILE_PREFIX);
+
+        for (Iterator it = names.iterator(); it.hasNext(); ) {
+            String name = it.next().toString();
+            if (!name.endsWith(ShibAuthConstants.PART_IDP)) {
+                continue;
             }
 
-            loadGroupMapping(config, configProps);
-            loadPurgeGroupMapping(config, configProps);
-            loadRemoteUserMapping(config, configProps);
-            loadFullNameMapping(config, configProps);
+            name = name.substring(0, name.length() - ShibAuthConstants.PART_IDP.length());
+            String prefix = ShibAuthConstants.PROFILE_PREFIX + name + ".";
+            List idps = StringUtil.toListOfNonEmptyStringsDelimitedByCommaOrSemicolon(
+                    configProps.getProperty(ShibAuthConstants.PROFILE_PREFIX + name + ShibAuthConstants.PART_IDP));
 
-            // Set the name of the config file for automatic reloading
-            if (config.isReloadConfig()) {
+            Properties profileProps = new Properties();
+            profileProps.putAll(baseProps);
 
-                URL configURL = RemoteUserAuthenticator.class.getResource(ShibAuthConstants.PROPERTIES_FILE);
+            List overrides = config.listPostfixes(keys, prefix);
+            overrides.remove(ShibAuthConstants.PART_IDP.substring(1));
+            for (int i = 0; i < overrides.size(); i++) {
+                String key = (String) overrides.get(i);
+                profileProps.setProperty(key, configProps.getProperty(prefix + key));
+            }
 
-                if ((configURL == null) || !configURL.getProtocol().equals("file")) {
-                    log.warn("Configuration file is not a file URL, cannot setup automatic reloading from: " +
-                            configURL);
-                } else {
-                    String configFile = configURL.getFile();
-                    long configFileLastModified = new File(configFile).lastModified();
+            log.info("Loading profile " + name + " for " + config.getProfileHeaderName() + " values " + idps +
+                    " with " + overrides.size() + " overridden properties");
 
-                    config.setConfigFile(configFile);
-                    config.setConfigFileLastModified(configFileLastModified);
-                    config.setConfigFileLastChecked(System.currentTimeMillis());
+            ShibAuthConfiguration profile = loadConfiguration(profileProps);
 
-                    log.info("Setting config file name to " + configFile + " with a lastModified stamp of " +
-                            configFileLastModified + " and a last checked stamp of " +
-                            config.getConfigFileLastChecked());
+            for (int i = 0; i < idps.size(); i++) {
+                if (profiles.put(idps.get(i), profile) != null) {
+                    log.warn("Value " + idps.get(i) + " of " + config.getProfileHeaderName() +
+                            " is listed by more than one profile, using profile " + name);
                 }
             }
-        } catch (IOException e) {
-            log.warn("Unable to read properties file, using default properties", e);
         }
 
-        return config;
+        config.setProfiles(profiles);
     }
 
     private static void loadPurgeGroupMapping(ShibAuthConfiguration config,
@@ -321,6 +519,11 @@ public class ShibAuthConfigLoader {
         );
 
         config.setRemoteUserReplacementChars(replacements);
+        config.setRemoteUserFirstMatch(isFirstMatchEvaluation(configProps, ShibAuthConstants.REMOTEUSER_EVALUATION));
+
+        if (log.isDebugEnabled()) {
+            log.debug("Stop at first remote user mapper producing output set to " + config.isRemoteUserFirstMatch());
+        }
 
         List mappers = new ArrayList();
 
@@ -363,6 +566,11 @@ public class ShibAuthConfigLoader {
         );
 
         config.setFullNameReplacementChars(replacements);
+        config.setFullNameFirstMatch(isFirstMatchEvaluation(configProps, ShibAuthConstants.FULL_NAME_EVALUATION));
+
+        if (log.isDebugEnabled()) {
+            log.debug("Stop at first full name mapper producing output set to " + config.isFullNameFirstMatch());
+        }
 
         List mappers = new ArrayList();
 
@@ -386,6 +594,21 @@ public class ShibAuthConfigLoader {
         config.setFullNameMappings(mappers);
     }
 
+    private static boolean isFirstMatchEvaluation(Properties configProps, String property) {
+        String evaluation = configProps.getProperty(property, ShibAuthConstants.EVALUATION_FIRST).trim();
+
+        if (evaluation.equalsIgnoreCase(ShibAuthConstants.EVALUATION_ALL)) {
+            return false;
+        }
+
+        if (!evaluation.equalsIgnoreCase(ShibAuthConstants.EVALUATION_FIRST)) {
+            log.warn("Unknown value \"" + evaluation + "\" for " + property + ", using \"" +
+                    ShibAuthConstants.EVALUATION_FIRST + "\".");
+        }
+
+        return true;
+    }
+
     private static void loadGroupMapping(ShibAuthConfiguration config,
                                          Properties configProps) {
 
@@ -397,6 +620,13 @@ public class ShibAuthConfigLoader {
             log.debug("Setting automatic creation of new group to " + config.isAutoCreateGroup());
         }
 
+        config.setRolesCache(new BoundedCache(Integer.parseInt(
+                configProps.getProperty(ShibAuthConstants.ROLES_CACHE_SIZE, "10000"))));
+
+        if (log.isDebugEnabled()) {
+            log.debug("Setting dynamic roles cache size to " + config.getRolesCache().getMaxSize());
+        }
+
         // Load dynamic roles property
         // #header.dynamicroles.SHIB-EP-ENTITLEMENT=mapper1, mapper2
         // "headers" contains the list of entries such as "SHIB-EP-ENTITLEMENT"
@@ -412,6 +642,30 @@ public class ShibAuthConfigLoader {
             return;
         }
 
+        int memoSize = Integer.parseInt(configProps.getProperty(ShibAuthConstants.ROLES_MAPPER_MEMO_SIZE, "1000"));
+
+        if (log.isDebugEnabled()) {
+            log.debug("Setting dynamic roles mapper memo size to " + memoSize);
+        }
+
+        boolean optimize = Boolean.valueOf(configProps.getProperty(ShibAuthConstants.ROLES_OPTIMIZE,
+                "true")).booleanValue();
+
+        if (log.isDebugEnabled()) {
+            log.debug("Setting optimization of dynamic roles mappers to " + optimize);
+        }
+
+        boolean profile = Boolean.valueOf(configProps.getProperty(ShibAuthConstants.ROLES_PROFILE,
+                "false")).booleanValue();
+        if (profile) {
+            config.setMapperProfiler(new MapperProfiler(Long.parseLong(
+                    configProps.getProperty(ShibAuthConstants.ROLES_PROFILE_LOG_INTERVAL, "3600000"))));
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Setting profiling of dynamic roles mappers to " + profile);
+        }
+
         // Map<mapper_string_name, GroupMapper>
         Map allMappers = new HashMap();
 
@@ -465,7 +719,31 @@ public class ShibAuthConfigLoader {
                 log.debug("Successfully loading mapper for header=" + header + ", handlers=" + sb.toString());
             }
 
+            if (optimize) {
+                List optimized = MapperOptimizer.optimize(mappers);
+
+                if (optimized.size() < mappers.size()) {
+                    log.info("Optimized dynamicroles mappers for header=" + header + " from " + mappers.size() +
+                            " to " + optimized.size() + ", saving " + (mappers.size() - optimized.size()) +
+                            " evaluations per value");
+                }
+
+                mappers = optimized;
+            }
+
             groupMappings.put(header, mappers);
+
+            // Each distinct mapper gets its own memo, shared by all headers using it
+            for (Iterator it = mappers.iterator(); it.hasNext(); ) {
+                GroupMapper mapper = (GroupMapper) it.next();
+                if (!mapper.getMemo().isEnabled()) {
+                    mapper.setMemo(new BoundedCache(memoSize));
+                }
+
+                if (profile) {
+                    config.getMapperProfiler().add(mapper);
+                }
+            }
         }
 
         config.setGroupMappings(groupMappings);
@@ -485,8 +763,10 @@ public class ShibAuthConfigLoader {
                     mapperStr + ShibAuthConstants.PART_MATCH);
             String transform = configProps.getProperty(
                     mapperStr + ShibAuthConstants.PART_TRANSFORM);
+            String table = configProps.getProperty(
+                    mapperStr + ShibAuthConstants.PART_TABLE);
 
-            if (match == null && transform == null) {
+            if (match == null && transform == null && table == null) {
                 log.warn(
                         "Fail to load group mapper with label=" + name + ", ignoring this mapper.");
                 continue;
@@ -494,7 +774,27 @@ public class ShibAuthConfigLoader {
 
             boolean sensitive = Boolean.valueOf(configProps.getProperty(mapperStr + ShibAuthConstants.PART_SENSITIVE,
                     "true")).booleanValue();
-            GroupMapper mapper = new GroupMapper(name, match, transform, sensitive);
+            GroupMapper mapper;
+
+            if (table != null) {
+                try {
+                    mapper = new TableGroupMapper(name, new File(table.trim()), sensitive);
+                } catch (IOException e) {
+                    log.error("Fail to load table " + table + " of group mapper with label=" + name +
+                            ", ignoring this mapper.", e);
+                    continue;
+                }
+
+                log.info("Loaded table " + table + " with " + ((TableGroupMapper) mapper).size() +
+                        " entries for group mapper with label=" + name);
+            } else {
+                mapper = new GroupMapper(name, match, transform, sensitive);
+            }
+
+            mapper.setRetract(Boolean.valueOf(configProps.getProperty(mapperStr + ShibAuthConstants.PART_RETRACT,
+                    "false")).booleanValue());
+            mapper.setForce(Boolean.valueOf(configProps.getProperty(mapperStr + ShibAuthConstants.PART_FORCE,
+                    "false")).booleanValue());
             mappers.add(mapper);
         }
 
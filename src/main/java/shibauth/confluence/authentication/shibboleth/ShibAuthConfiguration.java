@@ -30,9 +30,65 @@
 package shibauth.confluence.authentication.shibboleth;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ShibAuthConfiguration {
 
+    /**
+     * Source of configuration generations, every configuration (re)load gets the next one
+     */
+    private final static AtomicLong generations = new AtomicLong();
+
+    /**
+     * Generation of this configuration snapshot. Caches owned by the snapshot are only valid for this generation.
+     */
+    private final long generation = generations.incrementAndGet();
+
+    /**
+     * Cache of raw remote user header value to the resulting userid, valid for this snapshot only
+     */
+    private BoundedCache usernameCache = new BoundedCache(0);
+
+    /**
+     * Cache of digest of the dynamicroles header values to the derived roles, valid for this snapshot only
+     */
+    private BoundedCache rolesCache = new BoundedCache(0);
+
+    /**
+     * Profiles of the dynamicroles mappers of this snapshot, empty unless dynamicroles.profile is enabled
+     */
+    private MapperProfiler mapperProfiler = new MapperProfiler(0);
+
+    /**
+     * Order in which the sources of an authenticated user are tried
+     */
+    private AuthChain authChain = new AuthChain();
+
+    /**
+     * Cache of successful password verifications, valid for this snapshot only
+     */
+    private CredentialCache credentialCache = new CredentialCache(0, 0);
+
+    /**
+     * Capture of the headers of sampled logins, only set on the base configuration, not on profiles
+     */
+    private HeaderCapture headerCapture = new HeaderCapture();
+
+    /**
+     * HTTP Header or request attribute name whose value selects a profile, null if there are no profiles
+     */
+    private String profileHeaderName;
+
+    /**
+     * Strategy to use to get the profile header
+     */
+    private int profileHeaderStrategy;
+
+    /**
+     * Map of profile header value to the configuration of that profile
+     */
+    private Map profiles = Collections.EMPTY_MAP;
+
     /**
      * Collection of mappers capable of transforming remote-user into
      * something meaningful for confluence.
@@ -47,6 +103,17 @@ public class ShibAuthConfiguration {
      */
     private List remoteUserReplacementChars = new ArrayList();
 
+    /**
+     * remoteUserReplacementChars compiled for use at login
+     */
+    private ReplacementProgram remoteUserReplacement = ReplacementProgram.compile(Collections.EMPTY_LIST, "Remote User");
+
+    /**
+     * Whether to stop at the first remote-user mapper producing output,
+     * in the order the mappers were declared
+     */
+    private boolean remoteUserFirstMatch = true;
+
     /**
      * Collection of mappers capable of transforming full name into
      * something meaningful for confluence.
@@ -61,6 +128,17 @@ public class ShibAuthConfiguration {
      */
     private List fullNameReplacementChars = new ArrayList();
 
+    /**
+     * fullNameReplacementChars compiled for use at login
+     */
+    private ReplacementProgram fullNameReplacement = ReplacementProgram.compile(Collections.EMPTY_LIST, "Full Name");
+
+    /**
+     * Whether to stop at the first full name mapper producing output,
+     * in the order the mappers were declared
+     */
+    private boolean fullNameFirstMatch = true;
+
     /**
      * Set of header names to be watchful for dynamic roles. Content has
      * format of Map<attribHeader, Collection<GroupMapper>>
@@ -68,6 +146,11 @@ public class ShibAuthConfiguration {
      */
     private Map groupMappings = new HashMap();
 
+    /**
+     * Keys of groupMappings, in a fixed order
+     */
+    private String[] groupMappingHeaders = new String[0];
+
     /**
      * list of all mappers that should be doing the purging
      */
@@ -78,6 +161,11 @@ public class ShibAuthConfiguration {
      */
     private Integer purgeRolesLimit = Integer.MAX_VALUE;
 
+    /**
+     * Number of group memberships read at a time when looking for roles to purge
+     */
+    private int purgeRolesBatchSize = 100;
+
     /**
      * Whether to create accounts for new users or not
      */
@@ -203,6 +291,43 @@ public class ShibAuthConfiguration {
      */
     private boolean updateLastLogin;
 
+    /**
+     * Minimum time in milliseconds between two recorded logins of the same user. 0 records every login.
+     */
+    private long updateLastLoginInterval;
+
+    /**
+     * Maximum number of users whose last recorded login is remembered for updateLastLoginInterval.
+     */
+    private int updateLastLoginMaxTracked = 10000;
+
+    /**
+     * Minimum time in milliseconds of a login to keep its trace, 0 keeps none.
+     */
+    private long slowLoginThreshold = 10000;
+
+    /**
+     * Number of slow login traces kept.
+     */
+    private int slowLoginBufferSize = 50;
+
+    /**
+     * Lower case userids whose logins are traced, see TargetedTrace.
+     */
+    private Set traceUsers = Collections.EMPTY_SET;
+
+    /**
+     * Header whose values select the logins to trace, null if none.
+     */
+    private String traceHeaderName;
+
+    private Set traceHeaderValues = Collections.EMPTY_SET;
+
+    /**
+     * Milliseconds between two provisioning summaries, 0 logs every provisioning event.
+     */
+    private long provisioningSummaryInterval = 300000;
+
     /**
      * Whether or not to automatically create groups.
      */
@@ -253,9 +378,17 @@ public class ShibAuthConfiguration {
         return groupMappings.keySet();
     }
 
+    /**
+     * @return names of the headers that have group mappings, always in the same order
+     */
+    public String[] getGroupMappingHeaders() {
+        return groupMappingHeaders;
+    }
+
     public void setGroupMappings(Map mappings) {
         groupMappings.clear();
         groupMappings.putAll(mappings);
+        groupMappingHeaders = (String[]) groupMappings.keySet().toArray(new String[groupMappings.size()]);
     }
 
     public void setPurgeMappings(Collection mappings) {
@@ -279,6 +412,7 @@ public class ShibAuthConfiguration {
     public void setRemoteUserReplacementChars(List replacements) {
         remoteUserReplacementChars.clear();
         remoteUserReplacementChars.addAll(replacements);
+        remoteUserReplacement = ReplacementProgram.compile(remoteUserReplacementChars, "Remote User");
     }
 
     /**
@@ -293,6 +427,21 @@ public class ShibAuthConfiguration {
         return remoteUserReplacementChars.iterator();
     }
 
+    /**
+     * @return the remote user character replacements, compiled
+     */
+    public ReplacementProgram getRemoteUserReplacement() {
+        return remoteUserReplacement;
+    }
+
+    public boolean isRemoteUserFirstMatch() {
+        return remoteUserFirstMatch;
+    }
+
+    public void setRemoteUserFirstMatch(boolean remoteUserFirstMatch) {
+        this.remoteUserFirstMatch = remoteUserFirstMatch;
+    }
+
     public Collection getFullNameMappings() {
         return fullNameMappings;
     }
@@ -305,6 +454,7 @@ public class ShibAuthConfiguration {
     public void setFullNameReplacementChars(List replacements) {
         fullNameReplacementChars.clear();
         fullNameReplacementChars.addAll(replacements);
+        fullNameReplacement = ReplacementProgram.compile(fullNameReplacementChars, "Full Name");
     }
 
     /**
@@ -319,6 +469,21 @@ public class ShibAuthConfiguration {
         return fullNameReplacementChars.iterator();
     }
 
+    /**
+     * @return the full name character replacements, compiled
+     */
+    public ReplacementProgram getFullNameReplacement() {
+        return fullNameReplacement;
+    }
+
+    public boolean isFullNameFirstMatch() {
+        return fullNameFirstMatch;
+    }
+
+    public void setFullNameFirstMatch(boolean fullNameFirstMatch) {
+        this.fullNameFirstMatch = fullNameFirstMatch;
+    }
+
     public void setOutputToLowerCase(boolean outputToLowerCase) {
         this.outputToLowerCase = outputToLowerCase;
     }
@@ -359,6 +524,14 @@ public class ShibAuthConfiguration {
         this.purgeRolesLimit = purgeRolesLimit;
     }
 
+    public int getPurgeRolesBatchSize() {
+        return purgeRolesBatchSize;
+    }
+
+    public void setPurgeRolesBatchSize(int purgeRolesBatchSize) {
+        this.purgeRolesBatchSize = purgeRolesBatchSize;
+    }
+
 
     public long getReloadConfigCheckInterval() {
         return reloadConfigCheckInterval;
@@ -488,6 +661,159 @@ public class ShibAuthConfiguration {
         this.updateLastLogin = updateLastLogin;
     }
 
+    public long getUpdateLastLoginInterval() {
+        return updateLastLoginInterval;
+    }
+
+    public void setUpdateLastLoginInterval(long updateLastLoginInterval) {
+        this.updateLastLoginInterval = updateLastLoginInterval;
+    }
+
+    public int getUpdateLastLoginMaxTracked() {
+        return updateLastLoginMaxTracked;
+    }
+
+    public void setUpdateLastLoginMaxTracked(int updateLastLoginMaxTracked) {
+        this.updateLastLoginMaxTracked = updateLastLoginMaxTracked;
+    }
+
+    public long getSlowLoginThreshold() {
+        return slowLoginThreshold;
+    }
+
+    public void setSlowLoginThreshold(long slowLoginThreshold) {
+        this.slowLoginThreshold = slowLoginThreshold;
+    }
+
+    public int getSlowLoginBufferSize() {
+        return slowLoginBufferSize;
+    }
+
+    public void setSlowLoginBufferSize(int slowLoginBufferSize) {
+        this.slowLoginBufferSize = slowLoginBufferSize;
+    }
+
+    public Set getTraceUsers() {
+        return traceUsers;
+    }
+
+    public void setTraceUsers(Set traceUsers) {
+        this.traceUsers = traceUsers;
+    }
+
+    public String getTraceHeaderName() {
+        return traceHeaderName;
+    }
+
+    public void setTraceHeaderName(String traceHeaderName) {
+        this.traceHeaderName = traceHeaderName;
+    }
+
+    public Set getTraceHeaderValues() {
+        return traceHeaderValues;
+    }
+
+    public void setTraceHeaderValues(Set traceHeaderValues) {
+        this.traceHeaderValues = traceHeaderValues;
+    }
+
+    public long getProvisioningSummaryInterval() {
+        return provisioningSummaryInterval;
+    }
+
+    public void setProvisioningSummaryInterval(long provisioningSummaryInterval) {
+        this.provisioningSummaryInterval = provisioningSummaryInterval;
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    public BoundedCache getUsernameCache() {
+        return usernameCache;
+    }
+
+    public void setUsernameCache(BoundedCache usernameCache) {
+        this.usernameCache = usernameCache;
+    }
+
+    public String getProfileHeaderName() {
+        return profileHeaderName;
+    }
+
+    public void setProfileHeaderName(String profileHeaderName) {
+        this.profileHeaderName = profileHeaderName;
+    }
+
+    public int getProfileHeaderStrategy() {
+        return profileHeaderStrategy;
+    }
+
+    public void setProfileHeaderStrategy(int profileHeaderStrategy) {
+        this.profileHeaderStrategy = profileHeaderStrategy;
+    }
+
+    public Map getProfiles() {
+        return profiles;
+    }
+
+    public void setProfiles(Map profiles) {
+        this.profiles = profiles;
+    }
+
+    /**
+     * @param profileHeaderValue value of the profile header, may be null
+     * @return configuration of the profile selected by the value, or this configuration if there is none
+     */
+    public ShibAuthConfiguration getProfile(String profileHeaderValue) {
+        if (profileHeaderValue == null) {
+            return this;
+        }
+
+        ShibAuthConfiguration profile = (ShibAuthConfiguration) profiles.get(profileHeaderValue);
+        return profile == null ? this : profile;
+    }
+
+    public AuthChain getAuthChain() {
+        return authChain;
+    }
+
+    public void setAuthChain(AuthChain authChain) {
+        this.authChain = authChain;
+    }
+
+    public CredentialCache getCredentialCache() {
+        return credentialCache;
+    }
+
+    public void setCredentialCache(CredentialCache credentialCache) {
+        this.credentialCache = credentialCache;
+    }
+
+    public HeaderCapture getHeaderCapture() {
+        return headerCapture;
+    }
+
+    public void setHeaderCapture(HeaderCapture headerCapture) {
+        this.headerCapture = headerCapture;
+    }
+
+    public MapperProfiler getMapperProfiler() {
+        return mapperProfiler;
+    }
+
+    public void setMapperProfiler(MapperProfiler mapperProfiler) {
+        this.mapperProfiler = mapperProfiler;
+    }
+
+    public BoundedCache getRolesCache() {
+        return rolesCache;
+    }
+
+    public void setRolesCache(BoundedCache rolesCache) {
+        this.rolesCache = rolesCache;
+    }
+
     public boolean isUsernameConvertCase() {
         return usernameConvertCase;
     }
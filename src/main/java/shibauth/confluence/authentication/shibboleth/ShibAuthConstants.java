@@ -62,6 +62,11 @@ public class ShibAuthConstants {
      */
     public final static String PURGE_ROLES_LIMIT = "purge.roles.limit";
 
+    /**
+     * Number of group memberships read at a time when looking for roles to purge
+     */
+    public final static String PURGE_ROLES_BATCH_SIZE = "purge.roles.batch.size";
+
     /**
      * reload.config init parameter name
      */
@@ -117,6 +122,51 @@ public class ShibAuthConstants {
      */
     public final static String USERNAME_CASE_CONVERT_PROPERTY = "username.convertcase";
 
+    /**
+     * Order of the sources of an authenticated user tried by login() and getUser(), e.g. "header, session, cookie"
+     */
+    public final static String AUTH_CHAIN = "auth.chain";
+
+    /**
+     * Time in milliseconds a successful password verification (e.g. Basic Auth) is cached, 0 disables it
+     */
+    public final static String CREDENTIAL_CACHE_TTL = "credential.cache.ttl";
+
+    /**
+     * Maximum number of successful password verifications cached
+     */
+    public final static String CREDENTIAL_CACHE_SIZE = "credential.cache.size";
+
+    /**
+     * File the headers of sampled logins are written to, capture is disabled if not set
+     */
+    public final static String CAPTURE_FILE = "capture.file";
+
+    /**
+     * Fraction of logins whose headers are captured, between 0 and 1
+     */
+    public final static String CAPTURE_SAMPLE_RATE = "capture.sample.rate";
+
+    /**
+     * Key of the hash that replaces the remote user in captured headers
+     */
+    public final static String CAPTURE_KEY = "capture.key";
+
+    /**
+     * Maximum size of a capture file before it is rotated
+     */
+    public final static String CAPTURE_MAX_SIZE = "capture.max.size";
+
+    /**
+     * Number of rotated capture files to keep
+     */
+    public final static String CAPTURE_MAX_FILES = "capture.max.files";
+
+    /**
+     * Maximum number of raw remote user values whose resulting userid is cached
+     */
+    public final static String USERNAME_CACHE_SIZE = "username.cache.size";
+
     /**
      * Prefix to be used for remote-user label
      * <p/>
@@ -139,6 +189,13 @@ public class ShibAuthConstants {
      */
     public final static String REMOTEUSER_MAP_PREFIX = "remoteuser.map.";
 
+    /**
+     * How the remote-user mappers are evaluated: "first" stops at the first
+     * mapper (in the order of the remoteuser label list) producing output,
+     * "all" evaluates every mapper.
+     */
+    public final static String REMOTEUSER_EVALUATION = "remoteuser.evaluation";
+
     /**
      * Prefix to be used for mapping of different roles. i.e.
      * dynamicroles.header.SHIB-EP-ENTITLEMENT=label1, label2
@@ -161,15 +218,61 @@ public class ShibAuthConstants {
      */
     public final static String ROLES_ATTRIB_PREFIX = "dynamicroles.mapper.";
 
+    /**
+     * Maximum number of distinct sets of dynamicroles header values whose derived roles are cached
+     */
+    public final static String ROLES_CACHE_SIZE = "dynamicroles.cache.size";
+
+    /**
+     * Maximum number of input values whose output groups are memoized by each dynamicroles mapper
+     */
+    public final static String ROLES_MAPPER_MEMO_SIZE = "dynamicroles.memo.size";
+
+    /**
+     * Whether the dynamicroles mappers of each header are merged and deduplicated when loaded
+     */
+    public final static String ROLES_OPTIMIZE = "dynamicroles.optimize";
+
+    /**
+     * Whether invocations, matches and time of each dynamicroles mapper are counted
+     */
+    public final static String ROLES_PROFILE = "dynamicroles.profile";
+
+    /**
+     * Milliseconds between two dynamicroles mapper profile reports in the log
+     */
+    public final static String ROLES_PROFILE_LOG_INTERVAL = "dynamicroles.profile.log.interval";
+
     /**
      * Label to represent indicate whether the group be automatically created
      * when the IdP provides new group non-existent in confluence.
      */
     public final static String AUTO_CREATE_GROUP = "dynamicroles.auto_create_role";
 
+    /**
+     * HTTP Header/attribute whose value (e.g. the entityID of the IdP) selects the profile
+     */
+    public final static String PROFILE_HEADER_NAME_PROPERTY = "header.profile";
+
+    /**
+     * Strategy option to use to get the profile header
+     */
+    public final static String PROFILE_HEADER_STRATEGY_PROPERTY = "header.profile.strategy";
+
+    /**
+     * Prefix of the properties of a profile, profile.&lt;name&gt;.idp lists the header values selecting it and
+     * profile.&lt;name&gt;.&lt;property&gt; overrides &lt;property&gt;
+     */
+    public final static String PROFILE_PREFIX = "profile.";
+
+    public final static String PART_IDP = ".idp";
+
     public final static String PART_MATCH = ".match";
     public final static String PART_TRANSFORM = ".transform";
     public final static String PART_SENSITIVE = ".casesensitive";
+    public final static String PART_RETRACT = ".retract";
+    public final static String PART_FORCE = ".force";
+    public final static String PART_TABLE = ".table";
 
     /**
      * update.info init parameter name
@@ -181,6 +284,46 @@ public class ShibAuthConstants {
      */
     public final static String UPDATE_LAST_LOGIN_DATE = "update.last.login.date";
 
+    /**
+     * update.last.login.date.interval init parameter name
+     */
+    public final static String UPDATE_LAST_LOGIN_DATE_INTERVAL = "update.last.login.date.interval";
+
+    /**
+     * update.last.login.date.max.tracked init parameter name
+     */
+    public final static String UPDATE_LAST_LOGIN_DATE_MAX_TRACKED = "update.last.login.date.max.tracked";
+
+    /**
+     * Minimum time in milliseconds of a login to keep its trace in the slow login recorder
+     */
+    public final static String SLOW_LOGIN_THRESHOLD = "slowlogin.threshold";
+
+    /**
+     * Number of slow login traces kept
+     */
+    public final static String SLOW_LOGIN_BUFFER_SIZE = "slowlogin.buffer.size";
+
+    /**
+     * Userids whose logins are traced
+     */
+    public final static String TRACE_USERS = "trace.users";
+
+    /**
+     * Header whose values select the logins to trace
+     */
+    public final static String TRACE_HEADER = "trace.header";
+
+    /**
+     * Values of trace.header that select the logins to trace
+     */
+    public final static String TRACE_HEADER_VALUES = "trace.header.values";
+
+    /**
+     * Milliseconds between two provisioning summaries in the log, 0 to log each provisioning event instead
+     */
+    public final static String PROVISIONING_SUMMARY_INTERVAL = "provisioning.summary.interval";
+
     /**
      * update.roles init parameter name
      */
@@ -215,4 +358,21 @@ public class ShibAuthConstants {
      */
     public final static String FULL_NAME_MAP_PREFIX = "fullname.map.";
 
+    /**
+     * How the full name mappers are evaluated: "first" stops at the first
+     * mapper (in the order of the fullname label list) producing output,
+     * "all" evaluates every mapper.
+     */
+    public final static String FULL_NAME_EVALUATION = "fullname.evaluation";
+
+    /**
+     * Value of remoteuser.evaluation and fullname.evaluation to stop at the first mapper producing output
+     */
+    public final static String EVALUATION_FIRST = "first";
+
+    /**
+     * Value of remoteuser.evaluation and fullname.evaluation to evaluate all mappers
+     */
+    public final static String EVALUATION_ALL = "all";
+
 }
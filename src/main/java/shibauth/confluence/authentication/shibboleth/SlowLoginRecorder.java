@@ -0,0 +1,146 @@
+/*
+ Copyright (c) 2008-2019, Confluence HTTP Authenticator Team
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice,
+   this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+ * Neither the name of the Confluence HTTP Authenticator Team
+   nor the names of its contributors may be used to endorse or promote
+   products derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package shibauth.confluence.authentication.shibboleth;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Flight recorder of slow logins: the traces of the most recent logins that took at least slowlogin.threshold
+ * milliseconds, kept in a fixed-size ring that overwrites its oldest entry. Adding a trace claims a slot with one
+ * atomic increment, so logins never wait on each other. The traces are available over JMX (AuthenticatorStats), which
+ * can also write them to the log, so no debug logging is needed to find out why a login was slow.
+ */
+public class SlowLoginRecorder {
+
+    private final AtomicReferenceArray traces;
+
+    private final AtomicLong next = new AtomicLong();
+
+    private volatile long thresholdNanos;
+
+    /**
+     * @param size            number of traces kept
+     * @param thresholdMillis minimum time of a login to keep its trace, 0 or less to keep none
+     */
+    public SlowLoginRecorder(int size, long thresholdMillis) {
+        traces = new AtomicReferenceArray(Math.max(1, size));
+        setThresholdMillis(thresholdMillis);
+    }
+
+    /**
+     * @return a recorder of the given size and threshold, this one if it has that size already, so traces are kept
+     * across configuration reloads
+     */
+    public SlowLoginRecorder resize(int size, long thresholdMillis) {
+        if (Math.max(1, size) == traces.length()) {
+            setThresholdMillis(thresholdMillis);
+            return this;
+        }
+
+        SlowLoginRecorder resized = new SlowLoginRecorder(size, thresholdMillis);
+        List kept = getTraces();
+        for (int i = Math.min(kept.size(), resized.traces.length()) - 1; i >= 0; i--) {
+            resized.add((LoginTrace) kept.get(i));
+        }
+        return resized;
+    }
+
+    public boolean isEnabled() {
+        return thresholdNanos > 0;
+    }
+
+    public void setThresholdMillis(long thresholdMillis) {
+        this.thresholdNanos = thresholdMillis * 1000000L;
+    }
+
+    public long getThresholdMillis() {
+        return thresholdNanos / 1000000L;
+    }
+
+    public int getSize() {
+        return traces.length();
+    }
+
+    /**
+     * Keep the trace if the login was slow. The request headers and backend calls are only added to traces that are
+     * kept.
+     *
+     * @param trace ended trace, ignored if null
+     * @return true if the trace was kept
+     */
+    public boolean offer(LoginTrace trace, HttpServletRequest request, BackendCalls calls) {
+        long threshold = thresholdNanos;
+        if (trace == null || threshold <= 0 || trace.getTotalNanos() < threshold) {
+            return false;
+        }
+
+        trace.complete(request, calls);
+        add(trace);
+        return true;
+    }
+
+    private void add(LoginTrace trace) {
+        traces.set((int) (next.getAndIncrement() % traces.length()), trace);
+    }
+
+    /**
+     * @return the kept traces, most recent first
+     */
+    public List getTraces() {
+        List list = new ArrayList(traces.length());
+        for (int i = 0; i < traces.length(); i++) {
+            Object trace = traces.get(i);
+            if (trace != null) {
+                list.add(trace);
+            }
+        }
+
+        Collections.sort(list, new Comparator() {
+            public int compare(Object o1, Object o2) {
+                long t1 = ((LoginTrace) o1).getStartMillis();
+                long t2 = ((LoginTrace) o2).getStartMillis();
+                return t1 < t2 ? 1 : t1 > t2 ? -1 : 0;
+            }
+        });
+        return list;
+    }
+
+    public void clear() {
+        for (int i = 0; i < traces.length(); i++) {
+            traces.set(i, null);
+        }
+    }
+}
@@ -0,0 +1,352 @@
+/*
+ Copyright (c) 2008-2019, Confluence HTTP Authenticator Team
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice,
+   this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+ * Neither the name of the Confluence HTTP Authenticator Team
+   nor the names of its contributors may be used to endorse or promote
+   products derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package shibauth.confluence.authentication.shibboleth;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * GroupMapper that looks up the input value in an external table of literal value to group(s) mappings instead of
+ * matching a regex, for tables too large to express as dynamicroles.mapper.* properties.
+ * <p/>
+ * The table is a UTF-8 text file with one mapping per line, the value and its group(s) separated by a tab, e.g.
+ * "urn:mace:dir:entitlement:common-lib-terms&lt;TAB&gt;library-users, library-staff". Empty lines and lines
+ * starting with '#' are ignored; a value listed more than once gets all of its groups.
+ * <p/>
+ * When loaded, the table is converted to a binary index file next to it (table file name + ".idx"), which is
+ * reused as long as the table has the same size and modification time as when the index was built. The index is
+ * memory-mapped read-only, so the mappings stay off the heap, and each lookup is a binary search over it. Index
+ * layout (big endian):
+ * <pre>
+ * int magic, int version, long table size, long table modification time, int count,
+ * int[count] offset of each entry, relative to the first entry,
+ * entries sorted by key bytes: short key length, key bytes, short groups length, groups bytes (both UTF-8)
+ * </pre>
+ * If the mapper is not case sensitive, keys are stored and looked up in lower case.
+ */
+public class TableGroupMapper extends GroupMapper {
+
+    private final static Log log = LogFactory.getLog(TableGroupMapper.class);
+
+    private final static int MAGIC = 0x53544258;
+
+    private final static int VERSION = 2;
+
+    private final static int HEADER_SIZE = 28;
+
+    private final static String INDEX_SUFFIX = ".idx";
+
+    private final File table;
+
+    private final ByteBuffer index;
+
+    private final int count;
+
+    private final int entriesStart;
+
+    /**
+     * @param name      name of this mapper
+     * @param table     table file
+     * @param sensitive should the lookup be case sensitive
+     * @throws IOException if the table or its index cannot be read or written
+     */
+    public TableGroupMapper(String name, File table, boolean sensitive) throws IOException {
+        super(name, null, null, sensitive);
+        this.table = table;
+
+        File indexFile = getIndexFile(table, sensitive);
+        this.index = map(indexFile);
+
+        if (index.getInt(0) != MAGIC || index.getInt(4) != VERSION) {
+            throw new IOException("Not a table index: " + indexFile);
+        }
+
+        this.count = index.getInt(24);
+        this.entriesStart = HEADER_SIZE + count * 4;
+
+        if (TargetedTrace.isDebugEnabled(log)) {
+            TargetedTrace.debug(log, "Mapped " + count + " entries of table " + table + " from " + indexFile);
+        }
+    }
+
+    public File getTable() {
+        return table;
+    }
+
+    /**
+     * @return number of values in the table
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Look up the value in the table.
+     *
+     * @param initValue value to look up
+     * @return the group(s) of the value, separated by comma or semicolon, or null if the value is not in the table
+     */
+    public String process(String initValue) {
+        if (initValue == null || initValue.length() == 0) {
+            return null;
+        }
+
+        byte[] key = toKey(initValue, isCaseSensitive());
+
+        int low = 0;
+        int high = count - 1;
+
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int entry = entriesStart + index.getInt(HEADER_SIZE + mid * 4);
+            int cmp = compare(entry, key);
+
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                int keyLength = index.getShort(entry) & 0xffff;
+                int groupsStart = entry + 2 + keyLength;
+                byte[] groups = new byte[index.getShort(groupsStart) & 0xffff];
+                for (int i = 0; i < groups.length; i++) {
+                    groups[i] = index.get(groupsStart + 2 + i);
+                }
+
+                String output = decode(groups);
+
+                if (TargetedTrace.isDebugEnabled(log)) {
+                    TargetedTrace.debug(log, "Converted: value=" + initValue + " to group=" + output + " using table " + table);
+                }
+
+                return output;
+            }
+        }
+
+        if (TargetedTrace.isDebugEnabled(log)) {
+            TargetedTrace.debug(log, "Table " + table + " has no entry for value='" + initValue + "'");
+        }
+
+        return null;
+    }
+
+    /**
+     * Compare the key of the entry at the given position with the key, as unsigned bytes.
+     */
+    private int compare(int entry, byte[] key) {
+        int length = index.getShort(entry) & 0xffff;
+        int n = Math.min(length, key.length);
+
+        for (int i = 0; i < n; i++) {
+            int a = index.get(entry + 2 + i) & 0xff;
+            int b = key[i] & 0xff;
+            if (a != b) {
+                return a - b;
+            }
+        }
+
+        return length - key.length;
+    }
+
+    private static byte[] toKey(String value, boolean sensitive) {
+        String key = sensitive ? value : value.toLowerCase(Locale.ENGLISH);
+        try {
+            return key.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // every Java platform is required to support UTF-8
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String decode(byte[] bytes) {
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static ByteBuffer map(File indexFile) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(indexFile, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.capacity() < HEADER_SIZE) {
+                throw new IOException("Table index is truncated: " + indexFile);
+            }
+            return buffer;
+        } finally {
+            // the mapping stays valid after the file is closed
+            file.close();
+        }
+    }
+
+    /**
+     * @return an up to date index of the table, building it if needed
+     */
+    private static File getIndexFile(File table, boolean sensitive) throws IOException {
+        if (!table.isFile()) {
+            throw new FileNotFoundException("Table " + table + " does not exist");
+        }
+
+        String suffix = (sensitive ? "" : ".lc") + INDEX_SUFFIX;
+        File indexFile = new File(table.getPath() + suffix);
+
+        // read before the table, so that a change while the index is built is noticed next time
+        long tableSize = table.length();
+        long tableModified = table.lastModified();
+
+        if (indexFile.isFile() && isIndexOf(indexFile, tableSize, tableModified)) {
+            return indexFile;
+        }
+
+        log.info("Building index of table " + table);
+
+        File tmp;
+        try {
+            tmp = File.createTempFile(table.getName(), suffix, table.getAbsoluteFile().getParentFile());
+        } catch (IOException e) {
+            // table directory is not writable, keep the index for the lifetime of this JVM only
+            tmp = File.createTempFile(table.getName(), suffix);
+            tmp.deleteOnExit();
+            writeIndex(table, tableSize, tableModified, sensitive, tmp);
+            return tmp;
+        }
+
+        writeIndex(table, tableSize, tableModified, sensitive, tmp);
+
+        indexFile.delete();
+        if (!tmp.renameTo(indexFile)) {
+            // e.g. the old index is still mapped on Windows
+            log.warn("Could not rename " + tmp + " to " + indexFile + ", using " + tmp);
+            tmp.deleteOnExit();
+            return tmp;
+        }
+
+        return indexFile;
+    }
+
+    /**
+     * @return true if the index is of the current version and was built from a table of the given size and
+     * modification time. Comparing the modification time for equality also catches tables replaced by an older copy.
+     */
+    private static boolean isIndexOf(File indexFile, long tableSize, long tableModified) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+        try {
+            return in.readInt() == MAGIC && in.readInt() == VERSION && in.readLong() == tableSize &&
+                    in.readLong() == tableModified;
+        } catch (EOFException e) {
+            return false;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeIndex(File table, long tableSize, long tableModified, boolean sensitive, File indexFile)
+            throws IOException {
+        // Map<key bytes as ISO-8859-1 string, groups> sorts like unsigned bytes
+        SortedMap entries = new TreeMap();
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(table), "UTF-8"));
+        try {
+            int lineNumber = 0;
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                lineNumber++;
+
+                if (line.trim().length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+
+                int tab = line.indexOf('\t');
+                if (tab <= 0) {
+                    log.warn("Ignoring line " + lineNumber + " of table " + table + ", expected value<TAB>group(s)");
+                    continue;
+                }
+
+                String key = new String(toKey(line.substring(0, tab).trim(), sensitive), "ISO-8859-1");
+                String groups = line.substring(tab + 1).trim();
+
+                if (key.length() > 0xffff || groups.getBytes("UTF-8").length > 0xffff) {
+                    log.warn("Ignoring line " + lineNumber + " of table " + table + ", too long");
+                    continue;
+                }
+
+                String existing = (String) entries.get(key);
+                if (existing != null) {
+                    groups = existing + ", " + groups;
+                    if (groups.getBytes("UTF-8").length > 0xffff) {
+                        log.warn("Ignoring line " + lineNumber + " of table " + table +
+                                ", too many groups for the same value");
+                        continue;
+                    }
+                }
+                entries.put(key, groups);
+            }
+        } finally {
+            reader.close();
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(tableSize);
+            out.writeLong(tableModified);
+            out.writeInt(entries.size());
+
+            int offset = 0;
+            List encoded = new ArrayList(entries.size() * 2);
+            for (Iterator it = entries.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry entry = (Map.Entry) it.next();
+                byte[] key = ((String) entry.getKey()).getBytes("ISO-8859-1");
+                byte[] groups = ((String) entry.getValue()).getBytes("UTF-8");
+
+                out.writeInt(offset);
+                offset += 4 + key.length + groups.length;
+                encoded.add(key);
+                encoded.add(groups);
+            }
+
+            for (int i = 0; i < encoded.size(); i++) {
+                byte[] bytes = (byte[]) encoded.get(i);
+                out.writeShort(bytes.length);
+                out.write(bytes);
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
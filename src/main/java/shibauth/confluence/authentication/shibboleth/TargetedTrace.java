@@ -0,0 +1,153 @@
+/*
+ Copyright (c) 2008-2019, Confluence HTTP Authenticator Team
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without
+ modification, are permitted provided that the following conditions are met:
+
+ * Redistributions of source code must retain the above copyright notice,
+   this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above copyright
+   notice, this list of conditions and the following disclaimer in the
+   documentation and/or other materials provided with the distribution.
+ * Neither the name of the Confluence HTTP Authenticator Team
+   nor the names of its contributors may be used to endorse or promote
+   products derived from this software without specific prior written permission.
+
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package shibauth.confluence.authentication.shibboleth;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Debug logging of the logins of selected users only, configured with trace.users and trace.header(.values). While a
+ * login is traced, the debug messages of the authenticator, the dynamicroles mappers and the profile attributes are
+ * written at INFO to the TargetedTrace log, prefixed with the userid, without DEBUG for the whole package. Code that
+ * logs at debug level checks {@link #isDebugEnabled(Log)} instead of log.isDebugEnabled() and logs through
+ * {@link #debug(Log, Object)}:
+ * <pre>
+ * if (TargetedTrace.isDebugEnabled(log)) {
+ *     TargetedTrace.debug(log, "Assigning " + user.getName() + " to role " + role);
+ * }
+ * </pre>
+ * When no login is traced anywhere, the added cost is the read of one volatile counter.
+ */
+public class TargetedTrace {
+
+    private final static Log traceLog = LogFactory.getLog(TargetedTrace.class);
+
+    private final static ThreadLocal current = new ThreadLocal();
+
+    /**
+     * Number of threads with a traced login, so untraced logins do not need to look at the thread local
+     */
+    private final static AtomicInteger active = new AtomicInteger();
+
+    private final String prefix;
+
+    private final long start = System.currentTimeMillis();
+
+    private TargetedTrace(String label) {
+        prefix = "[trace " + label + "] ";
+    }
+
+    /**
+     * @return true if the login on this thread is traced
+     */
+    public static boolean isTraced() {
+        return active.get() > 0 && current.get() != null;
+    }
+
+    public static boolean isDebugEnabled(Log log) {
+        return log.isDebugEnabled() || isTraced();
+    }
+
+    public static void debug(Log log, Object message) {
+        TargetedTrace trace = active.get() > 0 ? (TargetedTrace) current.get() : null;
+        if (trace != null) {
+            traceLog.info(trace.prefix + message);
+        } else {
+            log.debug(message);
+        }
+    }
+
+    public static void debug(Log log, Object message, Throwable t) {
+        TargetedTrace trace = active.get() > 0 ? (TargetedTrace) current.get() : null;
+        if (trace != null) {
+            traceLog.info(trace.prefix + message, t);
+        } else {
+            log.debug(message, t);
+        }
+    }
+
+    /**
+     * Start tracing the login on this thread if its trace.header has one of the trace.header.values.
+     */
+    public static void beginIfHeaderMatches(ShibAuthConfiguration config, HttpServletRequest request) {
+        String headerName = config.getTraceHeaderName();
+        if (headerName == null) {
+            return;
+        }
+
+        List values = StringUtil.toListOfNonEmptyStringsDelimitedByCommaOrSemicolon(
+                ProfileAttributes.getAttribute(request, headerName, 0));
+        Set traced = config.getTraceHeaderValues();
+        for (int i = 0; i < values.size(); i++) {
+            if (traced.contains(values.get(i))) {
+                begin(headerName + "=" + values.get(i));
+                return;
+            }
+        }
+    }
+
+    /**
+     * Start tracing the login on this thread if the userid is one of the trace.users, unless it is traced already.
+     */
+    public static void beginIfUserMatches(ShibAuthConfiguration config, String userid) {
+        Set users = config.getTraceUsers();
+        if (!users.isEmpty() && userid != null && users.contains(userid.toLowerCase()) && !isTraced()) {
+            begin(userid);
+        }
+    }
+
+    private static void begin(String label) {
+        TargetedTrace trace = new TargetedTrace(label);
+        current.set(trace);
+        active.incrementAndGet();
+        traceLog.info(trace.prefix + "tracing request");
+    }
+
+    /**
+     * Stop tracing the login on this thread, if it was traced.
+     */
+    public static void end() {
+        if (active.get() == 0) {
+            return;
+        }
+
+        TargetedTrace trace = (TargetedTrace) current.get();
+        if (trace != null) {
+            current.remove();
+            active.decrementAndGet();
+            traceLog.info(trace.prefix + "done in " + (System.currentTimeMillis() - trace.start) + " ms");
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package shibauth.confluence.authentication.shibboleth;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+public class AuthChainTest extends TestCase {
+
+    public void testDefaultOrder() {
+        AuthChain chain = new AuthChain();
+        assertEquals("login=basic,cookie,header, getUser=session,cookie,basic,header", chain.toString());
+    }
+
+    public void testConfiguredOrder() {
+        AuthChain chain = new AuthChain(Arrays.asList(new String[]{"session", "Header", " cookie "}));
+        assertTrue(Arrays.equals(new int[]{AuthChain.SESSION, AuthChain.HEADER, AuthChain.COOKIE},
+                chain.getGetUserSources()));
+        // login() never sees a session user
+        assertTrue(Arrays.equals(new int[]{AuthChain.HEADER, AuthChain.COOKIE}, chain.getLoginSources()));
+    }
+
+    public void testUnknownAndDuplicateSourcesIgnored() {
+        AuthChain chain = new AuthChain(Arrays.asList(new String[]{"header", "ldap", "header", "basic"}));
+        assertTrue(Arrays.equals(new int[]{AuthChain.HEADER, AuthChain.BASIC}, chain.getGetUserSources()));
+    }
+
+    public void testCounts() {
+        long hits = AuthChain.getHitCount(AuthChain.HEADER);
+        long misses = AuthChain.getMissCount();
+        AuthChain.hit(AuthChain.HEADER);
+        AuthChain.miss();
+        assertEquals(hits + 1, AuthChain.getHitCount(AuthChain.HEADER));
+        assertEquals(misses + 1, AuthChain.getMissCount());
+    }
+}
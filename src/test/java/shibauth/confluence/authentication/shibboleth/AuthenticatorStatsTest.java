@@ -0,0 +1,84 @@
+package shibauth.confluence.authentication.shibboleth;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class AuthenticatorStatsTest extends TestCase {
+
+    public void testHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentileMicros(99));
+
+        for (int i = 0; i < 98; i++) {
+            histogram.record(100 * 1000L);
+        }
+        histogram.record(5000 * 1000L);
+        histogram.record(5000 * 1000L);
+
+        assertEquals(100, histogram.getCount());
+        // 100 us falls in [64, 127], 5000 us in [4096, 8191]
+        assertEquals(127, histogram.getPercentileMicros(50));
+        assertEquals(8191, histogram.getPercentileMicros(99));
+        assertEquals(5000, histogram.getMaxMicros());
+        assertEquals(198, histogram.getMeanMicros());
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMaxMicros());
+    }
+
+    public void testBuckets() {
+        assertEquals(0, LatencyHistogram.bucketOf(0));
+        assertEquals(1, LatencyHistogram.bucketOf(1));
+        assertEquals(2, LatencyHistogram.bucketOf(3));
+        assertEquals(3, LatencyHistogram.bucketOf(4));
+        assertEquals(39, LatencyHistogram.bucketOf(Long.MAX_VALUE));
+    }
+
+    public void testOutcomes() {
+        AuthenticatorStats stats = new AuthenticatorStats();
+        stats.loginSucceeded();
+        stats.loginFailed("NoUsername");
+        stats.loginFailed("UserInactive");
+        stats.loginFailed("NoUsername");
+        stats.record(AuthenticatorStats.MAPPING, AuthenticatorStats.start());
+
+        assertEquals(1, stats.getLoginSuccessCount());
+        assertEquals(3, stats.getLoginFailedCount());
+        assertEquals(2, stats.getLoginFailedCount("NoUsername"));
+        assertEquals(Arrays.asList(new String[]{"NoUsername=2", "UserInactive=1"}),
+                Arrays.asList(stats.getLoginFailedReasons()));
+        assertEquals(1, stats.getStageCounts()[AuthenticatorStats.MAPPING]);
+        assertEquals(0, stats.getStageHistogram("unknown").length);
+
+        stats.reset();
+        assertEquals(0, stats.getLoginFailedCount());
+        assertEquals(0, stats.getStageCounts()[AuthenticatorStats.MAPPING]);
+    }
+
+    public void testCacheSummariesIncludeProfiles() {
+        ShibAuthConfiguration profile = new ShibAuthConfiguration();
+        Map profiles = new HashMap();
+        profiles.put("https://idp.b.example/", profile);
+        profiles.put("https://idp.a.example/", profile);
+        ShibAuthConfiguration config = new ShibAuthConfiguration();
+        config.setProfiles(profiles);
+
+        AuthenticatorStats stats = new AuthenticatorStats();
+        stats.setConfiguration(config);
+        stats.setLastLoginThrottle(new LastLoginThrottle());
+
+        List summaries = Arrays.asList(stats.getCacheSummaries());
+        assertEquals(summaries.toString(), 8, summaries.size());
+        assertTrue(((String) summaries.get(0)).startsWith("username: "));
+        assertTrue(((String) summaries.get(3)).startsWith(
+                "profile [https://idp.a.example/, https://idp.b.example/] username: "));
+        assertTrue(((String) summaries.get(5)).startsWith(
+                "profile [https://idp.a.example/, https://idp.b.example/] credential: "));
+        assertEquals("lastLogin: recorded=0, suppressed=0, tracked users=0", summaries.get(7));
+    }
+}
@@ -0,0 +1,89 @@
+package shibauth.confluence.authentication.shibboleth;
+
+import junit.framework.Assert;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Upper bounds on the backend operations of one scenario, checked against the {@link BackendCalls} record of the
+ * scenario. Bounds that are not set are not checked.
+ * <pre>
+ * new BackendCallBudget("returning user with unchanged attributes").reads(1).writes(0)
+ *         .assertWithin(BackendCallBudget.measure(scenario));
+ * </pre>
+ */
+public class BackendCallBudget {
+
+    private final String scenario;
+
+    private int maxReads = -1;
+
+    private int maxWrites = -1;
+
+    private int maxTransactions = -1;
+
+    /**
+     * Map<"service.method", Integer>
+     */
+    private final Map maxCalls = new TreeMap();
+
+    public BackendCallBudget(String scenario) {
+        this.scenario = scenario;
+    }
+
+    /**
+     * Run the scenario in its own record, so the logins it makes are all counted in it.
+     */
+    public static BackendCalls measure(Runnable scenario) {
+        BackendCalls calls = BackendCalls.begin();
+        Assert.assertNotNull("a backend call record is already active on this thread", calls);
+        try {
+            scenario.run();
+        } finally {
+            BackendCalls.end(calls);
+        }
+        return calls;
+    }
+
+    public BackendCallBudget reads(int max) {
+        maxReads = max;
+        return this;
+    }
+
+    public BackendCallBudget writes(int max) {
+        maxWrites = max;
+        return this;
+    }
+
+    public BackendCallBudget transactions(int max) {
+        maxTransactions = max;
+        return this;
+    }
+
+    /**
+     * @param operation "service.method", e.g. "crowdService.getUser"
+     */
+    public BackendCallBudget calls(String operation, int max) {
+        maxCalls.put(operation, Integer.valueOf(max));
+        return this;
+    }
+
+    public void assertWithin(BackendCalls calls) {
+        check("directory reads", calls.getReads(), maxReads, calls);
+        check("directory writes", calls.getWrites(), maxWrites, calls);
+        check("transactions", calls.getTransactions(), maxTransactions, calls);
+        for (Iterator it = maxCalls.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) it.next();
+            String operation = (String) entry.getKey();
+            check(operation, calls.getCount(operation), ((Integer) entry.getValue()).intValue(), calls);
+        }
+    }
+
+    private void check(String what, int count, int max, BackendCalls calls) {
+        if (max >= 0 && count > max) {
+            Assert.fail(scenario + ": " + count + " " + what + ", budget is " + max + " (" + calls + ")");
+        }
+    }
+}
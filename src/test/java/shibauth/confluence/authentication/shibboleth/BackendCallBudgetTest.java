@@ -0,0 +1,106 @@
+package shibauth.confluence.authentication.shibboleth;
+
+import junit.framework.TestCase;
+
+public class BackendCallBudgetTest extends TestCase {
+
+    private LoadTestHarness harness;
+
+    private ShibAuthConfiguration previousConfig;
+
+    protected void setUp() throws Exception {
+        previousConfig = RemoteUserAuthenticator.getConfiguration();
+        harness = LoadTestHarness.small(0);
+    }
+
+    protected void tearDown() {
+        RemoteUserAuthenticator.setConfiguration(previousConfig);
+    }
+
+    private BackendCalls login(final String username, final String entitlements) {
+        return BackendCallBudget.measure(new Runnable() {
+            public void run() {
+                assertTrue(harness.authenticate(username, entitlements, true));
+            }
+        });
+    }
+
+    public void testNewUser() {
+        new BackendCallBudget("new user").reads(3).writes(1).transactions(1)
+                .calls("crowdService.getUser", 1)
+                .assertWithin(login("user1", LoadTestHarness.entitlements(1, 5, 8)));
+        assertEquals(1, harness.getBackend().getUserCount());
+    }
+
+    public void testReturningUserWithUnchangedAttributes() {
+        String entitlements = LoadTestHarness.entitlements(1, 5, 8);
+        login("user1", entitlements);
+        login("user1", entitlements);
+        int roles = harness.getBackend().getGroupNames("user1").size();
+
+        // each role is looked up and its membership checked, but nothing is written
+        new BackendCallBudget("returning user with unchanged attributes").reads(3 + 2 * roles).writes(0)
+                .transactions(0).calls("crowdService.getUser", 2).calls("authenticator.getUser", 1)
+                .assertWithin(login("user1", entitlements));
+    }
+
+    public void testReturningUserWithNewRoles() {
+        login("user1", LoadTestHarness.entitlements(1, 5, 8));
+        login("user1", LoadTestHarness.entitlements(1, 5, 8));
+
+        BackendCalls calls = login("user1", LoadTestHarness.entitlements(2, 5, 8));
+        new BackendCallBudget("returning user with new roles").writes(2 * calls.getCount("crowdService.addUserToGroup"))
+                .transactions(calls.getCount("crowdService.addUserToGroup")).calls("crowdService.getUser", 2)
+                .assertWithin(calls);
+    }
+
+    public void testStatsAggregateLogins() {
+        AuthenticatorStats stats = AuthenticatorStats.getInstance();
+        long records = stats.getBackendCallRecords();
+        assertTrue(harness.authenticate("user1", LoadTestHarness.entitlements(1, 5, 8), true));
+        assertEquals(records + 1, stats.getBackendCallRecords());
+        assertTrue(stats.getMaxBackendReadsPerCall() >= 3);
+    }
+
+    public void testWrapperReusedWithinRecord() {
+        Runnable target = new Runnable() {
+            public void run() {
+            }
+        };
+        assertSame("not wrapped outside of a record", target, BackendCalls.wrap(Runnable.class, "task", target));
+
+        BackendCalls calls = BackendCalls.begin();
+        Runnable wrapper = (Runnable) BackendCalls.wrap(Runnable.class, "task", target);
+        assertNotSame(target, wrapper);
+        assertSame(wrapper, BackendCalls.wrap(Runnable.class, "task", target));
+        wrapper.run();
+        wrapper.run();
+        BackendCalls.end(calls);
+        assertEquals(2, calls.getCount("task.run"));
+
+        calls = BackendCalls.begin();
+        assertNotSame("each record has its own wrappers", wrapper, BackendCalls.wrap(Runnable.class, "task", target));
+        BackendCalls.end(calls);
+    }
+
+    public void testBudgetExceeded() {
+        BackendCalls calls = BackendCalls.begin();
+        BackendCalls.count("crowdService.getUser");
+        BackendCalls.count("crowdService.updateUser");
+        BackendCalls.count(BackendCalls.TRANSACTION);
+        assertNull(BackendCalls.begin());
+        BackendCalls.end(calls);
+        assertNull(BackendCalls.current());
+        assertEquals(1, calls.getReads());
+        assertEquals(1, calls.getWrites());
+        assertEquals(1, calls.getTransactions());
+
+        try {
+            new BackendCallBudget("read only").writes(0).assertWithin(calls);
+        } catch (AssertionError e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("read only: 1 directory writes, budget is 0"));
+            return;
+        }
+        fail("budget was not enforced");
+    }
+}
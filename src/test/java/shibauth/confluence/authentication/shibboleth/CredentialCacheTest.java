@@ -0,0 +1,50 @@
+package shibauth.confluence.authentication.shibboleth;
+
+import junit.framework.TestCase;
+
+public class CredentialCacheTest extends TestCase {
+
+    public void testTtl() {
+        CredentialCache cache = new CredentialCache(1000, 10);
+        String key = cache.getKey("bot", "secret");
+
+        assertFalse(cache.isVerified(key, 0));
+        cache.verified(key, 0);
+        assertTrue(cache.isVerified(key, 999));
+        assertFalse(cache.isVerified(key, 1000));
+        assertFalse(cache.isVerified(key, 1));
+
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(1, cache.getExpiredCount());
+    }
+
+    public void testKey() {
+        CredentialCache cache = new CredentialCache(1000, 10);
+        String key = cache.getKey("bot", "secret");
+
+        assertEquals(key, cache.getKey("bot", "secret"));
+        assertFalse(key.equals(cache.getKey("bot", "secret2")));
+        assertFalse(key.equals(cache.getKey("bo", "tsecret")));
+        assertEquals(-1, key.indexOf("secret"));
+    }
+
+    public void testInvalidate() {
+        CredentialCache cache = new CredentialCache(1000, 10);
+        String key = cache.getKey("bot", "secret");
+
+        cache.verified(key, 0);
+        cache.invalidate(key);
+        assertFalse(cache.isVerified(key, 1));
+        assertEquals(1, cache.getInvalidatedCount());
+    }
+
+    public void testDisabled() {
+        CredentialCache cache = new CredentialCache(0, 10);
+        String key = cache.getKey("bot", "secret");
+
+        assertFalse(cache.isEnabled());
+        cache.verified(key, 0);
+        assertFalse(cache.isVerified(key, 1));
+    }
+}
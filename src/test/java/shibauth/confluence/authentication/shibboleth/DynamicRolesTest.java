@@ -0,0 +1,102 @@
+package shibauth.confluence.authentication.shibboleth;
+
+import junit.framework.TestCase;
+
+import java.util.*;
+
+public class DynamicRolesTest extends TestCase {
+
+    private final static String[] HEADERS = {"entitlement"};
+
+    private ShibAuthConfiguration config;
+
+    private ShibAuthConfiguration previousConfig;
+
+    protected void setUp() {
+        previousConfig = RemoteUserAuthenticator.getConfiguration();
+        GroupMapper staff = new GroupMapper("staff", "urn:x:(staff)", "$1", false);
+        // refers to a regex group that does not take part in the match of urn:x:bad
+        GroupMapper broken = new GroupMapper("broken", "urn:x:(bad)|urn:x:(worse)", "$2", false);
+
+        Map mappings = new HashMap();
+        mappings.put(HEADERS[0], Arrays.asList(new GroupMapper[]{staff, broken}));
+        config = new ShibAuthConfiguration();
+        config.setGroupMappings(mappings);
+        config.setRolesCache(new BoundedCache(10));
+    }
+
+    protected void tearDown() {
+        RemoteUserAuthenticator.setConfiguration(previousConfig);
+    }
+
+    public void testFailingMapperMakesDecisionIncomplete() {
+        RoleDecision decision = DynamicRoles.getRoles(HEADERS, new String[]{"urn:x:staff;urn:x:bad"}, config);
+        assertTrue(decision.isIncomplete());
+        assertEquals(Collections.singleton("staff"), decision.getAddedRoles());
+        assertEquals("incomplete decisions are not cached", 0, config.getRolesCache().size());
+
+        decision = DynamicRoles.getRoles(HEADERS, new String[]{"urn:x:staff"}, config);
+        assertFalse(decision.isIncomplete());
+        assertEquals(1, config.getRolesCache().size());
+    }
+
+    public void testCachedForEqualValues() {
+        String[] headers = {"affiliation", "entitlement"};
+        Map mappings = new HashMap();
+        mappings.put("affiliation", Collections.singletonList(new GroupMapper("affiliation", "(staff)", "aff-$1", false)));
+        mappings.put("entitlement", Collections.singletonList(new GroupMapper("entitlement", "(staff)", "ent-$1", false)));
+        config.setGroupMappings(mappings);
+        BoundedCache cache = config.getRolesCache();
+
+        RoleDecision decision = DynamicRoles.getRoles(headers, new String[]{"staff", "x"}, config);
+        assertEquals(Collections.singleton("aff-staff"), decision.getAddedRoles());
+        assertSame(decision, DynamicRoles.getRoles(headers, new String[]{"staff", "x"}, config));
+        assertEquals(1, cache.getHitCount());
+
+        // the same values under other headers are other roles
+        RoleDecision moved = DynamicRoles.getRoles(headers, new String[]{"x", "staff"}, config);
+        assertNotSame(decision, moved);
+        assertEquals(Collections.singleton("ent-staff"), moved.getAddedRoles());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.size());
+    }
+
+    public void testDigestSeparatesHeaders() {
+        String[] headers = {"a", "b"};
+        assertEquals(DynamicRoles.digest(headers, new String[]{"staff", "x"}),
+                DynamicRoles.digest(headers, new String[]{"staff", "x"}));
+        assertFalse(DynamicRoles.digest(headers, new String[]{"staff", "x"}).equals(
+                DynamicRoles.digest(headers, new String[]{"x", "staff"})));
+        assertFalse(DynamicRoles.digest(headers, new String[]{"staff", "x"}).equals(
+                DynamicRoles.digest(headers, new String[]{"staffx", ""})));
+    }
+
+    public void testNoRetractOrPurgeWithFailingMapper() throws Exception {
+        LoadTestHarness harness = LoadTestHarness.small(0);
+
+        Properties props = LoadTestHarness.syntheticConfiguration(0);
+        props.setProperty(ShibAuthConstants.AUTH_CHAIN, "header");
+        props.setProperty(ShibAuthConstants.RELOAD_CONFIG, "false");
+        props.setProperty(ShibAuthConstants.PURGE_ROLES, "staff, lab");
+        props.setProperty(ShibAuthConstants.ROLES_HEADER_PREFIX + LoadTestHarness.ENTITLEMENT, "staff, lab, broken");
+        props.setProperty(ShibAuthConstants.ROLES_ATTRIB_PREFIX + "staff" + ShibAuthConstants.PART_MATCH, "urn:x:(staff)");
+        props.setProperty(ShibAuthConstants.ROLES_ATTRIB_PREFIX + "staff" + ShibAuthConstants.PART_TRANSFORM, "$1");
+        props.setProperty(ShibAuthConstants.ROLES_ATTRIB_PREFIX + "lab" + ShibAuthConstants.PART_MATCH, "urn:x:(lab)");
+        props.setProperty(ShibAuthConstants.ROLES_ATTRIB_PREFIX + "lab" + ShibAuthConstants.PART_TRANSFORM, "$1");
+        props.setProperty(ShibAuthConstants.ROLES_ATTRIB_PREFIX + "broken" + ShibAuthConstants.PART_MATCH,
+                "urn:x:(bad)|urn:x:(worse)");
+        props.setProperty(ShibAuthConstants.ROLES_ATTRIB_PREFIX + "broken" + ShibAuthConstants.PART_TRANSFORM, "$2");
+        RemoteUserAuthenticator.setConfiguration(LoadTestHarness.load(props));
+
+        harness.getBackend().addUser("user1", true);
+        List all = Arrays.asList(new String[]{"confluence-users", "lab", "staff"});
+        assertTrue(harness.authenticate("user1", "urn:x:staff;urn:x:lab", true));
+        assertEquals(all, harness.getBackend().getGroupNames("user1"));
+
+        assertTrue(harness.authenticate("user1", "urn:x:bad", true));
+        assertEquals("memberships are kept when a mapper failed", all, harness.getBackend().getGroupNames("user1"));
+
+        assertTrue(harness.authenticate("user1", "urn:x:other", true));
+        assertEquals(Collections.singletonList("confluence-users"), harness.getBackend().getGroupNames("user1"));
+    }
+}
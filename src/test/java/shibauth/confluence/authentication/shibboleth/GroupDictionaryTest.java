@@ -0,0 +1,55 @@
+package shibauth.confluence.authentication.shibboleth;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+public class GroupDictionaryTest extends TestCase {
+
+    public void testCaseFolding() {
+        GroupDictionary dictionary = new GroupDictionary();
+
+        int id = dictionary.getId("Confluence-Users");
+        assertEquals(id, dictionary.getId("confluence-users"));
+        assertEquals(id, dictionary.getId("CONFLUENCE-USERS"));
+        assertEquals("Confluence-Users", dictionary.getName(id));
+        assertEquals(1, dictionary.size());
+    }
+
+    public void testFindDoesNotAssign() {
+        GroupDictionary dictionary = new GroupDictionary();
+
+        assertEquals(-1, dictionary.find("staff"));
+        assertEquals(0, dictionary.size());
+
+        int id = dictionary.getId("Staff");
+        assertEquals(id, dictionary.find("STAFF"));
+        assertEquals(1, dictionary.size());
+    }
+
+    public void testFoldLikeEqualsIgnoreCase() {
+        String[] names = {"staff", "STAFF", "\u0130stanbul", "istanbul", "\u212a", "k", "stra\u00dfe", "STRASSE", "\u03c3", "\u03c2"};
+
+        for (int i = 0; i < names.length; i++) {
+            for (int j = 0; j < names.length; j++) {
+                assertEquals(names[i] + " " + names[j], names[i].equalsIgnoreCase(names[j]),
+                        GroupDictionary.fold(names[i]).equals(GroupDictionary.fold(names[j])));
+            }
+        }
+    }
+
+    public void testEncodeDecode() {
+        GroupDictionary dictionary = new GroupDictionary();
+
+        for (int i = 0; i < 1000; i++) {
+            dictionary.getId("group-" + i);
+        }
+
+        BitSet current = dictionary.encode(Arrays.asList(new String[]{"group-1", "group-500", " ", "Group-999"}));
+        BitSet keep = dictionary.encode(Arrays.asList(new String[]{"GROUP-500"}));
+        current.andNot(keep);
+
+        assertEquals(Arrays.asList(new String[]{"group-1", "group-999"}), dictionary.decode(current));
+    }
+}
@@ -0,0 +1,63 @@
+package shibauth.confluence.authentication.shibboleth;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+public class GroupMapperTest extends TestCase {
+
+    private int mappings;
+
+    private GroupMapper mapper;
+
+    protected void setUp() {
+        mapper = new GroupMapper("entitlement", "urn\\:mace\\:(\\w+)\\:(.*)", "$1, $2", false) {
+            public String process(String initValue) {
+                mappings++;
+                return super.process(initValue);
+            }
+        };
+        mapper.setMemo(new BoundedCache(10));
+    }
+
+    public void testGroups() {
+        assertEquals(Arrays.asList("dir", "common-lib-terms"),
+                Arrays.asList(mapper.processToGroups("URN:mace:dir:common-lib-terms")));
+        assertEquals(0, mapper.processToGroups("staff").length);
+    }
+
+    public void testMemoized() {
+        String[] groups = mapper.processToGroups("urn:mace:dir:common-lib-terms");
+        assertSame(groups, mapper.processToGroups("urn:mace:dir:common-lib-terms"));
+        mapper.processToGroups("staff");
+        mapper.processToGroups("staff");
+        assertEquals(2, mappings);
+    }
+
+    public void testLiteralPrefix() {
+        assertEquals("urn:mace:", mapper.getLiteralPrefix());
+        assertEquals("alum", new GroupMapper("purge", "alum.*", null, false).getLiteralPrefix());
+        assertEquals("alu", new GroupMapper("purge", "^alum?", null, false).getLiteralPrefix());
+        assertEquals("cs101", new GroupMapper("purge", "cs101", null, false).getLiteralPrefix());
+        assertNull(new GroupMapper("purge", "alum|cs101", null, false).getLiteralPrefix());
+        assertNull(new GroupMapper("purge", "(?i)alum", null, false).getLiteralPrefix());
+        assertNull(new GroupMapper("purge", null, "x", false).getLiteralPrefix());
+
+        GroupMapper purge = new GroupMapper("purge", "alum.*", null, false);
+        assertEquals("ALUMNI", purge.process("ALUMNI"));
+        assertEquals("ALU", new GroupMapper("purge", "^alum?", null, false).process("ALU"));
+        assertNull(purge.process("staff"));
+        assertNull(purge.process("alu"));
+    }
+
+    public void testChangeClearsMemo() {
+        assertEquals(2, mapper.processToGroups("urn:mace:dir:common-lib-terms").length);
+
+        mapper.setCaseSensitive(true);
+        assertEquals(0, mapper.processToGroups("URN:mace:dir:common-lib-terms").length);
+
+        mapper.setTransform("$2");
+        assertEquals(Arrays.asList("common-lib-terms"),
+                Arrays.asList(mapper.processToGroups("urn:mace:dir:common-lib-terms")));
+    }
+}
@@ -0,0 +1,100 @@
+package shibauth.confluence.authentication.shibboleth;
+
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.util.*;
+
+public class HeaderCaptureTest extends TestCase {
+
+    private File file;
+
+    protected void setUp() throws IOException {
+        file = File.createTempFile("headers", ".txt");
+        file.delete();
+    }
+
+    protected void tearDown() {
+        for (int i = 0; i <= 2; i++) {
+            new File(file.getPath() + (i == 0 ? "" : "." + i)).delete();
+        }
+    }
+
+    public void testCaptureAndParse() throws IOException {
+        HeaderCapture capture = new HeaderCapture(file, 1, "secret".getBytes("UTF-8"), 1000000, 2);
+        capture.capture("REMOTE_USER", "jdoe@example.edu", new String[]{"SHIB-EP-ENTITLEMENT"},
+                new String[]{"urn:a;urn:b\twith tab\\"});
+        capture.close();
+
+        String content = read(file);
+        assertTrue(content.indexOf("jdoe") < 0);
+
+        List headers = HeaderCapture.parse(content.trim());
+        assertEquals(2, headers.size());
+        assertEquals("REMOTE_USER", ((String[]) headers.get(0))[0]);
+        assertEquals(new HeaderCapture(null, 0, "secret".getBytes("UTF-8"), 0, 0).anonymize("jdoe@example.edu"),
+                ((String[]) headers.get(0))[1]);
+        assertEquals("urn:a;urn:b\twith tab\\", ((String[]) headers.get(1))[1]);
+    }
+
+    public void testRotate() throws IOException {
+        HeaderCapture capture = new HeaderCapture(file, 1, null, 100, 2);
+        for (int i = 0; i < 10; i++) {
+            capture.capture("REMOTE_USER", "user" + i, new String[]{"h"}, new String[]{"0123456789012345678901234567890"});
+        }
+        capture.close();
+
+        assertEquals(10, capture.getCapturedCount());
+        assertTrue(file.length() <= 100);
+        assertTrue(new File(file.getPath() + ".2").exists());
+        assertFalse(new File(file.getPath() + ".3").exists());
+    }
+
+    public void testNothingCapturedAfterClose() throws IOException {
+        HeaderCapture capture = new HeaderCapture(file, 1, null, 1000000, 2);
+        capture.capture("REMOTE_USER", "user1", new String[]{"h"}, new String[]{"v"});
+        capture.close();
+        long length = file.length();
+
+        capture.capture("REMOTE_USER", "user2", new String[]{"h"}, new String[]{"v"});
+        assertEquals(1, capture.getCapturedCount());
+        assertEquals(length, file.length());
+    }
+
+    public void testReplay() throws IOException {
+        Properties a = LoadTestHarness.syntheticConfiguration(8);
+        HeaderCapture capture = new HeaderCapture(file, 1, null, 1000000, 0);
+        for (int i = 0; i < 5; i++) {
+            capture.capture(LoadTestHarness.REMOTE_USER, "user" + i, new String[]{LoadTestHarness.ENTITLEMENT},
+                    new String[]{LoadTestHarness.entitlements(i, 20, 8)});
+        }
+        capture.close();
+
+        // configB drops the mapper of department 0
+        Properties b = (Properties) a.clone();
+        b.setProperty(ShibAuthConstants.ROLES_HEADER_PREFIX + LoadTestHarness.ENTITLEMENT,
+                a.getProperty(ShibAuthConstants.ROLES_HEADER_PREFIX + LoadTestHarness.ENTITLEMENT).replaceFirst("m0, ", ""));
+
+        HeaderReplay replay = new HeaderReplay(Collections.singletonList(file.getPath()), 1);
+        assertEquals(5, replay.getRecordCount());
+
+        HeaderReplay.Result resultA = replay.replay("a", a);
+        HeaderReplay.Result resultB = replay.replay("b", b);
+        assertEquals(0, resultA.getFailures());
+        assertEquals(resultA.getRoles(), replay.replay("a", a).getRoles());
+
+        String comparison = HeaderReplay.compare("a", resultA.getRoles(), "b", resultB.getRoles());
+        assertTrue(comparison, comparison.indexOf("course-dept0-") > 0);
+    }
+
+    private static String read(File file) throws IOException {
+        Reader in = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        StringBuffer sb = new StringBuffer();
+        char[] buf = new char[1024];
+        for (int n = in.read(buf); n > 0; n = in.read(buf)) {
+            sb.append(buf, 0, n);
+        }
+        in.close();
+        return sb.toString();
+    }
+}
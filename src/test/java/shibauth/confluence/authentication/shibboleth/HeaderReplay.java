@@ -0,0 +1,237 @@
+package shibauth.confluence.authentication.shibboleth;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.*;
+import java.util.*;
+
+/**
+ * Replays headers captured with capture.file through the authenticator against an {@link InMemoryBackend}, to compare
+ * timing and derived roles between two configurations or between two builds.
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test
+ *     -Dexec.mainClass=shibauth.confluence.authentication.shibboleth.HeaderReplay
+ *     -Dcorpus=/var/log/confluence/headers.txt,/var/log/confluence/headers.txt.1
+ *     -DconfigA=remoteUserAuthenticator.properties -DconfigB=remoteUserAuthenticator-new.properties
+ * </pre>
+ * Options are system properties:
+ * <ul>
+ * <li>corpus - capture files, separated by commas</li>
+ * <li>configA - properties file to replay against</li>
+ * <li>configB - optional second properties file, the derived roles of both are compared record by record</li>
+ * <li>iterations - timed passes over the corpus per configuration, default 3</li>
+ * <li>output - optional file to write the roles derived with configA to, one line per record</li>
+ * <li>baseline - optional output file of another build to compare the roles derived with configA to</li>
+ * </ul>
+ * auth.chain is always set to header, so each record goes through the remote user path of login().
+ */
+public class HeaderReplay {
+
+    private final static int MAX_DIFFERENCES_SHOWN = 20;
+
+    /**
+     * List of Map<header name, value>, one per captured login
+     */
+    private final List records = new ArrayList();
+
+    private final int iterations;
+
+    public HeaderReplay(List corpus, int iterations) throws IOException {
+        this.iterations = iterations;
+        for (Iterator it = corpus.iterator(); it.hasNext(); ) {
+            read(new File((String) it.next()));
+        }
+    }
+
+    private void read(File file) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                if (line.length() == 0) {
+                    continue;
+                }
+
+                Map headers = new LinkedHashMap();
+                for (Iterator it = HeaderCapture.parse(line).iterator(); it.hasNext(); ) {
+                    String[] header = (String[]) it.next();
+                    headers.put(header[0], header[1]);
+                }
+                records.add(headers);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    public int getRecordCount() {
+        return records.size();
+    }
+
+    public static Properties loadProperties(String file) throws IOException {
+        Properties props = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            props.load(in);
+        } finally {
+            in.close();
+        }
+        return props;
+    }
+
+    /**
+     * Replay the corpus against the configuration.
+     *
+     * @return the result, with the derived roles of each record
+     */
+    public Result replay(String name, Properties props) throws IOException {
+        props = (Properties) props.clone();
+        props.setProperty(ShibAuthConstants.AUTH_CHAIN, "header");
+        props.setProperty(ShibAuthConstants.RELOAD_CONFIG, "false");
+        props.remove(ShibAuthConstants.CAPTURE_FILE);
+
+        ShibAuthConfiguration config = LoadTestHarness.load(props);
+        RemoteUserAuthenticator.setConfiguration(config);
+
+        Result result = new Result(name);
+
+        // Roles, untimed, with the mappers only
+        for (int i = 0; i < records.size(); i++) {
+            HttpServletRequest request = StandInRequests.request((Map) records.get(i), "127.0.0.1");
+            ShibAuthConfiguration profile = config.getProfileHeaderName() == null ? config :
+                    config.getProfile(request.getHeader(config.getProfileHeaderName()));
+            String[] headerNames = profile.getGroupMappingHeaders();
+            RoleDecision decision = DynamicRoles.deriveRoles(headerNames,
+                    DynamicRoles.getHeaderValues(request, headerNames), profile);
+            result.roles.add(new TreeSet(decision.getAddedRoles()) + "\t" + new TreeSet(decision.getRetractedRoles()));
+        }
+
+        // Full login, timed. The first pass creates the users and groups, later passes update them.
+        InMemoryAuthenticator authenticator = new InMemoryAuthenticator(new InMemoryBackend(0, 0));
+        result.latencies = new long[records.size() * iterations];
+        int n = 0;
+        for (int pass = 0; pass < iterations; pass++) {
+            for (int i = 0; i < records.size(); i++) {
+                HttpServletRequest request = StandInRequests.request((Map) records.get(i), "127.0.0.1");
+                long start = System.nanoTime();
+                try {
+                    if (!authenticator.login(request, StandInRequests.response(), null, null, false)) {
+                        result.failures++;
+                    }
+                } catch (Exception e) {
+                    result.failures++;
+                }
+                result.latencies[n++] = System.nanoTime() - start;
+            }
+        }
+        Arrays.sort(result.latencies);
+
+        return result;
+    }
+
+    /**
+     * @return description of the records whose roles differ, at most MAX_DIFFERENCES_SHOWN of them
+     */
+    public static String compare(String nameA, List rolesA, String nameB, List rolesB) {
+        StringBuffer sb = new StringBuffer();
+        int differences = 0;
+        for (int i = 0; i < Math.max(rolesA.size(), rolesB.size()); i++) {
+            Object a = i < rolesA.size() ? rolesA.get(i) : null;
+            Object b = i < rolesB.size() ? rolesB.get(i) : null;
+            if (a == null ? b != null : !a.equals(b)) {
+                if (differences < MAX_DIFFERENCES_SHOWN) {
+                    sb.append("  record ").append(i).append(":\n    ").append(nameA).append(": ").append(a)
+                            .append("\n    ").append(nameB).append(": ").append(b).append('\n');
+                }
+                differences++;
+            }
+        }
+        return "roles differ between " + nameA + " and " + nameB + " for " + differences + " of " +
+                Math.max(rolesA.size(), rolesB.size()) + " records\n" + sb;
+    }
+
+    public static class Result {
+
+        private final String name;
+
+        private final List roles = new ArrayList();
+
+        private long[] latencies;
+
+        private int failures;
+
+        Result(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @return added and retracted roles of each record, tab separated
+         */
+        public List getRoles() {
+            return roles;
+        }
+
+        public int getFailures() {
+            return failures;
+        }
+
+        public String toString() {
+            return name + ": logins=" + latencies.length + ", failed=" + failures + ", p50=" + percentile(50) +
+                    "us, p99=" + percentile(99) + "us, p999=" + percentile(99.9) + "us, max=" + percentile(100) + "us";
+        }
+
+        private long percentile(double percentile) {
+            if (latencies.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(latencies.length * percentile / 100) - 1;
+            return latencies[Math.max(0, Math.min(latencies.length - 1, index))] / 1000;
+        }
+    }
+
+    private static List readLines(String file) throws IOException {
+        List lines = new ArrayList();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                lines.add(line);
+            }
+        } finally {
+            in.close();
+        }
+        return lines;
+    }
+
+    public static void main(String[] args) throws Exception {
+        HeaderReplay replay = new HeaderReplay(
+                StringUtil.toListOfNonEmptyStringsDelimitedByCommaOrSemicolon(System.getProperty("corpus")),
+                Integer.parseInt(System.getProperty("iterations", "3")));
+        System.out.println("records: " + replay.getRecordCount());
+
+        String configA = System.getProperty("configA");
+        Result a = replay.replay("configA", loadProperties(configA));
+        System.out.println(a);
+
+        String configB = System.getProperty("configB");
+        if (configB != null) {
+            Result b = replay.replay("configB", loadProperties(configB));
+            System.out.println(b);
+            System.out.println(compare("configA", a.getRoles(), "configB", b.getRoles()));
+        }
+
+        String baseline = System.getProperty("baseline");
+        if (baseline != null) {
+            System.out.println(compare("baseline", readLines(baseline), "configA", a.getRoles()));
+        }
+
+        String output = System.getProperty("output");
+        if (output != null) {
+            Writer out = new OutputStreamWriter(new FileOutputStream(output), "UTF-8");
+            try {
+                for (Iterator it = a.getRoles().iterator(); it.hasNext(); ) {
+                    out.write(it.next() + "\n");
+                }
+            } finally {
+                out.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package shibauth.confluence.authentication.shibboleth;
+
+import com.atlassian.confluence.security.login.LoginManager;
+import com.atlassian.confluence.user.UserAccessor;
+import com.atlassian.crowd.embedded.api.CrowdService;
+import com.atlassian.event.api.EventPublisher;
+import com.atlassian.user.GroupManager;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.security.Principal;
+
+/**
+ * RemoteUserAuthenticator wired to an {@link InMemoryBackend} instead of the Confluence container. Only the remote
+ * user header can authenticate: the session, Remember Me cookie and Basic Auth sources need Seraph's configuration,
+ * so use auth.chain=header with it.
+ */
+public class InMemoryAuthenticator extends RemoteUserAuthenticator {
+
+    private final InMemoryBackend backend;
+
+    public InMemoryAuthenticator(InMemoryBackend backend) {
+        this.backend = backend;
+    }
+
+    public CrowdService getCrowdService() {
+        return backend.getCrowdService();
+    }
+
+    public UserAccessor getUserAccessor() {
+        return backend.getUserAccessor();
+    }
+
+    public GroupManager getGroupManager() {
+        return backend.getGroupManager();
+    }
+
+    public LoginManager getLoginManager() {
+        return backend.getLoginManager();
+    }
+
+    public PlatformTransactionManager getTransactionManager() {
+        return backend.getTransactionManager();
+    }
+
+    public EventPublisher getEventPublisher() {
+        return backend.getEventPublisher();
+    }
+
+    public Principal getUser(String username) {
+        return backend.getUserAccessor().getUserByName(username);
+    }
+
+    public Principal getUserFromCookie(HttpServletRequest request, HttpServletResponse response) {
+        return null;
+    }
+
+    public Principal getUserFromBasicAuthentication(HttpServletRequest request, HttpServletResponse response) {
+        return null;
+    }
+
+    public boolean putPrincipalInSessionContext(HttpServletRequest request, Principal principal) {
+        request.getSession().setAttribute("seraph_defaultauthenticator_user", principal);
+        return true;
+    }
+}
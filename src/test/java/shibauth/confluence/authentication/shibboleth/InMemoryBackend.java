@@ -0,0 +1,401 @@
+package shibauth.confluence.authentication.shibboleth;
+
+import com.atlassian.confluence.security.login.LoginManager;
+import com.atlassian.confluence.user.ConfluenceUser;
+import com.atlassian.confluence.user.UserAccessor;
+import com.atlassian.crowd.embedded.api.CrowdService;
+import com.atlassian.crowd.embedded.api.Group;
+import com.atlassian.crowd.embedded.api.User;
+import com.atlassian.event.api.EventPublisher;
+import com.atlassian.user.GroupManager;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Thread-safe, in-memory stand-ins for the Confluence services the authenticator uses (CrowdService, UserAccessor,
+ * GroupManager, LoginManager, PlatformTransactionManager and EventPublisher), built as dynamic proxies so that only
+ * the methods the authenticator calls need an implementation. Every call is counted and calls to the user directory
+ * can be slowed down by a fixed latency to resemble a remote directory.
+ */
+public class InMemoryBackend {
+
+    private final static Set WRITES = new HashSet(Arrays.asList(new String[]{"addUserToGroup", "removeUserFromGroup",
+            "updateUser", "createUser", "createGroup"}));
+
+    /**
+     * Map<username, UserRecord>
+     */
+    private final ConcurrentMap users = new ConcurrentHashMap();
+
+    /**
+     * Map<group name, Group>
+     */
+    private final ConcurrentMap groups = new ConcurrentHashMap();
+
+    /**
+     * Map<"service.method", LongAdder>
+     */
+    private final ConcurrentMap calls = new ConcurrentHashMap();
+
+    private final long readLatencyNanos;
+
+    private final long writeLatencyNanos;
+
+    private final CrowdService crowdService;
+
+    private final UserAccessor userAccessor;
+
+    private final GroupManager groupManager;
+
+    private final LoginManager loginManager;
+
+    private final PlatformTransactionManager transactionManager;
+
+    private final EventPublisher eventPublisher;
+
+    /**
+     * @param readLatencyMicros  time added to each read of the user directory
+     * @param writeLatencyMicros time added to each write to the user directory
+     */
+    public InMemoryBackend(long readLatencyMicros, long writeLatencyMicros) {
+        this.readLatencyNanos = readLatencyMicros * 1000;
+        this.writeLatencyNanos = writeLatencyMicros * 1000;
+
+        crowdService = (CrowdService) proxy(CrowdService.class, "crowdService", true);
+        userAccessor = (UserAccessor) proxy(UserAccessor.class, "userAccessor", true);
+        groupManager = (GroupManager) proxy(GroupManager.class, "groupManager", true);
+        loginManager = (LoginManager) proxy(LoginManager.class, "loginManager", false);
+        transactionManager = (PlatformTransactionManager) proxy(PlatformTransactionManager.class, "transactionManager", false);
+        eventPublisher = (EventPublisher) proxy(EventPublisher.class, "eventPublisher", false);
+    }
+
+    public CrowdService getCrowdService() {
+        return crowdService;
+    }
+
+    public UserAccessor getUserAccessor() {
+        return userAccessor;
+    }
+
+    public GroupManager getGroupManager() {
+        return groupManager;
+    }
+
+    public LoginManager getLoginManager() {
+        return loginManager;
+    }
+
+    public PlatformTransactionManager getTransactionManager() {
+        return transactionManager;
+    }
+
+    public EventPublisher getEventPublisher() {
+        return eventPublisher;
+    }
+
+    /**
+     * Add a user, e.g. to start from an existing user base instead of having the authenticator create everyone.
+     */
+    public void addUser(String name, boolean active) {
+        users.putIfAbsent(name, new UserRecord(name, active));
+    }
+
+    public void addGroup(String name) {
+        groups.putIfAbsent(name, newGroup(Group.class, name));
+    }
+
+    public int getUserCount() {
+        return users.size();
+    }
+
+    public int getGroupCount() {
+        return groups.size();
+    }
+
+    /**
+     * @return names of the groups the user is a member of, sorted
+     */
+    public List getGroupNames(String username) {
+        UserRecord user = (UserRecord) users.get(username);
+        return user == null ? Collections.EMPTY_LIST : new ArrayList(new TreeSet(user.groups));
+    }
+
+    /**
+     * @return Map<"service.method", count> of the calls made so far, sorted
+     */
+    public Map getCallCounts() {
+        Map counts = new TreeMap();
+        for (Iterator it = calls.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) it.next();
+            counts.put(entry.getKey(), Long.valueOf(((LongAdder) entry.getValue()).sum()));
+        }
+        return counts;
+    }
+
+    /**
+     * @return calls to the user directory (CrowdService, UserAccessor and GroupManager) made so far
+     */
+    public long getDirectoryCallCount() {
+        long total = 0;
+        for (Iterator it = calls.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) it.next();
+            String key = (String) entry.getKey();
+            if (key.startsWith("crowdService.") || key.startsWith("userAccessor.") || key.startsWith("groupManager.")) {
+                total += ((LongAdder) entry.getValue()).sum();
+            }
+        }
+        return total;
+    }
+
+    public void resetCallCounts() {
+        calls.clear();
+    }
+
+    private Object proxy(Class type, final String service, final boolean directory) {
+        return Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{type}, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getDeclaringClass() == Object.class) {
+                    return objectMethod(proxy, method, args, service);
+                }
+
+                count(service + "." + method.getName());
+                if (directory) {
+                    pause(WRITES.contains(method.getName()) ? writeLatencyNanos : readLatencyNanos);
+                }
+
+                return call(service, method, args == null ? new Object[0] : args);
+            }
+        });
+    }
+
+    private Object call(String service, Method method, Object[] args) {
+        String name = method.getName();
+
+        if ("crowdService".equals(service)) {
+            if ("getUser".equals(name)) {
+                UserRecord user = (UserRecord) users.get(args[0]);
+                return user == null ? null : user.crowdUser;
+            } else if ("getGroup".equals(name)) {
+                return groups.get(args[0]);
+            } else if ("isUserMemberOfGroup".equals(name)) {
+                UserRecord user = (UserRecord) users.get(nameOf(args[0]));
+                return Boolean.valueOf(user != null && args[1] != null && user.groups.contains(nameOf(args[1])));
+            } else if ("addUserToGroup".equals(name)) {
+                UserRecord user = (UserRecord) users.get(nameOf(args[0]));
+                if (user != null) {
+                    user.groups.add(nameOf(args[1]));
+                }
+                return defaultValue(method.getReturnType(), Boolean.TRUE);
+            } else if ("removeUserFromGroup".equals(name)) {
+                UserRecord user = (UserRecord) users.get(nameOf(args[0]));
+                if (user != null) {
+                    user.groups.remove(nameOf(args[1]));
+                }
+                return defaultValue(method.getReturnType(), Boolean.TRUE);
+            } else if ("updateUser".equals(name)) {
+                UserRecord user = (UserRecord) users.get(nameOf(args[0]));
+                if (user != null) {
+                    user.update(args[0]);
+                }
+                return user == null ? null : defaultValue(method.getReturnType(), user.crowdUser);
+            } else if ("search".equals(name)) {
+                return search(args[0]);
+            }
+        } else if ("userAccessor".equals(service)) {
+            if ("getUserByName".equals(name) || "getUser".equals(name)) {
+                UserRecord user = (UserRecord) users.get(args[0]);
+                return user == null ? null : user.confluenceUser;
+            } else if ("isDeactivated".equals(name)) {
+                UserRecord user = (UserRecord) users.get(nameOf(args[0]));
+                return Boolean.valueOf(user != null && !user.active);
+            } else if ("createUser".equals(name)) {
+                String username = nameOf(args[0]);
+                users.putIfAbsent(username, new UserRecord(username, true));
+                return ((UserRecord) users.get(username)).confluenceUser;
+            }
+        } else if ("groupManager".equals(service)) {
+            if ("createGroup".equals(name)) {
+                addGroup((String) args[0]);
+                return newGroup(method.getReturnType(), (String) args[0]);
+            } else if ("getGroup".equals(name)) {
+                return groups.containsKey(args[0]) ? newGroup(method.getReturnType(), (String) args[0]) : null;
+            }
+        } else if ("transactionManager".equals(service)) {
+            if ("getTransaction".equals(name)) {
+                return Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{TransactionStatus.class},
+                        new DefaultHandler("transactionStatus"));
+            }
+        }
+
+        return defaultValue(method.getReturnType(), null);
+    }
+
+    /**
+     * Answer the membership query of purgeUserRoles: the group names of a user, one page at a time.
+     */
+    private List search(Object query) {
+        String username = (String) invokeGetter(query, "getEntityNameToMatch");
+        Integer start = (Integer) invokeGetter(query, "getStartIndex");
+        Integer max = (Integer) invokeGetter(query, "getMaxResults");
+
+        List names = getGroupNames(username);
+        int from = Math.min(names.size(), start == null ? 0 : start.intValue());
+        int to = max == null || max.intValue() < 0 ? names.size() : Math.min(names.size(), from + max.intValue());
+        return new ArrayList(names.subList(from, to));
+    }
+
+    private void count(String call) {
+        LongAdder count = (LongAdder) calls.get(call);
+        if (count == null) {
+            LongAdder newCount = new LongAdder();
+            count = (LongAdder) calls.putIfAbsent(call, newCount);
+            if (count == null) {
+                count = newCount;
+            }
+        }
+        count.increment();
+    }
+
+    private static void pause(long nanos) {
+        if (nanos > 0) {
+            LockSupport.parkNanos(nanos);
+        }
+    }
+
+    private Object newGroup(Class type, final String name) {
+        return Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{type}, new DefaultHandler(name));
+    }
+
+    /**
+     * @return the name of a user or group, or the string itself
+     */
+    static String nameOf(Object o) {
+        if (o == null || o instanceof String) {
+            return (String) o;
+        }
+        return (String) invokeGetter(o, "getName");
+    }
+
+    static Object invokeGetter(Object o, String getter) {
+        try {
+            Method method = o.getClass().getMethod(getter, new Class[0]);
+            // implementations of public interfaces are not always public classes
+            method.setAccessible(true);
+            return method.invoke(o, new Object[0]);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    static Object defaultValue(Class type, Object value) {
+        if (type == Void.TYPE) {
+            return null;
+        } else if (value != null && (type.isInstance(value) || (type == Boolean.TYPE && value instanceof Boolean))) {
+            return value;
+        } else if (type == Boolean.TYPE) {
+            return Boolean.FALSE;
+        } else if (type == Integer.TYPE) {
+            return Integer.valueOf(0);
+        } else if (type == Long.TYPE) {
+            return Long.valueOf(0);
+        } else if (type.isPrimitive()) {
+            return null;
+        } else if (type == List.class || type == Collection.class || type == Iterable.class) {
+            return Collections.EMPTY_LIST;
+        }
+        return null;
+    }
+
+    static Object objectMethod(Object proxy, Method method, Object[] args, String name) {
+        if ("equals".equals(method.getName())) {
+            return Boolean.valueOf(proxy == args[0]);
+        } else if ("hashCode".equals(method.getName())) {
+            return Integer.valueOf(System.identityHashCode(proxy));
+        }
+        return name;
+    }
+
+    /**
+     * Answers getName() with its name and everything else with a default value.
+     */
+    static class DefaultHandler implements InvocationHandler {
+
+        private final String name;
+
+        DefaultHandler(String name) {
+            this.name = name;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getDeclaringClass() == Object.class) {
+                return objectMethod(proxy, method, args, name);
+            } else if ("getName".equals(method.getName())) {
+                return name;
+            } else if ("compareTo".equals(method.getName())) {
+                return Integer.valueOf(name.compareTo(nameOf(args[0])));
+            }
+            return defaultValue(method.getReturnType(), null);
+        }
+    }
+
+    private class UserRecord implements InvocationHandler {
+
+        private final String name;
+
+        private volatile boolean active;
+
+        private volatile String displayName;
+
+        private volatile String emailAddress;
+
+        private final Set groups = Collections.newSetFromMap(new ConcurrentHashMap());
+
+        private final User crowdUser;
+
+        private final ConfluenceUser confluenceUser;
+
+        UserRecord(String name, boolean active) {
+            this.name = name;
+            this.active = active;
+            this.crowdUser = (User) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{User.class}, this);
+            this.confluenceUser = (ConfluenceUser) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class[]{ConfluenceUser.class}, this);
+        }
+
+        void update(Object user) {
+            displayName = (String) invokeGetter(user, "getDisplayName");
+            emailAddress = (String) invokeGetter(user, "getEmailAddress");
+            Boolean isActive = (Boolean) invokeGetter(user, "isActive");
+            if (isActive != null) {
+                active = isActive.booleanValue();
+            }
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String methodName = method.getName();
+            if (method.getDeclaringClass() == Object.class) {
+                return objectMethod(proxy, method, args, name);
+            } else if ("getName".equals(methodName)) {
+                return name;
+            } else if ("isActive".equals(methodName)) {
+                return Boolean.valueOf(active);
+            } else if ("getDisplayName".equals(methodName) || "getFullName".equals(methodName)) {
+                return displayName;
+            } else if ("getEmailAddress".equals(methodName) || "getEmail".equals(methodName)) {
+                return emailAddress;
+            } else if ("compareTo".equals(methodName)) {
+                return Integer.valueOf(name.compareTo(nameOf(args[0])));
+            }
+            return defaultValue(method.getReturnType(), null);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package shibauth.confluence.authentication.shibboleth;
+
+import junit.framework.TestCase;
+
+public class LastLoginThrottleTest extends TestCase {
+
+    public void testRecordsOncePerInterval() {
+        LastLoginThrottle throttle = new LastLoginThrottle();
+        assertTrue(throttle.shouldRecord("alice", 1000, 10, 0));
+        assertFalse(throttle.shouldRecord("alice", 1000, 10, 999));
+        assertTrue("other users are not throttled", throttle.shouldRecord("bob", 1000, 10, 999));
+        assertTrue(throttle.shouldRecord("alice", 1000, 10, 1000));
+        assertFalse(throttle.shouldRecord("alice", 1000, 10, 1500));
+
+        assertEquals(3, throttle.getRecordedCount());
+        assertEquals(2, throttle.getSuppressedCount());
+        assertEquals(2, throttle.getTrackedUserCount());
+        assertEquals("recorded=3, suppressed=2, tracked users=2", throttle.toString());
+    }
+
+    public void testNoIntervalRecordsEveryLogin() {
+        LastLoginThrottle throttle = new LastLoginThrottle();
+        assertTrue(throttle.shouldRecord("alice", 0, 10, 0));
+        assertTrue(throttle.shouldRecord("alice", 0, 10, 0));
+        assertTrue(throttle.shouldRecord("alice", -1, 10, 0));
+        assertEquals(3, throttle.getRecordedCount());
+        assertEquals("nothing is tracked without an interval", 0, throttle.getTrackedUserCount());
+
+        throttle.suppressed();
+        assertEquals(1, throttle.getSuppressedCount());
+    }
+
+    public void testDropsExpiredUsersWhenFull() {
+        LastLoginThrottle throttle = new LastLoginThrottle();
+        assertTrue(throttle.shouldRecord("alice", 1000, 2, 0));
+        assertTrue(throttle.shouldRecord("bob", 1000, 2, 500));
+        assertTrue(throttle.shouldRecord("carol", 1000, 2, 1200));
+
+        // alice expired and was dropped, bob is still within the interval
+        assertEquals(2, throttle.getTrackedUserCount());
+        assertFalse(throttle.shouldRecord("bob", 1000, 2, 1300));
+        assertFalse(throttle.shouldRecord("carol", 1000, 2, 1300));
+    }
+
+    public void testClearsWhenFullOfRecentUsers() {
+        LastLoginThrottle throttle = new LastLoginThrottle();
+        assertTrue(throttle.shouldRecord("alice", 1000, 2, 0));
+        assertTrue(throttle.shouldRecord("bob", 1000, 2, 10));
+        assertTrue(throttle.shouldRecord("carol", 1000, 2, 20));
+
+        assertEquals(0, throttle.getTrackedUserCount());
+        assertTrue("cleared users are recorded again", throttle.shouldRecord("alice", 1000, 2, 30));
+    }
+}
@@ -0,0 +1,337 @@
+package shibauth.confluence.authentication.shibboleth;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives login() and getUser() of the authenticator from concurrent threads against an {@link InMemoryBackend}, to
+ * reproduce peak load (e.g. the start of a semester, when most users log in for the first time) outside of
+ * production. Reports throughput, latency percentiles and user directory calls per login.
+ * <p/>
+ * Run it from the test classpath, e.g. with
+ * <pre>
+ * mvn test-compile exec:java -Dexec.mainClass=shibauth.confluence.authentication.shibboleth.LoadTestHarness
+ *     -Dexec.classpathScope=test -Dthreads=32 -DreadLatency=1000
+ * </pre>
+ * Options are system properties:
+ * <ul>
+ * <li>threads - concurrent threads, default 16</li>
+ * <li>logins - logins per thread, default 1000</li>
+ * <li>warmup - logins of other users before measuring, default 2000</li>
+ * <li>users - number of distinct synthetic users, default 5000</li>
+ * <li>existing - true if the users already exist in the directory, default false (all are created)</li>
+ * <li>values - entitlement values per user, default 20</li>
+ * <li>mappers - dynamicroles mappers of the synthetic configuration, default 100</li>
+ * <li>mode - login, getUser or mixed, default mixed</li>
+ * <li>readLatency, writeLatency - microseconds added to each directory read and write, default 500 and 2000</li>
+ * <li>config - properties file to use instead of the synthetic configuration. auth.chain is always set to header
+ * and the remote user header must be REMOTE_USER, the entitlements are sent in SHIB-EP-ENTITLEMENT.</li>
+ * </ul>
+ */
+public class LoadTestHarness {
+
+    public final static String REMOTE_USER = "REMOTE_USER";
+
+    public final static String ENTITLEMENT = "SHIB-EP-ENTITLEMENT";
+
+    private final static String PREFIX = "urn:mace:example.edu:entitlement:";
+
+    private final int threads;
+
+    private final int logins;
+
+    private final int warmup;
+
+    private final int users;
+
+    private final boolean existing;
+
+    private final int values;
+
+    private final int mappers;
+
+    private final String mode;
+
+    private final InMemoryBackend backend;
+
+    private final InMemoryAuthenticator authenticator;
+
+    private final AtomicLong failures = new AtomicLong();
+
+    public LoadTestHarness(Properties options) throws IOException {
+        threads = Integer.parseInt(options.getProperty("threads", "16"));
+        logins = Integer.parseInt(options.getProperty("logins", "1000"));
+        warmup = Integer.parseInt(options.getProperty("warmup", "2000"));
+        users = Integer.parseInt(options.getProperty("users", "5000"));
+        existing = Boolean.valueOf(options.getProperty("existing", "false")).booleanValue();
+        values = Integer.parseInt(options.getProperty("values", "20"));
+        mappers = Integer.parseInt(options.getProperty("mappers", "100"));
+        mode = options.getProperty("mode", "mixed");
+
+        backend = new InMemoryBackend(Long.parseLong(options.getProperty("readLatency", "500")),
+                Long.parseLong(options.getProperty("writeLatency", "2000")));
+        authenticator = new InMemoryAuthenticator(backend);
+
+        Properties config = new Properties();
+        String configFile = options.getProperty("config");
+        if (configFile == null) {
+            config = syntheticConfiguration(mappers);
+        } else {
+            InputStream in = new FileInputStream(configFile);
+            try {
+                config.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        config.setProperty(ShibAuthConstants.AUTH_CHAIN, "header");
+        config.setProperty(ShibAuthConstants.RELOAD_CONFIG, "false");
+        RemoteUserAuthenticator.setConfiguration(load(config));
+
+        if (existing) {
+            for (int i = 0; i < users; i++) {
+                backend.addUser(username(i), true);
+            }
+        }
+    }
+
+    /**
+     * @return options of a harness for unit tests: 8 mappers and no write latency
+     */
+    public static Properties smallOptions(long readLatency) {
+        Properties options = new Properties();
+        options.setProperty("mappers", "8");
+        options.setProperty("readLatency", String.valueOf(readLatency));
+        options.setProperty("writeLatency", "0");
+        return options;
+    }
+
+    /**
+     * @return harness for unit tests, see {@link #smallOptions(long)}
+     */
+    public static LoadTestHarness small(long readLatency) throws IOException {
+        return new LoadTestHarness(smallOptions(readLatency));
+    }
+
+    /**
+     * @return configuration with one regex mapper per department and a literal mapper for every fourth group
+     */
+    public static Properties syntheticConfiguration(int mappers) {
+        Properties props = new Properties();
+        props.setProperty(ShibAuthConstants.REMOTE_USER_HEADER_NAME_PROPERTY, REMOTE_USER);
+        props.setProperty(ShibAuthConstants.LOCAL_LOGIN_SUPPORTED, "false");
+        props.setProperty(ShibAuthConstants.CREATE_USERS, "true");
+        props.setProperty(ShibAuthConstants.UPDATE_ROLES, "true");
+        props.setProperty(ShibAuthConstants.DEFAULT_ROLES, "confluence-users");
+        props.setProperty(ShibAuthConstants.AUTO_CREATE_GROUP, "true");
+
+        StringBuffer labels = new StringBuffer();
+        for (int i = 0; i < mappers; i++) {
+            String label = "m" + i;
+            labels.append(i == 0 ? "" : ", ").append(label);
+
+            String mapper = ShibAuthConstants.ROLES_ATTRIB_PREFIX + label;
+            if (i % 4 == 3) {
+                props.setProperty(mapper + ShibAuthConstants.PART_MATCH, PREFIX + "group:g" + i);
+                props.setProperty(mapper + ShibAuthConstants.PART_TRANSFORM, "group-" + i);
+            } else {
+                props.setProperty(mapper + ShibAuthConstants.PART_MATCH,
+                        PREFIX + "course:DEPT" + i + "(\\d{4}):(student|teacher|ta)");
+                props.setProperty(mapper + ShibAuthConstants.PART_TRANSFORM, "course-dept" + i + "-$1-$2");
+            }
+        }
+        props.setProperty(ShibAuthConstants.ROLES_HEADER_PREFIX + ENTITLEMENT, labels.toString());
+
+        return props;
+    }
+
+    /**
+     * Load a configuration the way the authenticator does, through a temporary file.
+     */
+    public static ShibAuthConfiguration load(Properties props) throws IOException {
+        File file = File.createTempFile("remoteUserAuthenticator", ".properties");
+        try {
+            OutputStream out = new FileOutputStream(file);
+            try {
+                props.store(out, null);
+            } finally {
+                out.close();
+            }
+
+            ShibAuthConfiguration old = new ShibAuthConfiguration();
+            old.setConfigFile(file.getPath());
+            return ShibAuthConfigLoader.getShibAuthConfiguration(old);
+        } finally {
+            file.delete();
+        }
+    }
+
+    public static String username(int i) {
+        return "user" + i;
+    }
+
+    /**
+     * @return the entitlements of a user, always the same for the same user. About half of them match a mapper.
+     */
+    public static String entitlements(int user, int count, int mappers) {
+        Random random = new Random(user);
+        StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(';');
+            }
+            int n = random.nextInt(Math.max(1, mappers * 2));
+            if (n % 4 == 3) {
+                sb.append(PREFIX).append("group:g").append(n);
+            } else {
+                sb.append(PREFIX).append("course:DEPT").append(n).append(1000 + random.nextInt(9000)).append(':')
+                        .append(random.nextBoolean() ? "student" : "teacher");
+            }
+        }
+        return sb.toString();
+    }
+
+    public HttpServletRequest request(String username, String entitlements) {
+        Map headers = new HashMap();
+        headers.put(REMOTE_USER, username);
+        headers.put(ENTITLEMENT, entitlements);
+        return StandInRequests.request(headers, "127.0.0.1");
+    }
+
+    /**
+     * Authenticate one request of the user, with login() or getUser() depending on the mode.
+     *
+     * @return true if the user was authenticated
+     */
+    public boolean authenticate(String username, String entitlements, boolean login) {
+        HttpServletRequest request = request(username, entitlements);
+        try {
+            if (login) {
+                return authenticator.login(request, StandInRequests.response(), null, null, false);
+            } else {
+                return authenticator.getUser(request, StandInRequests.response()) != null;
+            }
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    public InMemoryBackend getBackend() {
+        return backend;
+    }
+
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    /**
+     * Run the warmup, then the measured logins.
+     *
+     * @return the report
+     */
+    public String run() throws InterruptedException {
+        for (int i = 0; i < warmup; i++) {
+            authenticate("warmup" + (i % Math.max(1, users)), entitlements(-1 - i, values, mappers), i % 2 == 0);
+        }
+        backend.resetCallCounts();
+        AuthenticatorStats.getInstance().reset();
+
+        final long[][] latencies = new long[threads][logins];
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            new Thread("load-" + t) {
+                public void run() {
+                    Random random = new Random(thread);
+                    try {
+                        start.await();
+                        for (int i = 0; i < logins; i++) {
+                            int user = random.nextInt(users);
+                            boolean login = "login".equals(mode) || ("mixed".equals(mode) && random.nextBoolean());
+                            String entitlements = entitlements(user, values, mappers);
+
+                            long begin = System.nanoTime();
+                            boolean ok = authenticate(username(user), entitlements, login);
+                            latencies[thread][i] = System.nanoTime() - begin;
+
+                            if (!ok) {
+                                failures.incrementAndGet();
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+
+        return report(latencies, elapsed);
+    }
+
+    private String report(long[][] latencies, long elapsedNanos) {
+        long[] all = new long[threads * logins];
+        for (int t = 0; t < threads; t++) {
+            System.arraycopy(latencies[t], 0, all, t * logins, logins);
+        }
+        Arrays.sort(all);
+
+        int total = all.length;
+        StringBuffer sb = new StringBuffer();
+        sb.append("threads=").append(threads).append(", logins=").append(total).append(", users=").append(users)
+                .append(", mode=").append(mode).append(", existing=").append(existing).append('\n');
+        sb.append("throughput: ").append(total * 1000000000L / Math.max(1, elapsedNanos)).append(" logins/s, failed: ")
+                .append(failures.get()).append('\n');
+        sb.append("latency: p50=").append(percentile(all, 50)).append("us, p99=").append(percentile(all, 99))
+                .append("us, p999=").append(percentile(all, 99.9)).append("us, max=")
+                .append(total == 0 ? 0 : all[total - 1] / 1000).append("us\n");
+        sb.append("directory calls per login: ").append(perLogin(backend.getDirectoryCallCount(), total)).append('\n');
+
+        Map calls = backend.getCallCounts();
+        for (Iterator it = calls.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) it.next();
+            sb.append("  ").append(entry.getKey()).append(": ")
+                    .append(perLogin(((Long) entry.getValue()).longValue(), total)).append('\n');
+        }
+
+        String[] stages = AuthenticatorStats.getInstance().getStageSummaries();
+        sb.append("stages:\n");
+        for (int i = 0; i < stages.length; i++) {
+            sb.append("  ").append(stages[i]).append('\n');
+        }
+
+        return sb.toString();
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(sorted.length * percentile / 100) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1000;
+    }
+
+    private static String perLogin(long count, int logins) {
+        return String.format(Locale.ENGLISH, "%.2f", count / (double) Math.max(1, logins));
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.out.println(new LoadTestHarness(System.getProperties()).run());
+    }
+}
@@ -0,0 +1,36 @@
+package shibauth.confluence.authentication.shibboleth;
+
+import junit.framework.TestCase;
+
+import java.util.Properties;
+
+public class LoadTestHarnessTest extends TestCase {
+
+    private ShibAuthConfiguration previousConfig;
+
+    protected void setUp() {
+        previousConfig = RemoteUserAuthenticator.getConfiguration();
+    }
+
+    protected void tearDown() {
+        RemoteUserAuthenticator.setConfiguration(previousConfig);
+    }
+
+    public void testRun() throws Exception {
+        Properties options = LoadTestHarness.smallOptions(0);
+        options.setProperty("threads", "2");
+        options.setProperty("logins", "25");
+        options.setProperty("warmup", "0");
+        options.setProperty("users", "10");
+
+        LoadTestHarness harness = new LoadTestHarness(options);
+        String report = harness.run();
+
+        assertEquals(report, 0, harness.getFailureCount());
+        assertTrue(report, report.indexOf("logins=50") >= 0);
+        assertTrue(harness.getBackend().getUserCount() <= 10);
+
+        assertTrue(harness.authenticate("user3", LoadTestHarness.entitlements(3, 20, 8), true));
+        assertTrue(harness.getBackend().getGroupNames("user3").contains("confluence-users"));
+    }
+}
@@ -0,0 +1,56 @@
+package shibauth.confluence.authentication.shibboleth;
+
+import junit.framework.TestCase;
+
+import java.util.*;
+
+public class MapperOptimizerTest extends TestCase {
+
+    private List mappers;
+
+    protected void setUp() {
+        mappers = new ArrayList();
+        mappers.add(new GroupMapper("first", "urn\\:mace\\:(\\w+)\\:(.*)", "$1", true));
+        mappers.add(new GroupMapper("second", "urn\\:mace\\:(\\w+)\\:(.*)", "$2", true));
+        mappers.add(new GroupMapper("copy", "urn\\:mace\\:(\\w+)\\:(.*)", "$1", true));
+        mappers.add(new GroupMapper("insensitive", "urn\\:mace\\:(\\w+)\\:(.*)", "$2-x", false));
+        mappers.add(new GroupMapper("staff", "staff", "employees", true));
+        mappers.add(new GroupMapper("staff2", "staff", "employees", true));
+        mappers.add(new GroupMapper("passthrough", "faculty", null, true));
+        mappers.add(new GroupMapper("passthrough2", "faculty", null, true));
+    }
+
+    public void testOptimize() {
+        List optimized = MapperOptimizer.optimize(mappers);
+
+        assertEquals(4, optimized.size());
+        assertEquals("first+second", optimized.get(0).toString());
+        assertSame(mappers.get(3), optimized.get(1));
+        assertSame(mappers.get(4), optimized.get(2));
+        assertSame(mappers.get(6), optimized.get(3));
+    }
+
+    public void testSameRoles() {
+        List optimized = MapperOptimizer.optimize(mappers);
+        String[] values = {"urn:mace:dir:common-lib-terms", "URN:mace:dir:x", "staff", "Staff", "faculty", "other"};
+
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(values[i], roles(mappers, values[i]), roles(optimized, values[i]));
+        }
+    }
+
+    public void testLiteral() {
+        assertTrue(((GroupMapper) mappers.get(4)).isLiteral());
+        assertFalse(((GroupMapper) mappers.get(0)).isLiteral());
+        assertFalse(new GroupMapper("staff", "staff", null, false).isLiteral());
+        assertNull(((GroupMapper) mappers.get(4)).process("staffs"));
+    }
+
+    private Set roles(List mappers, String value) {
+        Set roles = new HashSet();
+        for (Iterator it = mappers.iterator(); it.hasNext(); ) {
+            roles.addAll(Arrays.asList(((GroupMapper) it.next()).processToGroups(value)));
+        }
+        return roles;
+    }
+}
@@ -0,0 +1,55 @@
+package shibauth.confluence.authentication.shibboleth;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+
+public class MapperProfilerTest extends TestCase {
+
+    public void testCountsInvocationsAndMatches() {
+        GroupMapper staff = new GroupMapper("staff", "staff", "staff-group", false);
+        MapperProfiler profiler = new MapperProfiler(0);
+        profiler.add(staff);
+        MapperProfile profile = staff.getProfile();
+
+        staff.processToGroups("staff");
+        staff.processToGroups("student");
+        staff.processToGroups("staff");
+        assertEquals(3, profile.getInvocations());
+        assertEquals(2, profile.getMatches());
+        assertTrue(profile.getSlowestNanos() <= profile.getTotalNanos());
+
+        profiler.add(staff);
+        assertSame(profile, staff.getProfile());
+        assertEquals(1, profiler.getProfiles().size());
+
+        profiler.reset();
+        assertEquals(0, profile.getInvocations());
+        assertEquals(0, profile.getTotalNanos());
+    }
+
+    public void testReportFlagsMappersThatNeverMatch() {
+        GroupMapper staff = new GroupMapper("staff", "staff", "staff-group", false);
+        GroupMapper alum = new GroupMapper("alum", "alum.*", "alumni", false);
+        MapperProfiler profiler = new MapperProfiler(0);
+        profiler.add(staff);
+        profiler.add(alum);
+
+        staff.processToGroups("staff");
+        alum.processToGroups("staff");
+
+        List report = profiler.getReport();
+        assertEquals(2, report.size());
+        MapperProfile slower = staff.getProfile().getTotalNanos() >= alum.getProfile().getTotalNanos()
+                ? staff.getProfile() : alum.getProfile();
+        assertEquals(slower.toString(), report.get(0));
+        assertTrue(alum.getProfile().toString().endsWith(", never matched"));
+        assertTrue(staff.getProfile().toString().indexOf("never matched") < 0);
+    }
+
+    public void testNotProfiledByDefault() {
+        GroupMapper staff = new GroupMapper("staff", "staff", "staff-group", false);
+        assertNull(staff.getProfile());
+        assertEquals(1, staff.processToGroups("staff").length);
+    }
+}
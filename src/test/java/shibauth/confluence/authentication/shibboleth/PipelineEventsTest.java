@@ -0,0 +1,96 @@
+package shibauth.confluence.authentication.shibboleth;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+public class PipelineEventsTest extends TestCase {
+
+    private static final String[] NAMES = {"shibauth.HeaderSnapshot", "shibauth.UsernameNormalization",
+            "shibauth.RoleDerivation", "shibauth.UserCreate", "shibauth.MembershipSync", "shibauth.RolePurge"};
+
+    private ShibAuthConfiguration previousConfig;
+
+    protected void setUp() {
+        previousConfig = RemoteUserAuthenticator.getConfiguration();
+    }
+
+    protected void tearDown() {
+        RemoteUserAuthenticator.setConfiguration(previousConfig);
+    }
+
+    public void testNotEnabledOutsideRecording() {
+        assertTrue(PipelineEvents.isAvailable());
+        assertNull(PipelineEvents.begin(PipelineEvents.USER_CREATE));
+        PipelineEvents.commit(null, "user1", 1, "created");
+    }
+
+    public void testNotInDefaultSettings() throws Exception {
+        LoadTestHarness harness = LoadTestHarness.small(0);
+
+        String[] settings = {"default", "profile"};
+        for (int s = 0; s < settings.length; s++) {
+            File file = File.createTempFile("pipeline", ".jfr");
+            Recording recording = new Recording(Configuration.getConfiguration(settings[s]));
+            try {
+                recording.start();
+                assertTrue(harness.authenticate("user1", LoadTestHarness.entitlements(1, 5, 8), true));
+                recording.stop();
+                recording.dump(file.toPath());
+
+                for (Iterator it = RecordingFile.readAllEvents(file.toPath()).iterator(); it.hasNext(); ) {
+                    String name = ((RecordedEvent) it.next()).getEventType().getName();
+                    assertFalse(name + " recorded with " + settings[s] + " settings", name.startsWith("shibauth."));
+                }
+            } finally {
+                recording.close();
+                file.delete();
+            }
+        }
+    }
+
+    public void testLoginEvents() throws Exception {
+        LoadTestHarness harness = LoadTestHarness.small(0);
+
+        File file = File.createTempFile("pipeline", ".jfr");
+        Recording recording = new Recording();
+        try {
+            for (int i = 0; i < NAMES.length; i++) {
+                recording.enable(NAMES[i]).withThreshold(Duration.ZERO);
+            }
+            recording.start();
+            assertTrue(harness.authenticate("user1", LoadTestHarness.entitlements(1, 5, 8), true));
+            assertTrue(harness.authenticate("user1", LoadTestHarness.entitlements(1, 5, 8), true));
+            recording.stop();
+            recording.dump(file.toPath());
+
+            Map events = new HashMap();
+            for (Iterator it = RecordingFile.readAllEvents(file.toPath()).iterator(); it.hasNext(); ) {
+                RecordedEvent event = (RecordedEvent) it.next();
+                events.put(event.getEventType().getName(), event);
+            }
+
+            for (int i = 0; i < NAMES.length; i++) {
+                assertTrue(NAMES[i] + " in " + events.keySet(), events.containsKey(NAMES[i]));
+            }
+
+            RecordedEvent create = (RecordedEvent) events.get("shibauth.UserCreate");
+            assertEquals("created", create.getString("outcome"));
+            assertEquals(JfrEvents.hash("user1"), create.getString("useridHash"));
+            assertEquals(16, create.getString("useridHash").length());
+            assertTrue(((RecordedEvent) events.get("shibauth.MembershipSync")).getInt("valueCount") > 0);
+            assertNull("no stack traces", create.getStackTrace());
+        } finally {
+            recording.close();
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package shibauth.confluence.authentication.shibboleth;
+
+import junit.framework.TestCase;
+
+import javax.servlet.http.HttpServletRequest;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.*;
+
+public class ProfileAttributesTest extends TestCase {
+
+    private int lookups;
+
+    private int mappings;
+
+    private ShibAuthConfiguration config;
+
+    private HttpServletRequest request;
+
+    protected void setUp() {
+        config = new ShibAuthConfiguration();
+        config.setFullNameHeaderName("CONF_FULLNAME");
+        config.setEmailHeaderName("CONF_EMAIL");
+        config.setFullNameMappings(Collections.singletonList(
+                new GroupMapper("fullnamemap", "^(.*);(.*)", "$2 $1", false) {
+                    public String process(String initValue) {
+                        mappings++;
+                        return super.process(initValue);
+                    }
+                }));
+
+        final Map headers = new HashMap();
+        headers.put("CONF_FULLNAME", "Einstein;Albert");
+        headers.put("CONF_EMAIL", "Albert.Einstein@example.edu");
+
+        request = (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[]{HttpServletRequest.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getHeader")) {
+                            lookups++;
+                            return headers.get(args[0]);
+                        }
+                        if (method.getName().equals("getAttribute")) {
+                            lookups++;
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    public void testNoWorkUntilAsked() {
+        ProfileAttributes profile = new ProfileAttributes(request, "aeinstein", config);
+
+        // The fast path (existing user, update.info=false) never asks for the values
+        assertEquals("aeinstein", profile.getUserid());
+        assertEquals(0, lookups);
+        assertEquals(0, mappings);
+    }
+
+    public void testDerivedOnceWhenAsked() {
+        ProfileAttributes profile = new ProfileAttributes(request, "aeinstein", config);
+
+        assertEquals("albert.einstein@example.edu", profile.getEmailAddress());
+        assertEquals(0, mappings);
+
+        assertEquals("Albert Einstein", profile.getFullName());
+        assertEquals(1, mappings);
+
+        int lookupsSoFar = lookups;
+        assertEquals("Albert Einstein", profile.getFullName());
+        assertEquals("albert.einstein@example.edu", profile.getEmailAddress());
+        assertEquals(1, mappings);
+        assertEquals(lookupsSoFar, lookups);
+    }
+
+    public void testFullNameStopsAtFirstMatch() {
+        config.setFullNameMappings(Arrays.asList(new GroupMapper[]{
+                counting("none", "^nomatch$", "never"),
+                counting("reversed", "^(.*);(.*)", "$2 $1"),
+                counting("as is", "^(.*);(.*)", "$1 $2")}));
+
+        assertEquals("Albert Einstein", new ProfileAttributes(request, "aeinstein", config).getFullName());
+        assertEquals(2, mappings);
+    }
+
+    public void testFullNameEvaluateAll() {
+        config.setFullNameFirstMatch(false);
+        config.setFullNameMappings(Arrays.asList(new GroupMapper[]{
+                counting("as is", "^(.*);(.*)", "$1 $2"),
+                counting("reversed", "^(.*);(.*)", "$2 $1")}));
+
+        assertEquals("the first mapper still wins", "Einstein Albert",
+                new ProfileAttributes(request, "aeinstein", config).getFullName());
+        assertEquals(2, mappings);
+    }
+
+    private GroupMapper counting(String name, String match, String transform) {
+        return new GroupMapper(name, match, transform, false) {
+            public String process(String initValue) {
+                mappings++;
+                return super.process(initValue);
+            }
+        };
+    }
+}
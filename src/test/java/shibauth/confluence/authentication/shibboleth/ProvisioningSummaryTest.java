@@ -0,0 +1,77 @@
+package shibauth.confluence.authentication.shibboleth;
+
+import junit.framework.TestCase;
+
+import java.util.Properties;
+
+public class ProvisioningSummaryTest extends TestCase {
+
+    private ShibAuthConfiguration previousConfig;
+
+    protected void setUp() {
+        previousConfig = RemoteUserAuthenticator.getConfiguration();
+    }
+
+    protected void tearDown() {
+        RemoteUserAuthenticator.setConfiguration(previousConfig);
+    }
+
+    public void testSummarizesAndResets() {
+        ProvisioningSummary summary = new ProvisioningSummary();
+        summary.setInterval(60000);
+        assertNull(summary.summarize(60000));
+
+        summary.userCreated();
+        summary.groupAdded();
+        summary.groupAdded();
+        summary.groupRemoved();
+        assertTrue(summary.failed("addUserToGroup"));
+        assertFalse(summary.failed("addUserToGroup"));
+        assertTrue(summary.mapperError());
+
+        String line = summary.summarize(60000);
+        assertTrue(line, line.startsWith("Provisioning summary for the last 60 s: users.created=1, users.updated=0"));
+        assertTrue(line, line.indexOf("memberships.added=2, memberships.removed=1, mapper.errors=1") > 0);
+        assertTrue(line, line.endsWith("failures={addUserToGroup=2}"));
+
+        assertNull(summary.summarize(60000));
+        assertTrue("first failure after a summary is logged in full", summary.failed("addUserToGroup"));
+    }
+
+    public void testEveryFailureLoggedWhenNotSummarizing() {
+        ProvisioningSummary summary = new ProvisioningSummary();
+        summary.setInterval(0);
+        assertFalse(summary.isSummarizing());
+        assertTrue(summary.failed("createUser"));
+        assertTrue(summary.failed("createUser"));
+    }
+
+    public void testMapperErrorSkipsMapper() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(ShibAuthConstants.ROLES_HEADER_PREFIX + "entitlement", "broken, staff");
+        props.setProperty(ShibAuthConstants.ROLES_ATTRIB_PREFIX + "broken" + ShibAuthConstants.PART_MATCH, "(a)|(b)");
+        props.setProperty(ShibAuthConstants.ROLES_ATTRIB_PREFIX + "broken" + ShibAuthConstants.PART_TRANSFORM, "x-$2");
+        props.setProperty(ShibAuthConstants.ROLES_ATTRIB_PREFIX + "staff" + ShibAuthConstants.PART_MATCH, "a");
+        props.setProperty(ShibAuthConstants.ROLES_ATTRIB_PREFIX + "staff" + ShibAuthConstants.PART_TRANSFORM, "staff");
+        props.setProperty(ShibAuthConstants.ROLES_OPTIMIZE, "false");
+        ShibAuthConfiguration config = LoadTestHarness.load(props);
+
+        ProvisioningSummary.getInstance().summarize(0);
+        RoleDecision decision = DynamicRoles.deriveRoles(config.getGroupMappingHeaders(), new String[]{"a"}, config);
+        assertTrue(decision.getAddedRoles().contains("staff"));
+        assertTrue(ProvisioningSummary.getInstance().summarize(0).indexOf("mapper.errors=1") > 0);
+    }
+
+    public void testCountsLogins() throws Exception {
+        LoadTestHarness harness = LoadTestHarness.small(0);
+
+        ProvisioningSummary summary = ProvisioningSummary.getInstance();
+        summary.summarize(0);
+        assertTrue(harness.authenticate("user1", LoadTestHarness.entitlements(1, 5, 8), true));
+        assertTrue(harness.authenticate("user1", LoadTestHarness.entitlements(1, 5, 8), true));
+
+        String line = summary.summarize(0);
+        assertTrue(line, line.indexOf("users.created=1") > 0);
+        assertTrue(line, line.indexOf("memberships.added=" + harness.getBackend().getGroupNames("user1").size()) > 0);
+    }
+}
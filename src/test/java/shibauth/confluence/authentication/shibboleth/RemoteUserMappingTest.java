@@ -0,0 +1,134 @@
+package shibauth.confluence.authentication.shibboleth;
+
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.util.*;
+
+public class RemoteUserMappingTest extends TestCase {
+
+    private LoadTestHarness harness;
+
+    private ShibAuthConfiguration config;
+
+    private ShibAuthConfiguration previousConfig;
+
+    private int evaluations;
+
+    private GroupMapper eppn;
+
+    private GroupMapper domain;
+
+    protected void setUp() throws Exception {
+        previousConfig = RemoteUserAuthenticator.getConfiguration();
+        harness = LoadTestHarness.small(0);
+
+        Properties props = LoadTestHarness.syntheticConfiguration(0);
+        props.setProperty(ShibAuthConstants.AUTH_CHAIN, "header");
+        props.setProperty(ShibAuthConstants.RELOAD_CONFIG, "false");
+        config = LoadTestHarness.load(props);
+
+        eppn = counting("eppn", "(.*)@example\\.edu", "$1");
+        domain = counting("domain", "(.*)@(.*)", "$2-$1");
+        config.setRemoteUserMappings(Arrays.asList(new GroupMapper[]{eppn, domain}));
+        RemoteUserAuthenticator.setConfiguration(config);
+    }
+
+    protected void tearDown() {
+        RemoteUserAuthenticator.setConfiguration(previousConfig);
+    }
+
+    private GroupMapper counting(String name, String match, String transform) {
+        return new GroupMapper(name, match, transform, false) {
+            public String process(String initValue) {
+                evaluations++;
+                return super.process(initValue);
+            }
+        };
+    }
+
+    private boolean exists(String username) {
+        return harness.getBackend().getUserAccessor().getUserByName(username) != null;
+    }
+
+    public void testStopsAtFirstMatch() {
+        assertTrue(harness.authenticate("jdoe@example.edu", "", true));
+        assertTrue(exists("jdoe"));
+        assertEquals(1, evaluations);
+
+        assertTrue(harness.authenticate("asmith@example.org", "", true));
+        assertTrue(exists("example.org-asmith"));
+        assertEquals(3, evaluations);
+    }
+
+    public void testEvaluateAll() {
+        config.setRemoteUserFirstMatch(false);
+
+        assertTrue(harness.authenticate("jdoe@example.edu", "", true));
+        assertTrue("the first mapper still wins", exists("jdoe"));
+        assertEquals(2, evaluations);
+    }
+
+    public void testDeclarationOrder() {
+        config.setRemoteUserMappings(Arrays.asList(new GroupMapper[]{domain, eppn}));
+
+        assertTrue(harness.authenticate("jdoe@example.edu", "", true));
+        assertTrue(exists("example.edu-jdoe"));
+        assertFalse(exists("jdoe"));
+        assertEquals(1, evaluations);
+    }
+
+    public void testUsernameCache() {
+        BoundedCache cache = config.getUsernameCache();
+        assertTrue(cache.isEnabled());
+
+        assertTrue(harness.authenticate("jdoe@example.edu", "", true));
+        assertTrue(harness.authenticate("jdoe@example.edu", "", true));
+        assertEquals("the second login reuses the userid", 1, evaluations);
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+
+        assertTrue(harness.authenticate("JDoe@example.edu", "", true));
+        assertEquals("keyed by the raw value", 2, evaluations);
+        assertEquals(2, cache.getMissCount());
+        assertEquals(2, cache.size());
+    }
+
+    public void testUsernameCacheDiscardedOnReload() throws IOException {
+        Properties props = LoadTestHarness.syntheticConfiguration(0);
+        props.setProperty(ShibAuthConstants.AUTH_CHAIN, "header");
+        props.setProperty(ShibAuthConstants.RELOAD_CONFIG, "true");
+        props.setProperty(ShibAuthConstants.RELOAD_CONFIG_CHECK_INTERVAL, "0");
+
+        File file = File.createTempFile("remoteUserAuthenticator", ".properties");
+        try {
+            OutputStream out = new FileOutputStream(file);
+            props.store(out, null);
+            out.close();
+
+            ShibAuthConfiguration old = new ShibAuthConfiguration();
+            old.setConfigFile(file.getPath());
+            ShibAuthConfiguration first = ShibAuthConfigLoader.getShibAuthConfiguration(old);
+            // the loader only watches remoteUserAuthenticator.properties on the classpath
+            first.setConfigFile(file.getPath());
+            first.setConfigFileLastModified(file.lastModified());
+            RemoteUserAuthenticator.setConfiguration(first);
+
+            assertTrue(harness.authenticate("jdoe@example.edu", "", true));
+            assertTrue(harness.authenticate("jdoe@example.edu", "", true));
+            assertEquals(1, first.getUsernameCache().getHitCount());
+
+            // the login that notices the change reloads the configuration, the next one uses it
+            file.setLastModified(file.lastModified() + 10000);
+            assertTrue(harness.authenticate("jdoe@example.edu", "", true));
+            assertTrue(harness.authenticate("jdoe@example.edu", "", true));
+            assertEquals("the old snapshot is not used after the reload", 2, first.getUsernameCache().getHitCount());
+            assertEquals(1, first.getUsernameCache().getMissCount());
+            assertTrue(AuthenticatorStats.getInstance().getCacheSummaries()[0],
+                    AuthenticatorStats.getInstance().getCacheSummaries()[0].startsWith(
+                            "username: size=1/10000, hits=0, misses=1,"));
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package shibauth.confluence.authentication.shibboleth;
+
+import junit.framework.TestCase;
+
+import java.util.*;
+
+public class ReplacementProgramTest extends TestCase {
+
+    private final static String[] REPLACEMENTS = {
+            "\\.,,#,A,%,c,c,n,(-|TTT),,",
+            "#,A,%,c,(-|TTT),,",
+            "#,,%,,",
+            "a,b,a,z,b,a",
+            "a,b,b,c,c,a",
+            "x,y,[0-9],#,y,x,#,",
+            "\\$,S,\\\\,/,\\#,H",
+            "(\\w+)@(.*),$2_$1,\\.,_",
+            "a,$,b,\\\\",
+            ",x,a",
+            "[,x,a,b",
+            "(a)b,$2,c,d",
+            "",
+    };
+
+    private final static String[] INPUTS = {
+            "#lbert.EinstTTTei%",
+            "a.b-c#d%e",
+            "abcabc",
+            "x1y2#3",
+            "$100\\path#",
+            "john.doe@example.edu",
+            "aab",
+            "",
+            "\u00e9\u00e8#%",
+    };
+
+    public void testSameAsReplaceAll() {
+        for (int i = 0; i < REPLACEMENTS.length; i++) {
+            List replacements = StringUtil.toListOfStringsDelimitedByCommaOrSemicolon(REPLACEMENTS[i]);
+            ReplacementProgram program = ReplacementProgram.compile(replacements, "test");
+
+            for (int j = 0; j < INPUTS.length; j++) {
+                assertEquals(REPLACEMENTS[i] + " on " + INPUTS[j], replaceAll(INPUTS[j], replacements),
+                        program.apply(INPUTS[j]));
+            }
+        }
+    }
+
+    public void testRandomCharacterRuns() {
+        Random random = new Random(4711);
+        String alphabet = "abc.#%";
+
+        for (int i = 0; i < 500; i++) {
+            StringBuffer sb = new StringBuffer();
+            int pairs = 1 + random.nextInt(6);
+            for (int p = 0; p < pairs; p++) {
+                sb.append(p == 0 ? "" : ",").append(randomToken(random, alphabet)).append(",");
+                sb.append(random.nextInt(4) == 0 ? "" : randomToken(random, alphabet));
+            }
+
+            List replacements = StringUtil.toListOfStringsDelimitedByCommaOrSemicolon(sb.toString());
+            ReplacementProgram program = ReplacementProgram.compile(replacements, "test");
+
+            for (int j = 0; j < 5; j++) {
+                StringBuffer input = new StringBuffer();
+                for (int k = random.nextInt(10); k > 0; k--) {
+                    input.append(alphabet.charAt(random.nextInt(alphabet.length())));
+                }
+
+                assertEquals(sb + " on " + input, replaceAll(input.toString(), replacements),
+                        program.apply(input.toString()));
+            }
+        }
+    }
+
+    public void testNull() {
+        assertNull(ReplacementProgram.compile(Arrays.asList(new String[]{"a", "b"}), "test").apply(null));
+    }
+
+    private static String randomToken(Random random, String alphabet) {
+        char c = alphabet.charAt(random.nextInt(alphabet.length()));
+        // sometimes escape, sometimes a real regex
+        switch (random.nextInt(6)) {
+            case 0:
+                return "\\" + c;
+            case 1:
+                return "[" + c + "b]";
+            default:
+                return c == '.' ? "\\." : String.valueOf(c);
+        }
+    }
+
+    /**
+     * The replacement logic as it was before it was compiled.
+     */
+    private static String replaceAll(String s, List replacements) {
+        Iterator it = replacements.iterator();
+        while (it.hasNext()) {
+            String replaceFromRegex = it.next().toString();
+            if (!it.hasNext()) {
+                break;
+            }
+            String replacement = it.next().toString();
+            if (replaceFromRegex.length() == 0) {
+                continue;
+            }
+            try {
+                s = s.replaceAll(replaceFromRegex, replacement);
+            } catch (Throwable t) {
+                // ignored, as before
+            }
+        }
+        return s;
+    }
+}
@@ -0,0 +1,81 @@
+package shibauth.confluence.authentication.shibboleth;
+
+import junit.framework.TestCase;
+
+import java.util.*;
+
+public class RoleDecisionTest extends TestCase {
+
+    private GroupMapper add;
+
+    private GroupMapper retract;
+
+    private GroupMapper forcedAdd;
+
+    private GroupMapper forcedRetract;
+
+    protected void setUp() {
+        add = new GroupMapper("add", null, "g", true);
+        retract = new GroupMapper("retract", null, "g", true);
+        retract.setRetract(true);
+        forcedAdd = new GroupMapper("forcedAdd", null, "g", true);
+        forcedAdd.setForce(true);
+        forcedRetract = new GroupMapper("forcedRetract", null, "g", true);
+        forcedRetract.setRetract(true);
+        forcedRetract.setForce(true);
+    }
+
+    public void testAddOverridesRetract() {
+        assertAdded(decide(new GroupMapper[]{retract, add}));
+        assertAdded(decide(new GroupMapper[]{add, retract}));
+    }
+
+    public void testRetract() {
+        assertRetracted(decide(new GroupMapper[]{retract, retract}));
+    }
+
+    public void testForceOverrides() {
+        assertRetracted(decide(new GroupMapper[]{add, forcedRetract}));
+        assertAdded(decide(new GroupMapper[]{forcedAdd, retract}));
+    }
+
+    public void testForcedConflictAdds() {
+        assertAdded(decide(new GroupMapper[]{forcedRetract, forcedAdd}));
+        assertAdded(decide(new GroupMapper[]{forcedAdd, forcedRetract, retract}));
+    }
+
+    public void testDerive() {
+        GroupMapper staff = new GroupMapper("staff", "staff", "cs100, lab", false);
+        GroupMapper former = new GroupMapper("former", "former-staff", "cs100", true);
+        former.setRetract(true);
+        former.setForce(true);
+
+        ShibAuthConfiguration config = new ShibAuthConfiguration();
+        Map mappings = new HashMap();
+        mappings.put("entitlement", Arrays.asList(new GroupMapper[]{staff, former}));
+        config.setGroupMappings(mappings);
+
+        RoleDecision decision = DynamicRoles.deriveRoles(config.getGroupMappingHeaders(),
+                new String[]{"Staff;former-staff"}, config);
+        assertEquals(Collections.singleton("lab"), decision.getAddedRoles());
+        assertEquals(Collections.singleton("cs100"), decision.getRetractedRoles());
+    }
+
+    private RoleDecision decide(GroupMapper[] mappers) {
+        RoleDecision decision = new RoleDecision();
+        for (int i = 0; i < mappers.length; i++) {
+            decision.vote("g", mappers[i]);
+        }
+        return decision.resolve();
+    }
+
+    private void assertAdded(RoleDecision decision) {
+        assertEquals(Collections.singleton("g"), decision.getAddedRoles());
+        assertTrue(decision.getRetractedRoles().isEmpty());
+    }
+
+    private void assertRetracted(RoleDecision decision) {
+        assertTrue(decision.getAddedRoles().isEmpty());
+        assertEquals(Collections.singleton("g"), decision.getRetractedRoles());
+    }
+}
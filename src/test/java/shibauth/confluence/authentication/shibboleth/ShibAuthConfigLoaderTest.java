@@ -0,0 +1,54 @@
+package shibauth.confluence.authentication.shibboleth;
+
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.util.Properties;
+
+public class ShibAuthConfigLoaderTest extends TestCase {
+
+    private File file;
+
+    protected void setUp() throws IOException {
+        Properties props = new Properties();
+        props.setProperty("header.remote_user", "REMOTE_USER");
+        props.setProperty("create.users", "true");
+        props.setProperty("default.roles", "confluence-users");
+        props.setProperty("header.profile", "Shib-Identity-Provider");
+        props.setProperty("profile.example.idp", "https://idp.example.edu/idp, https://idp2.example.edu/idp");
+        props.setProperty("profile.example.create.users", "false");
+        props.setProperty("profile.example.remoteuser", "examplemap");
+        props.setProperty("profile.example.remoteuser.map.examplemap.match", "^(.*)@example\\.edu$");
+        props.setProperty("profile.example.remoteuser.map.examplemap.transform", "$1");
+
+        file = File.createTempFile("remoteUserAuthenticator", ".properties");
+        OutputStream out = new FileOutputStream(file);
+        props.store(out, null);
+        out.close();
+    }
+
+    protected void tearDown() {
+        file.delete();
+    }
+
+    public void testProfiles() {
+        ShibAuthConfiguration old = new ShibAuthConfiguration();
+        old.setConfigFile(file.getPath());
+        ShibAuthConfiguration config = ShibAuthConfigLoader.getShibAuthConfiguration(old);
+
+        assertEquals("Shib-Identity-Provider", config.getProfileHeaderName());
+        assertSame(config, config.getProfile(null));
+        assertSame(config, config.getProfile("https://other.example.org/idp"));
+
+        ShibAuthConfiguration profile = config.getProfile("https://idp.example.edu/idp");
+        assertNotSame(config, profile);
+        assertSame(profile, config.getProfile("https://idp2.example.edu/idp"));
+
+        assertTrue(config.isCreateUsers());
+        assertFalse(profile.isCreateUsers());
+        assertEquals(config.getDefaultRoles(), profile.getDefaultRoles());
+        assertEquals(0, config.getRemoteUserMappings().size());
+        assertEquals(1, profile.getRemoteUserMappings().size());
+        assertNull(profile.getProfileHeaderName());
+    }
+}
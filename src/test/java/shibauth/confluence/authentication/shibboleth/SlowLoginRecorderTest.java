@@ -0,0 +1,88 @@
+package shibauth.confluence.authentication.shibboleth;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+
+public class SlowLoginRecorderTest extends TestCase {
+
+    private ShibAuthConfiguration previousConfig;
+
+    private long previousThreshold;
+
+    protected void setUp() {
+        previousConfig = RemoteUserAuthenticator.getConfiguration();
+        previousThreshold = AuthenticatorStats.getInstance().getSlowLoginThresholdMillis();
+    }
+
+    protected void tearDown() {
+        RemoteUserAuthenticator.setConfiguration(previousConfig);
+        AuthenticatorStats.getInstance().setSlowLoginThresholdMillis(previousThreshold);
+    }
+
+    private static LoginTrace trace(long millis) throws InterruptedException {
+        LoginTrace trace = LoginTrace.begin("login");
+        assertNotNull(trace);
+        Thread.sleep(millis);
+        return LoginTrace.end(trace);
+    }
+
+    public void testKeepsOnlySlowLogins() throws Exception {
+        SlowLoginRecorder recorder = new SlowLoginRecorder(4, 100);
+        assertFalse(recorder.offer(trace(0), null, null));
+        assertTrue(recorder.offer(trace(110), null, null));
+        assertEquals(1, recorder.getTraces().size());
+
+        recorder.setThresholdMillis(0);
+        assertFalse(recorder.isEnabled());
+        assertFalse(recorder.offer(trace(110), null, null));
+    }
+
+    public void testOverwritesOldest() throws Exception {
+        SlowLoginRecorder recorder = new SlowLoginRecorder(2, 1);
+        LoginTrace first = trace(2);
+        LoginTrace second = trace(2);
+        LoginTrace third = trace(2);
+        recorder.offer(first, null, null);
+        recorder.offer(second, null, null);
+        recorder.offer(third, null, null);
+
+        List traces = recorder.getTraces();
+        assertEquals(2, traces.size());
+        assertFalse(traces.contains(first));
+        assertTrue(traces.contains(second) && traces.contains(third));
+
+        SlowLoginRecorder resized = recorder.resize(3, 1);
+        assertNotSame(recorder, resized);
+        assertEquals(2, resized.getTraces().size());
+        assertSame(resized, resized.resize(3, 5));
+        assertEquals(5, resized.getThresholdMillis());
+
+        recorder.clear();
+        assertTrue(recorder.getTraces().isEmpty());
+    }
+
+    public void testTraceOfSlowLogin() throws Exception {
+        LoadTestHarness harness = LoadTestHarness.small(2000);
+
+        AuthenticatorStats stats = AuthenticatorStats.getInstance();
+        stats.clearSlowLogins();
+        stats.setSlowLoginThresholdMillis(1);
+        assertTrue(harness.authenticate("user1", LoadTestHarness.entitlements(1, 5, 8), true));
+        assertTrue(harness.authenticate("user1", LoadTestHarness.entitlements(1, 5, 8), true));
+
+        List traces = stats.getSlowLoginRecorder().getTraces();
+        assertEquals(2, traces.size());
+        LoginTrace trace = (LoginTrace) traces.get(0);
+        assertEquals("user1", trace.getUsername());
+        assertEquals("OK", trace.getOutcome());
+        assertTrue(trace.getStageNanos(AuthenticatorStats.CROWD_GET_USER) > 0);
+        assertEquals(2, trace.getHeaderCount());
+        assertTrue(trace.getMapperEvaluations() > 0);
+        assertTrue(trace.getBackendCalls().getCount("crowdService.addUserToGroup") > 0);
+        assertTrue(trace.toString(), trace.toString().indexOf("groups added=") > 0);
+        assertEquals(2, stats.getSlowLogins().length);
+        assertEquals(2, stats.dumpSlowLogins());
+        assertNull(LoginTrace.current());
+    }
+}
@@ -0,0 +1,129 @@
+package shibauth.confluence.authentication.shibboleth;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Minimal HttpServletRequest, HttpServletResponse and HttpSession stand-ins for running the authenticator outside of
+ * a servlet container. Headers are looked up case-insensitively, attributes and the session are kept per request.
+ */
+public class StandInRequests {
+
+    /**
+     * @param headers    Map<header name, value>
+     * @param remoteAddr address the request comes from
+     */
+    public static HttpServletRequest request(Map headers, String remoteAddr) {
+        Map folded = new TreeMap(String.CASE_INSENSITIVE_ORDER);
+        folded.putAll(headers);
+        return (HttpServletRequest) Proxy.newProxyInstance(StandInRequests.class.getClassLoader(),
+                new Class[]{HttpServletRequest.class}, new RequestHandler(folded, remoteAddr));
+    }
+
+    public static HttpServletResponse response() {
+        return (HttpServletResponse) Proxy.newProxyInstance(StandInRequests.class.getClassLoader(),
+                new Class[]{HttpServletResponse.class}, new InMemoryBackend.DefaultHandler("response"));
+    }
+
+    private static class RequestHandler implements InvocationHandler {
+
+        private final Map headers;
+
+        private final String remoteAddr;
+
+        private final Map attributes = new ConcurrentHashMap();
+
+        private HttpSession session;
+
+        RequestHandler(Map headers, String remoteAddr) {
+            this.headers = headers;
+            this.remoteAddr = remoteAddr;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if (method.getDeclaringClass() == Object.class) {
+                return InMemoryBackend.objectMethod(proxy, method, args, "request from " + remoteAddr);
+            } else if ("getHeader".equals(name)) {
+                return headers.get(args[0]);
+            } else if ("getHeaders".equals(name)) {
+                Object value = headers.get(args[0]);
+                return Collections.enumeration(value == null ? Collections.EMPTY_LIST : Collections.singletonList(value));
+            } else if ("getHeaderNames".equals(name)) {
+                return Collections.enumeration(headers.keySet());
+            } else if ("getAttribute".equals(name)) {
+                return attributes.get(args[0]);
+            } else if ("setAttribute".equals(name)) {
+                if (args[1] == null) {
+                    attributes.remove(args[0]);
+                } else {
+                    attributes.put(args[0], args[1]);
+                }
+                return null;
+            } else if ("removeAttribute".equals(name)) {
+                attributes.remove(args[0]);
+                return null;
+            } else if ("getSession".equals(name)) {
+                return getSession(args == null || args.length == 0 || Boolean.TRUE.equals(args[0]));
+            } else if ("getRemoteAddr".equals(name) || "getRemoteHost".equals(name)) {
+                return remoteAddr;
+            } else if ("getRequestURL".equals(name)) {
+                return new StringBuffer("http://localhost/dashboard.action");
+            } else if ("getRequestURI".equals(name)) {
+                return "/dashboard.action";
+            } else if ("getServletPath".equals(name)) {
+                return "/dashboard.action";
+            } else if ("getContextPath".equals(name)) {
+                return "";
+            } else if ("getMethod".equals(name)) {
+                return "GET";
+            }
+            return InMemoryBackend.defaultValue(method.getReturnType(), null);
+        }
+
+        private synchronized HttpSession getSession(boolean create) {
+            if (session == null && create) {
+                session = (HttpSession) Proxy.newProxyInstance(StandInRequests.class.getClassLoader(),
+                        new Class[]{HttpSession.class}, new SessionHandler());
+            }
+            return session;
+        }
+    }
+
+    private static class SessionHandler implements InvocationHandler {
+
+        private final String id = UUID.randomUUID().toString();
+
+        private final Map attributes = new ConcurrentHashMap();
+
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if (method.getDeclaringClass() == Object.class) {
+                return InMemoryBackend.objectMethod(proxy, method, args, "session " + id);
+            } else if ("getId".equals(name)) {
+                return id;
+            } else if ("getAttribute".equals(name)) {
+                return attributes.get(args[0]);
+            } else if ("setAttribute".equals(name)) {
+                if (args[1] == null) {
+                    attributes.remove(args[0]);
+                } else {
+                    attributes.put(args[0], args[1]);
+                }
+                return null;
+            } else if ("removeAttribute".equals(name)) {
+                attributes.remove(args[0]);
+                return null;
+            } else if ("getAttributeNames".equals(name)) {
+                return Collections.enumeration(new ArrayList(attributes.keySet()));
+            }
+            return InMemoryBackend.defaultValue(method.getReturnType(), null);
+        }
+    }
+}
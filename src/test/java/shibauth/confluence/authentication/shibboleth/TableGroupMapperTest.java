@@ -0,0 +1,108 @@
+package shibauth.confluence.authentication.shibboleth;
+
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.util.Arrays;
+
+public class TableGroupMapperTest extends TestCase {
+
+    private File dir;
+
+    private File table;
+
+    protected void setUp() throws IOException {
+        dir = File.createTempFile("tables", "");
+        dir.delete();
+        dir.mkdir();
+
+        table = new File(dir, "entitlements.tsv");
+        Writer out = new OutputStreamWriter(new FileOutputStream(table), "UTF-8");
+        out.write("# generated\n");
+        out.write("urn:mace:dir:entitlement:common-lib-terms\tlibrary-users\n");
+        out.write("urn:mace:dir:entitlement:x\tx1; x2\n");
+        out.write("Caf\u00e9\tcafe\n");
+        out.write("urn:mace:dir:entitlement:common-lib-terms\tlibrary-staff\n");
+        out.write("no tab here\n");
+        for (int i = 0; i < 1000; i++) {
+            out.write("urn:example:" + i + "\tgroup-" + i + "\n");
+        }
+        out.close();
+    }
+
+    protected void tearDown() {
+        File[] files = dir.listFiles();
+        for (int i = 0; i < files.length; i++) {
+            files[i].delete();
+        }
+        dir.delete();
+    }
+
+    public void testLookup() throws IOException {
+        TableGroupMapper mapper = new TableGroupMapper("table", table, true);
+
+        assertEquals(1003, mapper.size());
+        assertEquals(Arrays.asList("library-users", "library-staff"),
+                Arrays.asList(mapper.processToGroups("urn:mace:dir:entitlement:common-lib-terms")));
+        assertEquals(Arrays.asList("x1", "x2"), Arrays.asList(mapper.processToGroups("urn:mace:dir:entitlement:x")));
+        assertEquals("cafe", mapper.process("Caf\u00e9"));
+        assertNull(mapper.process("caf\u00e9"));
+        assertNull(mapper.process("urn:mace:dir:entitlement"));
+        assertNull(mapper.process(""));
+
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("group-" + i, mapper.process("urn:example:" + i));
+        }
+    }
+
+    public void testCaseInsensitive() throws IOException {
+        TableGroupMapper mapper = new TableGroupMapper("table", table, false);
+
+        assertEquals("cafe", mapper.process("CAF\u00c9"));
+        assertEquals("group-7", mapper.process("URN:Example:7"));
+    }
+
+    public void testIndexReused() throws IOException {
+        new TableGroupMapper("table", table, true);
+        File index = new File(table.getPath() + ".idx");
+        assertTrue(index.isFile());
+
+        index.setLastModified(table.lastModified() + 10000);
+        long modified = index.lastModified();
+        new TableGroupMapper("table", table, true);
+        assertEquals(modified, index.lastModified());
+    }
+
+    public void testIndexRebuiltWhenTableChanges() throws IOException {
+        new TableGroupMapper("table", table, true);
+        long modified = table.lastModified();
+
+        // edited within the timestamp granularity of the file system
+        write(table, "urn:example:1\tchanged\n");
+        table.setLastModified(modified);
+        assertEquals("changed", new TableGroupMapper("table", table, true).process("urn:example:1"));
+
+        // replaced by an older copy of the same size, e.g. with rsync -a
+        write(table, "urn:example:1\tolder-1\n");
+        table.setLastModified(modified - 10000);
+        assertEquals("older-1", new TableGroupMapper("table", table, true).process("urn:example:1"));
+    }
+
+    public void testMergedGroupsTooLong() throws IOException {
+        StringBuffer groups = new StringBuffer();
+        for (int i = 0; i < 4000; i++) {
+            groups.append(i == 0 ? "" : ",").append("group-").append(i);
+        }
+        write(table, "a\t" + groups + "\na\t" + groups + "\na\textra\nb\tgroup-b\n");
+
+        TableGroupMapper mapper = new TableGroupMapper("table", table, true);
+        assertEquals(groups + ", extra", mapper.process("a"));
+        assertEquals("group-b", mapper.process("b"));
+    }
+
+    private static void write(File file, String content) throws IOException {
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        out.write(content);
+        out.close();
+    }
+}
@@ -0,0 +1,79 @@
+package shibauth.confluence.authentication.shibboleth;
+
+import junit.framework.TestCase;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.impl.NoOpLog;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+public class TargetedTraceTest extends TestCase {
+
+    private ShibAuthConfiguration config;
+
+    private ShibAuthConfiguration previousConfig;
+
+    protected void setUp() throws Exception {
+        previousConfig = RemoteUserAuthenticator.getConfiguration();
+        Properties props = LoadTestHarness.syntheticConfiguration(8);
+        props.setProperty(ShibAuthConstants.TRACE_USERS, "JDoe, asmith");
+        props.setProperty(ShibAuthConstants.TRACE_HEADER, "Shib-Identity-Provider");
+        props.setProperty(ShibAuthConstants.TRACE_HEADER_VALUES, "https://idp.example.edu/idp/shibboleth");
+        config = LoadTestHarness.load(props);
+    }
+
+    protected void tearDown() {
+        TargetedTrace.end();
+        RemoteUserAuthenticator.setConfiguration(previousConfig);
+    }
+
+    public void testLoadsConfiguration() {
+        assertTrue(config.getTraceUsers().contains("jdoe"));
+        assertTrue(config.getTraceUsers().contains("asmith"));
+        assertEquals("Shib-Identity-Provider", config.getTraceHeaderName());
+        assertEquals(1, config.getTraceHeaderValues().size());
+    }
+
+    public void testTracesMatchingUsersOnly() {
+        Log log = new NoOpLog();
+        assertFalse(TargetedTrace.isDebugEnabled(log));
+
+        TargetedTrace.beginIfUserMatches(config, "bob");
+        assertFalse(TargetedTrace.isTraced());
+
+        TargetedTrace.beginIfUserMatches(config, "jdoe");
+        assertTrue(TargetedTrace.isTraced());
+        assertTrue(TargetedTrace.isDebugEnabled(log));
+        TargetedTrace.debug(log, "traced");
+
+        TargetedTrace.end();
+        assertFalse(TargetedTrace.isTraced());
+        assertFalse(TargetedTrace.isDebugEnabled(log));
+    }
+
+    public void testTracesMatchingHeaderValues() {
+        Map headers = new HashMap();
+        headers.put("Shib-Identity-Provider", "https://other.example.org/idp");
+        TargetedTrace.beginIfHeaderMatches(config, StandInRequests.request(headers, "127.0.0.1"));
+        assertFalse(TargetedTrace.isTraced());
+
+        headers.put("Shib-Identity-Provider", "https://idp.example.edu/idp/shibboleth");
+        TargetedTrace.beginIfHeaderMatches(config, StandInRequests.request(headers, "127.0.0.1"));
+        assertTrue(TargetedTrace.isTraced());
+    }
+
+    public void testTraceEndsWithLogin() throws Exception {
+        LoadTestHarness harness = LoadTestHarness.small(0);
+
+        Properties props = LoadTestHarness.syntheticConfiguration(8);
+        props.setProperty(ShibAuthConstants.AUTH_CHAIN, "header");
+        props.setProperty(ShibAuthConstants.TRACE_USERS, "user1");
+        RemoteUserAuthenticator.setConfiguration(LoadTestHarness.load(props));
+
+        assertTrue(harness.authenticate("user1", LoadTestHarness.entitlements(1, 5, 8), true));
+        assertTrue(harness.authenticate("user1", LoadTestHarness.entitlements(1, 5, 8), false));
+        assertFalse(TargetedTrace.isTraced());
+        assertTrue(harness.getBackend().getGroupNames("user1").size() > 0);
+    }
+}